@@ -0,0 +1,173 @@
+package com.than;
+
+import oshi.SystemInfo;
+import oshi.hardware.NetworkIF;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * 定期调整上传和下载限速器的速率。
+ * 速率上限来自配置，按时间段的配置优先；开启自适应时，用网卡的总流量减去自己的流量得到前台程序的流量，
+ * 有前台流量时把速率降到估计带宽减去前台流量之后的一部分，线路空闲时逐步提速，
+ * 传输一直在前台流量之下平稳进行，不再整体停下再恢复。
+ * 每次调整都重新取FileManager当前的配置，界面保存的设置立即生效
+ */
+public class BandwidthShaper {
+
+    private static final Logger logger = Logger.getLogger(BandwidthShaper.class);
+
+    private static final long SAMPLE_INTERVAL = 1000;
+    //前台流量低于估计带宽的这个比例时认为线路空闲，自己的流量和网卡统计之间有协议开销的误差
+    private static final double IDLE_FRACTION = 0.05;
+    //有前台流量时，剩余带宽中自己使用的比例
+    private static final double HEADROOM = 0.8;
+    //线路空闲时每次提速的倍数
+    private static final double PROBE_FACTOR = 1.25;
+    //线路空闲时估计带宽每次采样的衰减，线路变慢后估计值会慢慢跟上
+    private static final double CAPACITY_DECAY = 0.995;
+
+    private final List<NetworkIF> networks;
+    private final Direction upload;
+    private final Direction download;
+    private long lastSample = System.currentTimeMillis();
+
+    /**
+     * 一个方向的速率状态
+     */
+    private static class Direction {
+        private final String name;
+        private final RateLimiter limiter;
+        private long prevNicBytes;
+        private long prevOwnBytes;
+        //观察到的最大总流量，作为线路带宽的估计
+        private double capacity;
+
+        Direction(String name, RateLimiter limiter) {
+            this.name = name;
+            this.limiter = limiter;
+            this.prevOwnBytes = limiter.getTransferred();
+        }
+
+        /**
+         * 根据这次采样调整速率
+         * @param nicBytes 网卡这个方向的累计字节数
+         * @param cap 速率上限，小于等于0表示不限
+         * @param minRate 自适应时的最低速率
+         * @param seconds 距离上次采样的秒数
+         */
+        void adjust(long nicBytes, long cap, long minRate, double seconds) {
+            long ownBytes = limiter.getTransferred();
+            double nicRate = Math.max(0, nicBytes - prevNicBytes) / seconds;
+            double ownRate = (ownBytes - prevOwnBytes) / seconds;
+            prevNicBytes = nicBytes;
+            prevOwnBytes = ownBytes;
+            double foreground = Math.max(0, nicRate - ownRate);
+            boolean idle = foreground <= Math.max(capacity, nicRate) * IDLE_FRACTION;
+            //有前台流量时自己被限速，看不到线路的真实带宽，这时估计值保持不变
+            capacity = Math.max(idle ? capacity * CAPACITY_DECAY : capacity, nicRate);
+
+            long rate = limiter.getRate();
+            long target;
+            if (idle) {
+                //线路空闲，逐步提速，超过估计带宽很多时就不再限速
+                target = rate <= 0 || rate > capacity * 2 ? 0 : Math.max(minRate, (long) (rate * PROBE_FACTOR));
+            } else {
+                target = Math.max(minRate, (long) ((capacity - foreground) * HEADROOM));
+            }
+            if (cap > 0) {
+                target = target <= 0 ? cap : Math.min(target, cap);
+            }
+            if (target != rate) {
+                limiter.setRate(target);
+                logger.debug(name + " rate " + target + " foreground " + (long) foreground + " capacity " + (long) capacity);
+            }
+        }
+    }
+
+    /**
+     * @param uploadLimiter 上传限速器
+     * @param downloadLimiter 下载限速器
+     * @throws IOException 读取配置时的io异常
+     */
+    public BandwidthShaper(RateLimiter uploadLimiter, RateLimiter downloadLimiter) throws IOException {
+        this.networks = new SystemInfo().getHardware().getNetworkIFs();
+        this.upload = new Direction("upload", uploadLimiter);
+        this.download = new Direction("download", downloadLimiter);
+        long[] totals = sampleNetworks();
+        upload.prevNicBytes = totals[0];
+        download.prevNicBytes = totals[1];
+        applyCaps(FileManager.getConfig());
+    }
+
+    /**
+     * 启动后台调整线程
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                    update();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    logger.error("bandwidth shaping error", e);
+                }
+            }
+        }, "bandwidth-shaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void update() throws IOException {
+        Config config = FileManager.getConfig();
+        if (!config.isAdaptiveBandwidth()) {
+            applyCaps(config);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastSample) / 1000.0;
+        lastSample = now;
+        long[] caps = getCaps(config, LocalTime.now());
+        long[] totals = sampleNetworks();
+        upload.adjust(totals[0], caps[0], config.getAdaptiveMinRate(), seconds);
+        download.adjust(totals[1], caps[1], config.getAdaptiveMinRate(), seconds);
+    }
+
+    private void applyCaps(Config config) {
+        long[] caps = getCaps(config, LocalTime.now());
+        upload.limiter.setRate(caps[0]);
+        download.limiter.setRate(caps[1]);
+    }
+
+    /**
+     * 当前时间的速率上限，落在某个时间段内时使用这个时间段的配置
+     * @param config 当前的配置
+     * @param time 当前时间
+     * @return 上传和下载的上限，小于等于0表示不限
+     */
+    private static long[] getCaps(Config config, LocalTime time) {
+        for (Config.BandwidthSchedule schedule : config.getBandwidthSchedules()) {
+            if (schedule.contains(time)) {
+                return new long[]{schedule.getUploadRateLimit(), schedule.getDownloadRateLimit()};
+            }
+        }
+        return new long[]{config.getUploadRateLimit(), config.getDownloadRateLimit()};
+    }
+
+    /**
+     * 所有网卡的累计发送和接收字节数
+     */
+    private long[] sampleNetworks() {
+        long sent = 0;
+        long recv = 0;
+        for (NetworkIF net : networks) {
+            net.updateAttributes();
+            sent += net.getBytesSent();
+            recv += net.getBytesRecv();
+        }
+        return new long[]{sent, recv};
+    }
+}
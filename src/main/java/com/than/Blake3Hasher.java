@@ -0,0 +1,236 @@
+package com.than;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * BLAKE3加密摘要，纯java实现，按照官方参考实现移植，只支持默认的哈希模式和32字节输出
+ */
+public class Blake3Hasher implements FileHasher {
+
+    private static final int OUT_LEN = 32;
+    private static final int BLOCK_LEN = 64;
+    private static final int CHUNK_LEN = 1024;
+
+    private static final int CHUNK_START = 1;
+    private static final int CHUNK_END = 1 << 1;
+    private static final int PARENT = 1 << 2;
+    private static final int ROOT = 1 << 3;
+
+    private static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    private static final int[] MSG_PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8};
+
+    //每一轮使用的消息字下标，预先按置换规则算好，压缩时不需要再复制消息
+    private static final int[][] MSG_SCHEDULE = new int[7][16];
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            MSG_SCHEDULE[0][i] = i;
+        }
+        for (int r = 1; r < 7; r++) {
+            for (int i = 0; i < 16; i++) {
+                MSG_SCHEDULE[r][i] = MSG_SCHEDULE[r - 1][MSG_PERMUTATION[i]];
+            }
+        }
+    }
+
+    //每一层最多一个待合并的链值，54层足够2^64字节的输入
+    private final int[][] cvStack = new int[54][];
+    private int cvStackLen;
+    private ChunkState chunkState = new ChunkState(IV, 0);
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        ByteBuffer input = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.limit());
+        while (input.hasRemaining()) {
+            if (chunkState.length() == CHUNK_LEN) {
+                int[] chunkCv = chunkState.output().chainingValue();
+                long totalChunks = chunkState.chunkCounter + 1;
+                addChunkChainingValue(chunkCv, totalChunks);
+                chunkState = new ChunkState(IV, totalChunks);
+            }
+            int take = Math.min(CHUNK_LEN - chunkState.length(), input.remaining());
+            chunkState.update(input, take);
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        Output output = chunkState.output();
+        int remaining = cvStackLen;
+        while (remaining > 0) {
+            remaining--;
+            output = parentOutput(cvStack[remaining], output.chainingValue());
+        }
+        return output.rootBytes();
+    }
+
+    /**
+     * 合并完整子树的链值，完成的块数末尾有几个0，就向上合并几层
+     */
+    private void addChunkChainingValue(int[] newCv, long totalChunks) {
+        while ((totalChunks & 1) == 0) {
+            newCv = parentOutput(cvStack[--cvStackLen], newCv).chainingValue();
+            totalChunks >>= 1;
+        }
+        cvStack[cvStackLen++] = newCv;
+    }
+
+    private static Output parentOutput(int[] leftCv, int[] rightCv) {
+        int[] blockWords = new int[16];
+        System.arraycopy(leftCv, 0, blockWords, 0, 8);
+        System.arraycopy(rightCv, 0, blockWords, 8, 8);
+        return new Output(IV, blockWords, 0, BLOCK_LEN, PARENT);
+    }
+
+    private static void g(int[] state, int a, int b, int c, int d, int mx, int my) {
+        state[a] = state[a] + state[b] + mx;
+        state[d] = Integer.rotateRight(state[d] ^ state[a], 16);
+        state[c] = state[c] + state[d];
+        state[b] = Integer.rotateRight(state[b] ^ state[c], 12);
+        state[a] = state[a] + state[b] + my;
+        state[d] = Integer.rotateRight(state[d] ^ state[a], 8);
+        state[c] = state[c] + state[d];
+        state[b] = Integer.rotateRight(state[b] ^ state[c], 7);
+    }
+
+    private static void round(int[] state, int[] m, int[] s) {
+        g(state, 0, 4, 8, 12, m[s[0]], m[s[1]]);
+        g(state, 1, 5, 9, 13, m[s[2]], m[s[3]]);
+        g(state, 2, 6, 10, 14, m[s[4]], m[s[5]]);
+        g(state, 3, 7, 11, 15, m[s[6]], m[s[7]]);
+        g(state, 0, 5, 10, 15, m[s[8]], m[s[9]]);
+        g(state, 1, 6, 11, 12, m[s[10]], m[s[11]]);
+        g(state, 2, 7, 8, 13, m[s[12]], m[s[13]]);
+        g(state, 3, 4, 9, 14, m[s[14]], m[s[15]]);
+    }
+
+    private static int[] compress(int[] chainingValue, int[] blockWords, long counter, int blockLen, int flags) {
+        int[] state = {
+                chainingValue[0], chainingValue[1], chainingValue[2], chainingValue[3],
+                chainingValue[4], chainingValue[5], chainingValue[6], chainingValue[7],
+                IV[0], IV[1], IV[2], IV[3],
+                (int) counter, (int) (counter >>> 32), blockLen, flags
+        };
+        for (int r = 0; r < 7; r++) {
+            round(state, blockWords, MSG_SCHEDULE[r]);
+        }
+        for (int i = 0; i < 8; i++) {
+            state[i] ^= state[i + 8];
+            state[i + 8] ^= chainingValue[i];
+        }
+        return state;
+    }
+
+    /**
+     * 一个节点压缩前的输入，既可以取链值，也可以作为根节点输出摘要
+     */
+    private static class Output {
+        private final int[] inputChainingValue;
+        private final int[] blockWords;
+        private final long counter;
+        private final int blockLen;
+        private final int flags;
+
+        Output(int[] inputChainingValue, int[] blockWords, long counter, int blockLen, int flags) {
+            this.inputChainingValue = inputChainingValue;
+            this.blockWords = blockWords;
+            this.counter = counter;
+            this.blockLen = blockLen;
+            this.flags = flags;
+        }
+
+        int[] chainingValue() {
+            return Arrays.copyOf(compress(inputChainingValue, blockWords, counter, blockLen, flags), 8);
+        }
+
+        byte[] rootBytes() {
+            int[] words = compress(inputChainingValue, blockWords, 0, blockLen, flags | ROOT);
+            ByteBuffer out = ByteBuffer.allocate(OUT_LEN).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < OUT_LEN / 4; i++) {
+                out.putInt(words[i]);
+            }
+            return out.array();
+        }
+    }
+
+    /**
+     * 一个1024字节块的状态
+     */
+    private static class ChunkState {
+        private int[] chainingValue;
+        private final long chunkCounter;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        private final int[] words = new int[16];
+        private int blocksCompressed;
+
+        ChunkState(int[] key, long chunkCounter) {
+            this.chainingValue = key;
+            this.chunkCounter = chunkCounter;
+        }
+
+        int length() {
+            return BLOCK_LEN * blocksCompressed + block.position();
+        }
+
+        private int startFlag() {
+            return blocksCompressed == 0 ? CHUNK_START : 0;
+        }
+
+        private int[] blockWords() {
+            int[] words = new int[16];
+            for (int i = 0; i < 16; i++) {
+                words[i] = block.getInt(i * 4);
+            }
+            return words;
+        }
+
+        void update(ByteBuffer input, int length) {
+            while (length > 0) {
+                if (!block.hasRemaining()) {
+                    for (int i = 0; i < 16; i++) {
+                        words[i] = block.getInt(i * 4);
+                    }
+                    compressBlock(words);
+                    block.clear();
+                }
+                //整块的数据直接从输入读取，不经过block缓冲
+                if (block.position() == 0 && length > BLOCK_LEN) {
+                    int pos = input.position();
+                    for (int i = 0; i < 16; i++) {
+                        words[i] = input.getInt(pos + i * 4);
+                    }
+                    input.position(pos + BLOCK_LEN);
+                    length -= BLOCK_LEN;
+                    compressBlock(words);
+                    continue;
+                }
+                int take = Math.min(block.remaining(), length);
+                ByteBuffer part = input.slice(input.position(), take);
+                block.put(part);
+                input.position(input.position() + take);
+                length -= take;
+            }
+        }
+
+        private void compressBlock(int[] blockWords) {
+            chainingValue = Arrays.copyOf(compress(chainingValue, blockWords, chunkCounter, BLOCK_LEN, startFlag()), 8);
+            blocksCompressed++;
+        }
+
+        Output output() {
+            //未写满的部分补0
+            int blockLen = block.position();
+            ByteBuffer padded = block.duplicate();
+            while (padded.hasRemaining()) {
+                padded.put((byte) 0);
+            }
+            return new Output(chainingValue, blockWords(), chunkCounter, blockLen, startFlag() | CHUNK_END);
+        }
+    }
+}
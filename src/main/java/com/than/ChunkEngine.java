@@ -0,0 +1,160 @@
+package com.than;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * 基于内容的分块（FastCDC），使用gear滚动哈希寻找切分点，文件中间插入或删除数据时只有附近的块会变化，
+ * 每个块用sha-256标识，修改文件时只需要上传新出现的块
+ */
+public class ChunkEngine {
+
+    //gear表必须固定，否则同样的内容在不同版本的程序中会切出不同的块
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x7468616E64726976L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    //平均大小之前使用更严格的掩码，之后使用更宽松的掩码，让块大小集中在平均值附近
+    private final long maskSmall;
+    private final long maskLarge;
+
+    /**
+     * 一个块，hash是块内容的sha-256
+     */
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final String hash;
+
+        public Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * @param avgSize 平均块大小，会被调整为2的幂，最小块为其1/4，最大块为其4倍
+     */
+    public ChunkEngine(int avgSize) {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(avgSize, 1024));
+        this.avgSize = 1 << bits;
+        this.minSize = this.avgSize / 4;
+        this.maxSize = this.avgSize * 4;
+        //gear哈希左移，高位的随机性更好，所以掩码取高位
+        this.maskSmall = highBits(bits + 1);
+        this.maskLarge = highBits(bits - 1);
+    }
+
+    private static long highBits(int count) {
+        return -1L << (64 - count);
+    }
+
+    /**
+     * 把文件切分成块
+     * @param file 文件路径
+     * @return 按顺序排列的块
+     * @throws IOException 读取文件时的io异常
+     */
+    public List<Chunk> split(Path file) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest sha = newSha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long chunkStart = 0;
+            long position = 0;
+            int chunkLength = 0;
+            long hash = 0;
+            while (channel.read(buffer, position) > 0) {
+                buffer.flip();
+                int scanStart = buffer.position();
+                while (buffer.hasRemaining()) {
+                    int b = buffer.get() & 0xFF;
+                    chunkLength++;
+                    if (chunkLength < minSize) {
+                        continue;
+                    }
+                    hash = (hash << 1) + GEAR[b];
+                    long mask = chunkLength < avgSize ? maskSmall : maskLarge;
+                    if ((hash & mask) == 0 || chunkLength >= maxSize) {
+                        //把这个块在当前buffer中的部分写入摘要
+                        ByteBuffer part = buffer.duplicate();
+                        part.position(scanStart).limit(buffer.position());
+                        sha.update(part);
+                        scanStart = buffer.position();
+                        chunks.add(new Chunk(chunkStart, chunkLength, FileData.bytesToHex(sha.digest())));
+                        chunkStart += chunkLength;
+                        chunkLength = 0;
+                        hash = 0;
+                    }
+                }
+                buffer.position(scanStart);
+                sha.update(buffer);
+                position += buffer.limit();
+                buffer.clear();
+            }
+            if (chunkLength > 0) {
+                chunks.add(new Chunk(chunkStart, chunkLength, FileData.bytesToHex(sha.digest())));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * 读取一个块的内容
+     * @param channel 文件
+     * @param chunk 块
+     * @return 块的内容
+     * @throws IOException 读取时的io异常，文件在切分后变短时也会抛出
+     */
+    public static byte[] readChunk(FileChannel channel, Chunk chunk) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(chunk.getLength());
+        long position = chunk.getOffset();
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position + data.position());
+            if (read < 0) {
+                throw new IOException("file changed while uploading chunks");
+            }
+        }
+        return data.array();
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //每个jdk都必须提供sha-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.than;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * 服务器已有的块的布隆过滤器，保存在数据目录中。
+ * 过滤器判断一定没有的块直接上传，不需要先询问服务器；可能已有的块才批量询问服务器，
+ * 误判只会多一次询问，不会导致少传数据
+ * <p>
+ * 文件格式：魔数(4) 位数(8) 哈希函数个数(4) 已加入的数量(8) 位数组
+ */
+public class ChunkFilter {
+
+    private static final Logger logger = Logger.getLogger(ChunkFilter.class);
+
+    private static final int MAGIC = 0x54444246; // "TDBF"
+    //误判率1%时每个元素约需要9.6位、7个哈希函数
+    private static final double BITS_PER_ENTRY = 9.6;
+    private static final int HASH_COUNT = 7;
+
+    private final Path file;
+    private final long numBits;
+    private final int hashCount;
+    private final long[] bits;
+    private long count;
+    private boolean dirty;
+
+    /**
+     * 读取保存的过滤器，不存在、损坏或容量配置变化时新建一个空的过滤器
+     * @param file 保存位置
+     * @param capacity 预期的块数量，超过后误判率会升高
+     */
+    public ChunkFilter(Path file, long capacity) {
+        this.file = file;
+        long wanted = Math.max(64, (long) (Math.max(capacity, 1) * BITS_PER_ENTRY));
+        //位数取64的倍数
+        wanted = (wanted + 63) / 64 * 64;
+        long[] loaded = null;
+        long loadedCount = 0;
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() == MAGIC && in.readLong() == wanted && in.readInt() == HASH_COUNT) {
+                    loadedCount = in.readLong();
+                    loaded = new long[(int) (wanted / 64)];
+                    for (int i = 0; i < loaded.length; i++) {
+                        loaded[i] = in.readLong();
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("broken chunk filter, create a new one");
+                loaded = null;
+            }
+        }
+        this.numBits = wanted;
+        this.hashCount = HASH_COUNT;
+        this.bits = loaded != null ? loaded : new long[(int) (wanted / 64)];
+        this.count = loaded != null ? loadedCount : 0;
+    }
+
+    /**
+     * 服务器是否可能已有这个块
+     * @param hash 块的sha-256，十六进制
+     * @return false表示一定没有
+     */
+    public synchronized boolean mightContain(String hash) {
+        long h1 = Long.parseUnsignedLong(hash.substring(0, 16), 16);
+        long h2 = Long.parseUnsignedLong(hash.substring(16, 32), 16);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 记录服务器已有的块
+     * @param hash 块的sha-256，十六进制
+     */
+    public synchronized void add(String hash) {
+        //sha-256已经足够均匀，直接取前两个64位作为双重哈希的两个值
+        long h1 = Long.parseUnsignedLong(hash.substring(0, 16), 16);
+        long h2 = Long.parseUnsignedLong(hash.substring(16, 32), 16);
+        boolean added = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int index = (int) (bit >>> 6);
+            if ((bits[index] & (1L << bit)) == 0) {
+                bits[index] |= 1L << bit;
+                added = true;
+            }
+        }
+        if (added) {
+            count++;
+            dirty = true;
+        }
+    }
+
+    /**
+     * 有新的块加入时保存过滤器，先写临时文件再替换
+     * @throws IOException io异常
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeLong(numBits);
+            out.writeInt(hashCount);
+            out.writeLong(count);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+}
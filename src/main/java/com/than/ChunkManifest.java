@@ -0,0 +1,119 @@
+package com.than;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个文件上一次上传时的块清单，保存在本地，下次修改后上传时用来找出新增的块
+ */
+public class ChunkManifest {
+
+    private static final Logger logger = Logger.getLogger(ChunkManifest.class);
+    private static final Gson gson = new Gson();
+
+    //文件绝对路径
+    private String path;
+    //文件摘要
+    private String md5;
+    //文件大小
+    private long size;
+    //按顺序排列的块的sha-256
+    private List<String> chunks;
+    //和chunks对应的块大小
+    private List<Integer> lengths;
+
+    public ChunkManifest() {
+        chunks = new ArrayList<>();
+        lengths = new ArrayList<>();
+    }
+
+    public ChunkManifest(String path, String md5, List<ChunkEngine.Chunk> chunkList) {
+        this();
+        this.path = path;
+        this.md5 = md5;
+        for (ChunkEngine.Chunk chunk : chunkList) {
+            chunks.add(chunk.getHash());
+            lengths.add(chunk.getLength());
+            size += chunk.getLength();
+        }
+    }
+
+    /**
+     * 读取本地保存的块清单
+     * @param path 文件绝对路径
+     * @return 块清单，没有或损坏时返回null
+     */
+    public static ChunkManifest load(String path) {
+        try {
+            Path file = getManifestFile(path);
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                ChunkManifest manifest = gson.fromJson(reader, ChunkManifest.class);
+                return manifest != null && path.equals(manifest.path) ? manifest : null;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("broken chunk manifest: " + path);
+            return null;
+        }
+    }
+
+    /**
+     * 保存块清单，先写临时文件再替换，避免程序中途退出留下不完整的清单
+     * @throws IOException io异常
+     */
+    public void save() throws IOException {
+        Path file = getManifestFile(path);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(this, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 文件被删除后，删除它的块清单
+     * @param path 文件绝对路径
+     */
+    public static void forget(String path) {
+        try {
+            Files.deleteIfExists(getManifestFile(path));
+        } catch (IOException e) {
+            logger.error("delete chunk manifest error", e);
+        }
+    }
+
+    private static Path getManifestFile(String path) throws IOException {
+        Path folder = FileManager.getDataPath("manifests");
+        Files.createDirectories(folder);
+        return folder.resolve(FileData.getPathKey(path) + ".json");
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    public List<Integer> getLengths() {
+        return lengths;
+    }
+}
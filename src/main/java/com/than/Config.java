@@ -1,8 +1,11 @@
 package com.than;
 
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 配置文件实体
@@ -12,7 +15,7 @@ public class Config {
     private List<String> rootFolders;
     //上一次扫描时间，这里面所有的时间，都用时间戳来记录
     private long lastUpdateTime;
-    //扫描间隔
+    //扫描间隔，开启监听模式后只在监听失效时使用
     private long scanIntervalTime;
     //是否开机启动 这条配置暂时并没有用上
     private boolean bootUp;
@@ -22,6 +25,102 @@ public class Config {
     private String downLoadPath;
     //与服务器通信的密码
     private String verify;
+    //扫描时的并行线程数，0表示使用cpu核心数
+    private int scanParallelism;
+    //是否开启监听模式，开启后启动时全量扫描一次，之后只处理文件系统报告的变动
+    private boolean watchMode;
+    //监听模式的防抖时间，最后一次变动之后安静这么久才开始处理
+    private long watchDebounceTime;
+    //一批变动最多等待这么久，持续写入的文件（日志、数据库）让事件一直不停时也会按时处理
+    private long watchMaxBatchDelay;
+    //希望使用的摘要算法，md5、xx128或blake3，服务器不支持时回退到md5
+    private String hashAlgorithm;
+    //大于等于这个大小的文件使用并行分段摘要，0表示不使用
+    private long treeHashThreshold;
+    //并行分段摘要的分段大小
+    private long treeHashSegmentSize;
+    //只追加写入的文件扩展名，这些文件变大时只计算新增的分段
+    private List<String> appendOnlyExtensions;
+    //是否开启按块上传，服务器支持时修改过的文件只上传变化的块
+    private boolean deltaUpload;
+    //大于等于这个大小的文件才按块上传
+    private long deltaUploadThreshold;
+    //按块上传时的平均块大小
+    private int chunkAvgSize;
+    //是否开启跨文件去重，服务器已有的内容不再上传
+    private boolean dedupUpload;
+    //大于等于这个大小的文件才参与去重，更小的文件询问服务器的开销比直接上传还大
+    private long dedupMinSize;
+    //本地记录服务器已有块的过滤器的容量
+    private long dedupFilterCapacity;
+    //忽略规则，和.gitignore的写法一样，!开头表示重新包含，相对路径以每个根目录为起点
+    private List<String> ignorePatterns;
+    //每个目录下的忽略规则文件名，优先级比上级目录和配置中的规则高
+    private String ignoreFileName;
+    //超过这个大小的文件不上传，0表示不限制
+    private long maxFileSize;
+    //只上传这些扩展名的文件，为空表示不限制
+    private List<String> includeExtensions;
+    //不上传这些扩展名的文件
+    private List<String> excludeExtensions;
+    //全量扫描保存进度的间隔，程序中断后下次启动从最后一次保存的进度继续扫描
+    private long scanCheckpointInterval;
+    //同时上传的线程数
+    private int uploadWorkers;
+    //同时在传输的文件总大小上限
+    private long uploadMaxInFlightBytes;
+    //是否把小文件打包成一个请求上传
+    private boolean packUpload;
+    //小于这个大小的文件才打包上传
+    private long packThreshold;
+    //每个包最多的文件数量
+    private int packMaxFiles;
+    //每个包最大的总大小
+    private long packMaxBytes;
+    //大于等于这个大小的文件分段上传，中断后可以继续
+    private long sessionUploadThreshold;
+    //分段上传时每段的大小
+    private int sessionChunkSize;
+    //分段上传时同时在传输的段数
+    private int sessionParallelism;
+    //是否在上传时才计算新文件的摘要，文件只读一次
+    private boolean digestOnUpload;
+    //上传和下载的速率上限，每秒字节数，0表示不限
+    private long uploadRateLimit;
+    private long downloadRateLimit;
+    //按时间段的速率上限，落在时间段内时代替上面的上限
+    private List<BandwidthSchedule> bandwidthSchedules;
+    //是否根据前台程序的流量自动调整速率
+    private boolean adaptiveBandwidth;
+    //自动调整时的最低速率，每秒字节数
+    private long adaptiveMinRate;
+    //上传失败后第一次重试的等待时间，之后每次失败翻倍，直到最长等待时间
+    private long retryBaseTime;
+    private long retryMaxTime;
+    //上传顺序：fifo、smallest（小文件优先）、recent（最近修改的优先），见UploadScheduler
+    private String uploadOrder;
+    //任务最多被后来的任务超过的时间，防止大文件或很久没修改的文件一直等待
+    private long uploadAgingTime;
+    //根目录的上传权重，权重越大越先上传，没有配置的根目录为1
+    private Map<String, Double> uploadRootWeights;
+    //置顶的文件或目录，总是最先上传
+    private List<String> pinnedPaths;
+    //文件最后一次修改之后要稳定这么久才读取，还在写入的文件推迟上传，0表示不等待
+    private long settleTime;
+    //上传时是否先把文件克隆或复制一份再读，读取期间原文件的写入不影响上传的内容
+    private boolean uploadStaging;
+    //读取期间变化过的文件不能克隆时，不超过这个大小才复制一份；超过这个大小的文件读取时间长，能克隆时总是克隆
+    private long stagingMaxSize;
+    //下载时同时在传输的段数
+    private int downloadSegments;
+    //每段最小的大小，更小的文件少分几段
+    private long downloadSegmentMinSize;
+    //同时进行的下载任务数，每个任务还会按downloadSegments分段
+    private int downloadConcurrency;
+    //是否缓存下载过的版本，再次下载同一个版本时不经过网络
+    private boolean versionCache;
+    //版本缓存的容量，字节
+    private long versionCacheSize;
 
     public String getVerify() {
         return verify;
@@ -55,6 +154,54 @@ public class Config {
         config.downLoadPath = "./";
         config.serverIp = "http://127.0.0.1:8080";
         config.verify="Bd87FFE8B5FF67431D125AE62B8CD8AF";
+        config.scanParallelism = 0;
+        config.watchMode = true;
+        config.watchDebounceTime = 2000;
+        config.watchMaxBatchDelay = 30000;
+        config.hashAlgorithm = HashEngine.MD5;
+        config.treeHashThreshold = 1024L * 1024 * 1024;
+        config.treeHashSegmentSize = 64L * 1024 * 1024;
+        config.appendOnlyExtensions = new ArrayList<>(List.of("log"));
+        config.deltaUpload = true;
+        config.deltaUploadThreshold = 4L * 1024 * 1024;
+        config.chunkAvgSize = 256 * 1024;
+        config.dedupUpload = true;
+        config.dedupMinSize = 64 * 1024;
+        config.dedupFilterCapacity = 1000000;
+        config.ignorePatterns = new ArrayList<>(List.of(".git/", ".svn/", "node_modules/", "target/",
+                "*.swp", "*.swo", "*~", "*.tmp", "~$*", ".DS_Store", "Thumbs.db"));
+        config.ignoreFileName = ".thanignore";
+        config.maxFileSize = 0;
+        config.includeExtensions = new ArrayList<>();
+        config.excludeExtensions = new ArrayList<>();
+        config.scanCheckpointInterval = 30000;
+        config.uploadWorkers = 4;
+        config.uploadMaxInFlightBytes = 64L * 1024 * 1024;
+        config.packUpload = true;
+        config.packThreshold = 64 * 1024;
+        config.packMaxFiles = 256;
+        config.packMaxBytes = 8L * 1024 * 1024;
+        config.sessionUploadThreshold = 16L * 1024 * 1024;
+        config.sessionChunkSize = 8 * 1024 * 1024;
+        config.sessionParallelism = 4;
+        config.digestOnUpload = true;
+        config.bandwidthSchedules = new ArrayList<>();
+        config.adaptiveBandwidth = true;
+        config.adaptiveMinRate = 32 * 1024;
+        config.retryBaseTime = 30000;
+        config.retryMaxTime = 3600000;
+        config.uploadOrder = UploadScheduler.ORDER_SMALLEST;
+        config.uploadAgingTime = 600000;
+        config.uploadRootWeights = new LinkedHashMap<>();
+        config.pinnedPaths = new ArrayList<>();
+        config.settleTime = 3000;
+        config.uploadStaging = true;
+        config.stagingMaxSize = 16L * 1024 * 1024;
+        config.downloadSegments = 4;
+        config.downloadSegmentMinSize = 8L * 1024 * 1024;
+        config.downloadConcurrency = 2;
+        config.versionCache = true;
+        config.versionCacheSize = 2L * 1024 * 1024 * 1024;
         return config;
     }
 
@@ -116,4 +263,468 @@ public class Config {
         this.singleFileCount = singleFileCount;
     }
 
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    public boolean isWatchMode() {
+        return watchMode;
+    }
+
+    public void setWatchMode(boolean watchMode) {
+        this.watchMode = watchMode;
+    }
+
+    public long getWatchDebounceTime() {
+        return watchDebounceTime;
+    }
+
+    public void setWatchDebounceTime(long watchDebounceTime) {
+        this.watchDebounceTime = watchDebounceTime;
+    }
+
+    public long getWatchMaxBatchDelay() {
+        return watchMaxBatchDelay > 0 ? watchMaxBatchDelay : 30000;
+    }
+
+    public void setWatchMaxBatchDelay(long watchMaxBatchDelay) {
+        this.watchMaxBatchDelay = watchMaxBatchDelay;
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public long getTreeHashThreshold() {
+        return treeHashThreshold;
+    }
+
+    public void setTreeHashThreshold(long treeHashThreshold) {
+        this.treeHashThreshold = treeHashThreshold;
+    }
+
+    /**
+     * 旧的配置文件中没有这一项，此时使用64MB
+     * @return 分段大小
+     */
+    public long getTreeHashSegmentSize() {
+        return treeHashSegmentSize > 0 ? treeHashSegmentSize : 64L * 1024 * 1024;
+    }
+
+    public void setTreeHashSegmentSize(long treeHashSegmentSize) {
+        this.treeHashSegmentSize = treeHashSegmentSize;
+    }
+
+    public List<String> getAppendOnlyExtensions() {
+        return appendOnlyExtensions;
+    }
+
+    public void setAppendOnlyExtensions(List<String> appendOnlyExtensions) {
+        this.appendOnlyExtensions = appendOnlyExtensions;
+    }
+
+    public boolean isDeltaUpload() {
+        return deltaUpload;
+    }
+
+    public void setDeltaUpload(boolean deltaUpload) {
+        this.deltaUpload = deltaUpload;
+    }
+
+    public long getDeltaUploadThreshold() {
+        return deltaUploadThreshold;
+    }
+
+    public void setDeltaUploadThreshold(long deltaUploadThreshold) {
+        this.deltaUploadThreshold = deltaUploadThreshold;
+    }
+
+    /**
+     * 旧的配置文件中没有这一项，此时使用256KB
+     * @return 平均块大小
+     */
+    public int getChunkAvgSize() {
+        return chunkAvgSize > 0 ? chunkAvgSize : 256 * 1024;
+    }
+
+    public void setChunkAvgSize(int chunkAvgSize) {
+        this.chunkAvgSize = chunkAvgSize;
+    }
+
+    public boolean isDedupUpload() {
+        return dedupUpload;
+    }
+
+    public void setDedupUpload(boolean dedupUpload) {
+        this.dedupUpload = dedupUpload;
+    }
+
+    public long getDedupMinSize() {
+        return dedupMinSize;
+    }
+
+    public void setDedupMinSize(long dedupMinSize) {
+        this.dedupMinSize = dedupMinSize;
+    }
+
+    /**
+     * 旧的配置文件中没有这一项，此时使用一百万
+     * @return 过滤器容量
+     */
+    public long getDedupFilterCapacity() {
+        return dedupFilterCapacity > 0 ? dedupFilterCapacity : 1000000;
+    }
+
+    public void setDedupFilterCapacity(long dedupFilterCapacity) {
+        this.dedupFilterCapacity = dedupFilterCapacity;
+    }
+
+    public List<String> getIgnorePatterns() {
+        return ignorePatterns == null ? List.of() : ignorePatterns;
+    }
+
+    public void setIgnorePatterns(List<String> ignorePatterns) {
+        this.ignorePatterns = ignorePatterns;
+    }
+
+    public String getIgnoreFileName() {
+        return ignoreFileName == null ? ".thanignore" : ignoreFileName;
+    }
+
+    public void setIgnoreFileName(String ignoreFileName) {
+        this.ignoreFileName = ignoreFileName;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public List<String> getIncludeExtensions() {
+        return includeExtensions == null ? List.of() : includeExtensions;
+    }
+
+    public void setIncludeExtensions(List<String> includeExtensions) {
+        this.includeExtensions = includeExtensions;
+    }
+
+    public List<String> getExcludeExtensions() {
+        return excludeExtensions == null ? List.of() : excludeExtensions;
+    }
+
+    public void setExcludeExtensions(List<String> excludeExtensions) {
+        this.excludeExtensions = excludeExtensions;
+    }
+
+    public long getScanCheckpointInterval() {
+        return scanCheckpointInterval > 0 ? scanCheckpointInterval : 30000;
+    }
+
+    public void setScanCheckpointInterval(long scanCheckpointInterval) {
+        this.scanCheckpointInterval = scanCheckpointInterval;
+    }
+
+    public int getUploadWorkers() {
+        return uploadWorkers > 0 ? uploadWorkers : 4;
+    }
+
+    public void setUploadWorkers(int uploadWorkers) {
+        this.uploadWorkers = uploadWorkers;
+    }
+
+    public long getUploadMaxInFlightBytes() {
+        return uploadMaxInFlightBytes > 0 ? uploadMaxInFlightBytes : 64L * 1024 * 1024;
+    }
+
+    public void setUploadMaxInFlightBytes(long uploadMaxInFlightBytes) {
+        this.uploadMaxInFlightBytes = uploadMaxInFlightBytes;
+    }
+
+    public boolean isPackUpload() {
+        return packUpload;
+    }
+
+    public void setPackUpload(boolean packUpload) {
+        this.packUpload = packUpload;
+    }
+
+    public long getPackThreshold() {
+        return packThreshold > 0 ? packThreshold : 64 * 1024;
+    }
+
+    public void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    public int getPackMaxFiles() {
+        return packMaxFiles > 0 ? packMaxFiles : 256;
+    }
+
+    public void setPackMaxFiles(int packMaxFiles) {
+        this.packMaxFiles = packMaxFiles;
+    }
+
+    public long getPackMaxBytes() {
+        return packMaxBytes > 0 ? packMaxBytes : 8L * 1024 * 1024;
+    }
+
+    public void setPackMaxBytes(long packMaxBytes) {
+        this.packMaxBytes = packMaxBytes;
+    }
+
+    public long getSessionUploadThreshold() {
+        return sessionUploadThreshold > 0 ? sessionUploadThreshold : 16L * 1024 * 1024;
+    }
+
+    public void setSessionUploadThreshold(long sessionUploadThreshold) {
+        this.sessionUploadThreshold = sessionUploadThreshold;
+    }
+
+    public int getSessionChunkSize() {
+        return sessionChunkSize > 0 ? sessionChunkSize : 8 * 1024 * 1024;
+    }
+
+    public void setSessionChunkSize(int sessionChunkSize) {
+        this.sessionChunkSize = sessionChunkSize;
+    }
+
+    public int getSessionParallelism() {
+        return sessionParallelism > 0 ? sessionParallelism : 4;
+    }
+
+    public void setSessionParallelism(int sessionParallelism) {
+        this.sessionParallelism = sessionParallelism;
+    }
+
+    public boolean isDigestOnUpload() {
+        return digestOnUpload;
+    }
+
+    public void setDigestOnUpload(boolean digestOnUpload) {
+        this.digestOnUpload = digestOnUpload;
+    }
+
+    public long getUploadRateLimit() {
+        return uploadRateLimit;
+    }
+
+    public void setUploadRateLimit(long uploadRateLimit) {
+        this.uploadRateLimit = uploadRateLimit;
+    }
+
+    public long getDownloadRateLimit() {
+        return downloadRateLimit;
+    }
+
+    public void setDownloadRateLimit(long downloadRateLimit) {
+        this.downloadRateLimit = downloadRateLimit;
+    }
+
+    public List<BandwidthSchedule> getBandwidthSchedules() {
+        return bandwidthSchedules == null ? List.of() : bandwidthSchedules;
+    }
+
+    public void setBandwidthSchedules(List<BandwidthSchedule> bandwidthSchedules) {
+        this.bandwidthSchedules = bandwidthSchedules;
+    }
+
+    public boolean isAdaptiveBandwidth() {
+        return adaptiveBandwidth;
+    }
+
+    public void setAdaptiveBandwidth(boolean adaptiveBandwidth) {
+        this.adaptiveBandwidth = adaptiveBandwidth;
+    }
+
+    public long getAdaptiveMinRate() {
+        return adaptiveMinRate > 0 ? adaptiveMinRate : 32 * 1024;
+    }
+
+    public void setAdaptiveMinRate(long adaptiveMinRate) {
+        this.adaptiveMinRate = adaptiveMinRate;
+    }
+
+    public long getRetryBaseTime() {
+        return retryBaseTime > 0 ? retryBaseTime : 30000;
+    }
+
+    public void setRetryBaseTime(long retryBaseTime) {
+        this.retryBaseTime = retryBaseTime;
+    }
+
+    public long getRetryMaxTime() {
+        return retryMaxTime > 0 ? retryMaxTime : 3600000;
+    }
+
+    public void setRetryMaxTime(long retryMaxTime) {
+        this.retryMaxTime = retryMaxTime;
+    }
+
+    public String getUploadOrder() {
+        return uploadOrder == null ? UploadScheduler.ORDER_SMALLEST : uploadOrder;
+    }
+
+    public void setUploadOrder(String uploadOrder) {
+        this.uploadOrder = uploadOrder;
+    }
+
+    public long getUploadAgingTime() {
+        return uploadAgingTime > 0 ? uploadAgingTime : 600000;
+    }
+
+    public void setUploadAgingTime(long uploadAgingTime) {
+        this.uploadAgingTime = uploadAgingTime;
+    }
+
+    public Map<String, Double> getUploadRootWeights() {
+        return uploadRootWeights == null ? Map.of() : uploadRootWeights;
+    }
+
+    public void setUploadRootWeights(Map<String, Double> uploadRootWeights) {
+        this.uploadRootWeights = uploadRootWeights;
+    }
+
+    public List<String> getPinnedPaths() {
+        return pinnedPaths == null ? List.of() : pinnedPaths;
+    }
+
+    public void setPinnedPaths(List<String> pinnedPaths) {
+        this.pinnedPaths = pinnedPaths;
+    }
+
+    public long getSettleTime() {
+        return settleTime;
+    }
+
+    public void setSettleTime(long settleTime) {
+        this.settleTime = settleTime;
+    }
+
+    public boolean isUploadStaging() {
+        return uploadStaging;
+    }
+
+    public void setUploadStaging(boolean uploadStaging) {
+        this.uploadStaging = uploadStaging;
+    }
+
+    public long getStagingMaxSize() {
+        return stagingMaxSize > 0 ? stagingMaxSize : 16L * 1024 * 1024;
+    }
+
+    public void setStagingMaxSize(long stagingMaxSize) {
+        this.stagingMaxSize = stagingMaxSize;
+    }
+
+    public int getDownloadSegments() {
+        return downloadSegments > 0 ? downloadSegments : 4;
+    }
+
+    public void setDownloadSegments(int downloadSegments) {
+        this.downloadSegments = downloadSegments;
+    }
+
+    public long getDownloadSegmentMinSize() {
+        return downloadSegmentMinSize > 0 ? downloadSegmentMinSize : 8L * 1024 * 1024;
+    }
+
+    public void setDownloadSegmentMinSize(long downloadSegmentMinSize) {
+        this.downloadSegmentMinSize = downloadSegmentMinSize;
+    }
+
+    public int getDownloadConcurrency() {
+        return downloadConcurrency > 0 ? downloadConcurrency : 2;
+    }
+
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = downloadConcurrency;
+    }
+
+    public boolean isVersionCache() {
+        return versionCache;
+    }
+
+    public void setVersionCache(boolean versionCache) {
+        this.versionCache = versionCache;
+    }
+
+    public long getVersionCacheSize() {
+        return versionCacheSize > 0 ? versionCacheSize : 2L * 1024 * 1024 * 1024;
+    }
+
+    public void setVersionCacheSize(long versionCacheSize) {
+        this.versionCacheSize = versionCacheSize;
+    }
+
+    /**
+     * 一个时间段的速率上限，开始时间晚于结束时间表示跨过午夜
+     */
+    public static class BandwidthSchedule {
+        //开始和结束时间，格式HH:mm
+        private String start;
+        private String end;
+        private long uploadRateLimit;
+        private long downloadRateLimit;
+
+        /**
+         * 时间是否落在这个时间段内
+         * @param time 时间
+         * @return 格式错误时返回false
+         */
+        public boolean contains(LocalTime time) {
+            try {
+                LocalTime from = LocalTime.parse(start);
+                LocalTime to = LocalTime.parse(end);
+                if (from.isBefore(to)) {
+                    return !time.isBefore(from) && time.isBefore(to);
+                }
+                return !time.isBefore(from) || time.isBefore(to);
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        public String getStart() {
+            return start;
+        }
+
+        public void setStart(String start) {
+            this.start = start;
+        }
+
+        public String getEnd() {
+            return end;
+        }
+
+        public void setEnd(String end) {
+            this.end = end;
+        }
+
+        public long getUploadRateLimit() {
+            return uploadRateLimit;
+        }
+
+        public void setUploadRateLimit(long uploadRateLimit) {
+            this.uploadRateLimit = uploadRateLimit;
+        }
+
+        public long getDownloadRateLimit() {
+            return downloadRateLimit;
+        }
+
+        public void setDownloadRateLimit(long downloadRateLimit) {
+            this.downloadRateLimit = downloadRateLimit;
+        }
+    }
 }
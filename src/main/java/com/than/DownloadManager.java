@@ -0,0 +1,574 @@
+package com.than;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载任务队列。
+ * 界面发来的下载请求放进队列后立即返回任务编号，由固定数量的下载线程执行，socket线程不再被整个下载过程阻塞，
+ * 下载期间界面可以继续发请求、查询进度。
+ * <p>
+ * 还原文件夹时先取服务器的文件列表，展开成文件夹下每个文件的任务，每个任务选出指定时间之前最新的版本，
+ * 按原来的相对路径下载到下载目录中以文件夹命名的目录下，多个文件并行下载。服务器上已经删除的文件不在列表中，不会还原。
+ * <p>
+ * 暂停的任务在下一次写入后停下并保存进度，继续时从保存的位置接着下载；取消的任务会丢掉临时文件。
+ * 还原的编号可以代替其中所有的任务
+ */
+public class DownloadManager {
+
+    private static final Logger logger = Logger.getLogger(DownloadManager.class);
+
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_PAUSED = "paused";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_FAILED = "failed";
+    public static final String STATE_CANCELLED = "cancelled";
+    //还原时文件在指定时间之前没有版本
+    public static final String STATE_SKIPPED = "skipped";
+    //还原正在取服务器的文件列表
+    public static final String STATE_EXPANDING = "expanding";
+
+    //保留的已经结束的任务数，超过后删除最早结束的
+    private static final int MAX_FINISHED = 1000;
+
+    /**
+     * 一个文件的下载任务，序列化后返回给界面
+     */
+    public static class Job {
+        private final String id;
+        //所属的还原，单独下载时为null
+        private final String restore;
+        private final String path;
+        //服务器中的版本名称，还原时开始下载后才确定
+        private String fileName;
+        //还原时选择这个时间之前最新的版本
+        private final long before;
+        private final String target;
+        private String state = STATE_QUEUED;
+        private String error;
+        //运行中的任务被暂停或取消时要进入的状态，下载线程看到后停下
+        private transient volatile String stopTo;
+
+        Job(String id, String restore, String path, String fileName, long before, Path target) {
+            this.id = id;
+            this.restore = restore;
+            this.path = path;
+            this.fileName = fileName;
+            this.before = before;
+            this.target = target.toString();
+        }
+
+        Job(Job job) {
+            this.id = job.id;
+            this.restore = job.restore;
+            this.path = job.path;
+            this.fileName = job.fileName;
+            this.before = job.before;
+            this.target = job.target;
+            this.state = job.state;
+            this.error = job.error;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRestore() {
+            return restore;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        boolean isFinished() {
+            return STATE_DONE.equals(state) || STATE_FAILED.equals(state)
+                    || STATE_CANCELLED.equals(state) || STATE_SKIPPED.equals(state);
+        }
+    }
+
+    /**
+     * 一次文件夹还原，序列化后返回给界面
+     */
+    public static class Restore {
+        private final String id;
+        private final String folder;
+        private final long before;
+        private final String target;
+        private String state = STATE_EXPANDING;
+        private String error;
+        //展开出的任务数和其中已经结束的任务数
+        private int total;
+        private int finished;
+        //展开期间被暂停，之后展开的任务不开始
+        private transient boolean paused;
+
+        Restore(String id, String folder, long before, Path target) {
+            this.id = id;
+            this.folder = folder;
+            this.before = before;
+            this.target = target.toString();
+        }
+
+        Restore(Restore restore) {
+            this.id = restore.id;
+            this.folder = restore.folder;
+            this.before = restore.before;
+            this.target = restore.target;
+            this.state = restore.state;
+            this.error = restore.error;
+            this.total = restore.total;
+            this.finished = restore.finished;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getFinished() {
+            return finished;
+        }
+    }
+
+    /**
+     * 查询的结果
+     */
+    public static class Status {
+        private final List<Restore> restores;
+        private final List<Job> jobs;
+
+        Status(List<Restore> restores, List<Job> jobs) {
+            this.restores = restores;
+            this.jobs = jobs;
+        }
+
+        public List<Restore> getRestores() {
+            return restores;
+        }
+
+        public List<Job> getJobs() {
+            return jobs;
+        }
+    }
+
+    private final NetworkUtil networkUtil;
+    private final ExecutorService executor;
+    //显示通知会等待几秒，放在单独的线程中，不占用下载线程
+    private final ExecutorService notifier;
+    private final AtomicLong nextId = new AtomicLong();
+
+    //下面的字段访问时需要持有this的锁
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final Map<String, Restore> restores = new LinkedHashMap<>();
+    private final ArrayDeque<String> finished = new ArrayDeque<>();
+
+    public DownloadManager(NetworkUtil networkUtil, Config config) {
+        this.networkUtil = networkUtil;
+        this.executor = Executors.newFixedThreadPool(config.getDownloadConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "download-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.notifier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "download-notify");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 把一个版本下载到下载目录
+     * @param path 文件在客户端的绝对路径
+     * @param fileName 服务器中的文件名称
+     * @return 任务编号
+     * @throws IOException 读取配置时的io异常
+     */
+    public String download(String path, String fileName) throws IOException {
+        Path target = getDownloadFolder().resolve(Paths.get(fileName).getFileName());
+        Job job = new Job("d" + nextId.incrementAndGet(), null, path, fileName, 0, target);
+        synchronized (this) {
+            jobs.put(job.id, job);
+        }
+        executor.execute(() -> run(job));
+        return job.id;
+    }
+
+    /**
+     * 还原文件夹在某个时间的状态，文件列表在后台获取
+     * @param folder 文件夹在客户端的绝对路径
+     * @param before 时间，毫秒
+     * @return 还原编号
+     * @throws IOException 读取配置时的io异常
+     */
+    public String restore(String folder, long before) throws IOException {
+        Path root = Paths.get(folder).toAbsolutePath().normalize();
+        String name = root.getFileName() == null ? "restore" : root.getFileName().toString();
+        Restore restore = new Restore("r" + nextId.incrementAndGet(), root.toString(), before, getDownloadFolder().resolve(name));
+        synchronized (this) {
+            restores.put(restore.id, restore);
+        }
+        executor.execute(() -> expand(restore));
+        return restore.id;
+    }
+
+    private static Path getDownloadFolder() throws IOException {
+        return Paths.get(FileManager.getConfig().getDownLoadPath());
+    }
+
+    /**
+     * 取服务器的文件列表，为文件夹下的每个文件创建任务
+     */
+    private void expand(Restore restore) {
+        Path root = Paths.get(restore.target);
+        String prefix = restore.folder.endsWith(File.separator) ? restore.folder : restore.folder + File.separator;
+        try {
+            networkUtil.getFileMap((path, md5) -> {
+                Path target = root.resolve(path.substring(Math.min(prefix.length(), path.length()))).normalize();
+                if (!path.startsWith(prefix) || !target.startsWith(root)) {
+                    return;
+                }
+                Job job;
+                synchronized (this) {
+                    if (STATE_CANCELLED.equals(restore.state)) {
+                        throw new InterruptedIOException("restore cancelled");
+                    }
+                    job = new Job(restore.id + "-" + (restore.total + 1), restore.id, path, null, restore.before, target);
+                    if (restore.paused) {
+                        job.state = STATE_PAUSED;
+                    }
+                    jobs.put(job.id, job);
+                    restore.total++;
+                }
+                executor.execute(() -> run(job));
+            });
+        } catch (IOException e) {
+            synchronized (this) {
+                if (STATE_CANCELLED.equals(restore.state)) {
+                    return;
+                }
+                logger.error("list files to restore error", e);
+                restore.state = STATE_FAILED;
+                restore.error = e.getMessage();
+            }
+            notify("还原" + restore.folder + "失败", "查看日志文件");
+            return;
+        }
+        logger.info("restore " + restore.folder + " expanded to " + restore.total + " files");
+        synchronized (this) {
+            if (STATE_EXPANDING.equals(restore.state)) {
+                restore.state = STATE_RUNNING;
+            }
+        }
+        restoreProgress(restore);
+    }
+
+    private void run(Job job) {
+        synchronized (this) {
+            //等待期间被暂停或取消
+            if (!STATE_QUEUED.equals(job.state)) {
+                return;
+            }
+            job.state = STATE_RUNNING;
+            job.error = null;
+        }
+        String state;
+        String error = null;
+        try {
+            if (job.fileName == null) {
+                String version = findVersion(job.path, job.before);
+                synchronized (this) {
+                    job.fileName = version;
+                }
+            }
+            if (job.fileName == null) {
+                state = STATE_SKIPPED;
+            } else {
+                Path target = Paths.get(job.target);
+                Files.createDirectories(target.getParent());
+                networkUtil.downloadFile(job.path, job.fileName, target, () -> job.stopTo != null);
+                state = STATE_DONE;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (job.stopTo == null) {
+                logger.error("download " + job.path + " error", e);
+            }
+            state = STATE_FAILED;
+            error = e.getMessage();
+        }
+        finish(job, state, error);
+    }
+
+    /**
+     * 指定时间之前最新的版本，版本名称以上传时间开头
+     * @return 版本名称，没有时为null
+     */
+    private String findVersion(String path, long before) throws IOException {
+        String found = null;
+        for (String version : networkUtil.versions(path)) {
+            int split = version.indexOf('_');
+            try {
+                if (split > 0 && Long.parseLong(version.substring(0, split)) <= before) {
+                    found = version;
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("unknown version name: " + version);
+            }
+        }
+        return found;
+    }
+
+    private void finish(Job job, String state, String error) {
+        boolean requeue = false;
+        boolean discard = false;
+        Restore restore;
+        synchronized (this) {
+            String stopTo = job.stopTo;
+            job.stopTo = null;
+            if (stopTo != null && !STATE_DONE.equals(state)) {
+                //暂停后又马上继续时重新排队
+                requeue = STATE_QUEUED.equals(stopTo);
+                discard = STATE_CANCELLED.equals(stopTo);
+                state = stopTo;
+                error = null;
+            }
+            job.state = state;
+            job.error = error;
+            restore = job.restore == null ? null : restores.get(job.restore);
+            if (job.isFinished()) {
+                finished.add(job.id);
+                if (restore != null) {
+                    restore.finished++;
+                }
+                prune();
+            }
+        }
+        if (discard) {
+            SegmentedDownloader.discard(Paths.get(job.target));
+        }
+        if (requeue) {
+            executor.execute(() -> run(job));
+        }
+        if (restore != null) {
+            restoreProgress(restore);
+        } else if (STATE_DONE.equals(job.state)) {
+            notify(job.fileName + "下载完成", "下载至 " + Paths.get(job.target).getParent());
+        } else if (STATE_FAILED.equals(job.state)) {
+            notify("遇到一些问题", "查看日志文件");
+        }
+    }
+
+    /**
+     * 还原的所有任务都结束后通知
+     */
+    private void restoreProgress(Restore restore) {
+        int done;
+        int failed;
+        synchronized (this) {
+            if (!STATE_RUNNING.equals(restore.state) || restore.finished < restore.total) {
+                return;
+            }
+            restore.state = STATE_DONE;
+            done = 0;
+            failed = 0;
+            for (Job job : jobs.values()) {
+                if (restore.id.equals(job.restore)) {
+                    if (STATE_DONE.equals(job.state)) {
+                        done++;
+                    } else if (STATE_FAILED.equals(job.state)) {
+                        failed++;
+                    }
+                }
+            }
+        }
+        logger.info("restore " + restore.folder + " finished, done: " + done + " failed: " + failed);
+        notify("还原" + restore.folder + "完成", "下载" + done + "个文件，失败" + failed + "个，保存至 " + restore.target);
+    }
+
+    /**
+     * 删除最早结束的任务，避免任务表一直增长
+     */
+    private void prune() {
+        while (finished.size() > MAX_FINISHED) {
+            Job job = jobs.get(finished.poll());
+            if (job != null && job.isFinished()) {
+                jobs.remove(job.id);
+            }
+        }
+    }
+
+    private void notify(String title, String message) {
+        notifier.execute(() -> Util.showWindowsNotification(title, message));
+    }
+
+    /**
+     * 暂停任务，排队中的任务不再开始，运行中的任务在下一次写入后停下
+     * @param id 任务或还原编号
+     * @return 影响的任务数
+     */
+    public synchronized int pause(String id) {
+        Restore restore = restores.get(id);
+        if (restore != null) {
+            restore.paused = true;
+        }
+        int count = 0;
+        for (Job job : select(id)) {
+            if (STATE_QUEUED.equals(job.state)) {
+                job.state = STATE_PAUSED;
+                count++;
+            } else if (STATE_RUNNING.equals(job.state)) {
+                job.stopTo = STATE_PAUSED;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 继续暂停的任务，失败的任务也会重新开始
+     * @param id 任务或还原编号
+     * @return 影响的任务数
+     */
+    public int resume(String id) {
+        List<Job> queued = new ArrayList<>();
+        int count = 0;
+        synchronized (this) {
+            Restore restore = restores.get(id);
+            if (restore != null) {
+                restore.paused = false;
+            }
+            for (Job job : select(id)) {
+                if (STATE_RUNNING.equals(job.state) && STATE_PAUSED.equals(job.stopTo)) {
+                    //还没有停下，停下后重新排队
+                    job.stopTo = STATE_QUEUED;
+                    count++;
+                } else if (STATE_PAUSED.equals(job.state) || STATE_FAILED.equals(job.state)) {
+                    if (STATE_FAILED.equals(job.state)) {
+                        finished.remove(job.id);
+                        Restore owner = job.restore == null ? null : restores.get(job.restore);
+                        if (owner != null) {
+                            owner.finished--;
+                            if (STATE_DONE.equals(owner.state)) {
+                                owner.state = STATE_RUNNING;
+                            }
+                        }
+                    }
+                    job.state = STATE_QUEUED;
+                    queued.add(job);
+                    count++;
+                }
+            }
+        }
+        for (Job job : queued) {
+            executor.execute(() -> run(job));
+        }
+        return count;
+    }
+
+    /**
+     * 取消任务并删除没有下载完的临时文件，已经完成的任务不受影响
+     * @param id 任务或还原编号
+     * @return 影响的任务数
+     */
+    public int cancel(String id) {
+        List<Job> discarded = new ArrayList<>();
+        Set<Restore> owners = new LinkedHashSet<>();
+        int count = 0;
+        synchronized (this) {
+            Restore restore = restores.get(id);
+            if (restore != null && (STATE_EXPANDING.equals(restore.state) || STATE_RUNNING.equals(restore.state))) {
+                restore.state = STATE_CANCELLED;
+            }
+            for (Job job : select(id)) {
+                if (STATE_RUNNING.equals(job.state)) {
+                    job.stopTo = STATE_CANCELLED;
+                    count++;
+                } else if (STATE_QUEUED.equals(job.state) || STATE_PAUSED.equals(job.state) || STATE_FAILED.equals(job.state)) {
+                    if (!STATE_FAILED.equals(job.state)) {
+                        finished.add(job.id);
+                        Restore owner = job.restore == null ? null : restores.get(job.restore);
+                        if (owner != null) {
+                            owner.finished++;
+                            owners.add(owner);
+                        }
+                    }
+                    job.state = STATE_CANCELLED;
+                    discarded.add(job);
+                    count++;
+                }
+            }
+            prune();
+        }
+        for (Job job : discarded) {
+            SegmentedDownloader.discard(Paths.get(job.target));
+        }
+        for (Restore owner : owners) {
+            restoreProgress(owner);
+        }
+        return count;
+    }
+
+    /**
+     * 查询任务状态
+     * @param id 任务或还原编号，为空时返回所有任务
+     * @return 状态的副本
+     */
+    public synchronized Status status(String id) {
+        List<Restore> restoreList = new ArrayList<>();
+        for (Restore restore : restores.values()) {
+            if (id == null || id.isEmpty() || restore.id.equals(id)) {
+                restoreList.add(new Restore(restore));
+            }
+        }
+        List<Job> jobList = new ArrayList<>();
+        for (Job job : select(id)) {
+            jobList.add(new Job(job));
+        }
+        return new Status(restoreList, jobList);
+    }
+
+    /**
+     * 编号对应的任务，还原编号对应其中所有的任务
+     */
+    private List<Job> select(String id) {
+        List<Job> selected = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (id == null || id.isEmpty() || job.id.equals(id) || id.equals(job.restore)) {
+                selected.add(job);
+            }
+        }
+        return selected;
+    }
+}
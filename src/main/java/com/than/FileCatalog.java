@@ -0,0 +1,488 @@
+package com.than;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 内存中的文件目录表，保存每个文件的大小、修改时间、文件标识和摘要，代替以路径字符串为key的map，
+ * 用于几百万文件的目录树：
+ * <ul>
+ *     <li>目录路径只保存一次，文件只保存所在目录的编号和utf-8编码的文件名，文件名连续存放在一个字节数组中</li>
+ *     <li>大小、修改时间、文件标识和二进制摘要存放在以文件编号为下标的基本类型数组中</li>
+ *     <li>路径到编号的查找使用开放寻址的int哈希表</li>
+ *     <li>"本次扫描见过"和"服务器确认过"用位图表示</li>
+ * </ul>
+ * 所有方法都是同步的，扫描线程可以并发调用
+ */
+public class FileCatalog {
+
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+    private static final int INITIAL_CAPACITY = 1024;
+    //摘要的默认宽度，md5和xx128都是16字节，更长的摘要（比如blake3）出现时再扩大
+    private static final int DEFAULT_DIGEST_WIDTH = 16;
+    //文件名区域中的无效字节超过这个值并且超过有效字节时才整理
+    private static final int COMPACT_MIN_GARBAGE = 1 << 20;
+
+    //目录表，目录路径包含末尾的分隔符，被删除的目录为null
+    private final List<String> dirs = new ArrayList<>();
+    private final Map<String, Integer> dirIds = new HashMap<>();
+    private int[] dirFileCounts = new int[INITIAL_CAPACITY];
+    private final ArrayDeque<Integer> freeDirs = new ArrayDeque<>();
+
+    //以文件编号为下标的数组
+    private int[] fileDirs = new int[INITIAL_CAPACITY];
+    private int[] nameOffsets = new int[INITIAL_CAPACITY];
+    private char[] nameLengths = new char[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] lastModifieds = new long[INITIAL_CAPACITY];
+    private long[] fileKeys = new long[INITIAL_CAPACITY];
+    private byte[] digestLengths = new byte[INITIAL_CAPACITY];
+    private int digestWidth = DEFAULT_DIGEST_WIDTH;
+    private byte[] digests = new byte[INITIAL_CAPACITY * DEFAULT_DIGEST_WIDTH];
+    //已使用过的最大编号+1，删除后空出的编号放进freeIds复用
+    private int slotCount;
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+
+    //所有文件名连续存放
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+    private int namesUsed;
+    private int namesGarbage;
+
+    private final BitSet live = new BitSet();
+    private final BitSet seen = new BitSet();
+    private final BitSet confirmed = new BitSet();
+
+    //路径到编号的哈希表，长度为2的幂
+    private int[] table = newTable(INITIAL_CAPACITY * 2);
+    private int tableDeleted;
+    private int count;
+
+    /**
+     * 获取文件的元数据
+     * @param path 文件绝对路径
+     * @return 元数据，没有记录时返回null
+     */
+    public synchronized LocalFileIndex.Entry get(String path) {
+        int id = lookup(path);
+        return id < 0 ? null : entryOf(id);
+    }
+
+    /**
+     * 扫描到文件时调用，获取文件的元数据并标记为本次扫描见过
+     * @param path 文件绝对路径
+     * @return 元数据，没有记录时返回null
+     */
+    public synchronized LocalFileIndex.Entry visit(String path) {
+        int id = lookup(path);
+        if (id < 0) {
+            return null;
+        }
+        seen.set(id);
+        return entryOf(id);
+    }
+
+    /**
+     * 获取文件的摘要
+     * @param path 文件绝对路径
+     * @return 十六进制摘要，没有记录时返回null
+     */
+    public synchronized String getDigest(String path) {
+        int id = lookup(path);
+        return id < 0 ? null : FileData.bytesToHex(digestOf(id));
+    }
+
+    /**
+     * 记录文件的元数据，已有记录时覆盖，"见过"和"服务器确认过"的标记保持不变
+     * @param path 文件绝对路径
+     * @param entry 元数据
+     * @return 是否覆盖了已有的记录
+     */
+    public synchronized boolean put(String path, LocalFileIndex.Entry entry) {
+        int split = path.lastIndexOf(File.separatorChar) + 1;
+        String dir = path.substring(0, split);
+        byte[] name = path.substring(split).getBytes(StandardCharsets.UTF_8);
+        if (name.length > Character.MAX_VALUE) {
+            throw new IllegalArgumentException("file name too long: " + path);
+        }
+        Integer dirId = dirIds.get(dir);
+        int id = -1;
+        int hash = 0;
+        if (dirId != null) {
+            hash = hash(dirId, name, 0, name.length);
+            int pos = indexOf(dirId, name, hash);
+            id = pos < 0 ? -1 : table[pos];
+        }
+        boolean replaced = id >= 0;
+        if (!replaced) {
+            if (dirId == null) {
+                dirId = addDir(dir);
+                hash = hash(dirId, name, 0, name.length);
+            }
+            id = allocateId();
+            fileDirs[id] = dirId;
+            dirFileCounts[dirId]++;
+            nameOffsets[id] = appendName(name);
+            nameLengths[id] = (char) name.length;
+            insert(id, hash);
+            live.set(id);
+            count++;
+        }
+        sizes[id] = entry.getSize();
+        lastModifieds[id] = entry.getLastModified();
+        fileKeys[id] = entry.getFileKey();
+        setDigest(id, entry.getDigest());
+        return replaced;
+    }
+
+    /**
+     * 删除文件的记录
+     * @param path 文件绝对路径
+     * @return 是否有这条记录
+     */
+    public synchronized boolean remove(String path) {
+        int split = path.lastIndexOf(File.separatorChar) + 1;
+        Integer dirId = dirIds.get(path.substring(0, split));
+        if (dirId == null) {
+            return false;
+        }
+        byte[] name = path.substring(split).getBytes(StandardCharsets.UTF_8);
+        int pos = indexOf(dirId, name, hash(dirId, name, 0, name.length));
+        if (pos < 0) {
+            return false;
+        }
+        int id = table[pos];
+        table[pos] = DELETED;
+        tableDeleted++;
+        count--;
+        live.clear(id);
+        seen.clear(id);
+        confirmed.clear(id);
+        namesGarbage += nameLengths[id];
+        if (--dirFileCounts[dirId] == 0) {
+            dirIds.remove(dirs.get(dirId));
+            dirs.set(dirId, null);
+            freeDirs.push(dirId);
+        }
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeIdCount++] = id;
+        if (namesGarbage > COMPACT_MIN_GARBAGE && namesGarbage > namesUsed - namesGarbage) {
+            compactNames();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * 遍历所有记录，遍历期间不能修改目录表
+     * @param action 处理函数
+     */
+    public synchronized void forEach(BiConsumer<String, LocalFileIndex.Entry> action) {
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            action.accept(pathOf(id), entryOf(id));
+        }
+    }
+
+    /**
+     * 开始一次扫描，清除所有"见过"的标记
+     */
+    public synchronized void clearSeen() {
+        seen.clear();
+    }
+
+    /**
+     * 标记文件为本次扫描见过
+     * @param path 文件绝对路径
+     */
+    public synchronized void markSeen(String path) {
+        int id = lookup(path);
+        if (id >= 0) {
+            seen.set(id);
+        }
+    }
+
+    /**
+     * 把若干目录下（包括子目录）的所有文件标记为本次扫描见过，恢复中断的扫描时，已经扫描完的目录不再重新扫描
+     * @param folders 目录的绝对路径，不带末尾的分隔符
+     */
+    public synchronized void markSeenUnder(Set<String> folders) {
+        if (folders.isEmpty()) {
+            return;
+        }
+        BitSet dirMatches = new BitSet(dirs.size());
+        for (int i = 0; i < dirs.size(); i++) {
+            String dir = dirs.get(i);
+            if (dir == null) {
+                continue;
+            }
+            //依次检查目录的每一级上级目录
+            for (int end = dir.indexOf(File.separatorChar, 1); end >= 0; end = dir.indexOf(File.separatorChar, end + 1)) {
+                if (folders.contains(dir.substring(0, end))) {
+                    dirMatches.set(i);
+                    break;
+                }
+            }
+        }
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            if (dirMatches.get(fileDirs[id])) {
+                seen.set(id);
+            }
+        }
+    }
+
+    /**
+     * 遍历一个路径（或以它为前缀的目录）下的文件
+     * @param path 文件或目录的绝对路径，为null表示所有文件
+     * @param onlyUnseen 是否只遍历本次扫描没有见过的文件
+     * @param action 处理函数，参数为文件绝对路径和十六进制摘要
+     */
+    public synchronized void forEachUnder(String path, boolean onlyUnseen, BiConsumer<String, String> action) {
+        BitSet dirMatches = null;
+        int exact = -1;
+        if (path != null) {
+            String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+            dirMatches = new BitSet(dirs.size());
+            for (int i = 0; i < dirs.size(); i++) {
+                String dir = dirs.get(i);
+                if (dir != null && dir.startsWith(prefix)) {
+                    dirMatches.set(i);
+                }
+            }
+            exact = lookup(path);
+        }
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            boolean under = dirMatches == null || id == exact || dirMatches.get(fileDirs[id]);
+            if (under && !(onlyUnseen && seen.get(id))) {
+                action.accept(pathOf(id), FileData.bytesToHex(digestOf(id)));
+            }
+        }
+    }
+
+    /**
+     * 开始和服务器对账，清除所有"服务器确认过"的标记
+     */
+    public synchronized void clearConfirmed() {
+        confirmed.clear();
+    }
+
+    /**
+     * 标记文件为服务器确认过
+     * @param path 文件绝对路径
+     * @return 记录的十六进制摘要，没有记录时返回null
+     */
+    public synchronized String confirm(String path) {
+        int id = lookup(path);
+        if (id < 0) {
+            return null;
+        }
+        confirmed.set(id);
+        return FileData.bytesToHex(digestOf(id));
+    }
+
+    /**
+     * 遍历服务器没有确认过的文件
+     * @param action 处理函数，参数为文件绝对路径
+     */
+    public synchronized void forEachUnconfirmed(Consumer<String> action) {
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            if (!confirmed.get(id)) {
+                action.accept(pathOf(id));
+            }
+        }
+    }
+
+    private int lookup(String path) {
+        int split = path.lastIndexOf(File.separatorChar) + 1;
+        Integer dirId = dirIds.get(path.substring(0, split));
+        if (dirId == null) {
+            return -1;
+        }
+        byte[] name = path.substring(split).getBytes(StandardCharsets.UTF_8);
+        int pos = indexOf(dirId, name, hash(dirId, name, 0, name.length));
+        return pos < 0 ? -1 : table[pos];
+    }
+
+    private String pathOf(int id) {
+        return dirs.get(fileDirs[id]) + new String(names, nameOffsets[id], nameLengths[id], StandardCharsets.UTF_8);
+    }
+
+    private LocalFileIndex.Entry entryOf(int id) {
+        return new LocalFileIndex.Entry(sizes[id], lastModifieds[id], fileKeys[id], digestOf(id));
+    }
+
+    private byte[] digestOf(int id) {
+        int offset = id * digestWidth;
+        return Arrays.copyOfRange(digests, offset, offset + digestLengths[id]);
+    }
+
+    private void setDigest(int id, byte[] digest) {
+        if (digest.length > digestWidth) {
+            widenDigests(digest.length);
+        }
+        System.arraycopy(digest, 0, digests, id * digestWidth, digest.length);
+        digestLengths[id] = (byte) digest.length;
+    }
+
+    /**
+     * 出现更长的摘要时扩大每个摘要占用的宽度
+     */
+    private void widenDigests(int width) {
+        byte[] widened = new byte[fileDirs.length * width];
+        for (int id = 0; id < slotCount; id++) {
+            System.arraycopy(digests, id * digestWidth, widened, id * width, digestLengths[id]);
+        }
+        digests = widened;
+        digestWidth = width;
+    }
+
+    private int addDir(String dir) {
+        int dirId;
+        if (freeDirs.isEmpty()) {
+            dirId = dirs.size();
+            dirs.add(dir);
+            if (dirId == dirFileCounts.length) {
+                dirFileCounts = Arrays.copyOf(dirFileCounts, dirId + (dirId >> 1));
+            }
+        } else {
+            dirId = freeDirs.pop();
+            dirs.set(dirId, dir);
+        }
+        dirIds.put(dir, dirId);
+        dirFileCounts[dirId] = 0;
+        return dirId;
+    }
+
+    private int allocateId() {
+        if (freeIdCount > 0) {
+            return freeIds[--freeIdCount];
+        }
+        if (slotCount == fileDirs.length) {
+            int capacity = slotCount + (slotCount >> 1);
+            fileDirs = Arrays.copyOf(fileDirs, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            lastModifieds = Arrays.copyOf(lastModifieds, capacity);
+            fileKeys = Arrays.copyOf(fileKeys, capacity);
+            digestLengths = Arrays.copyOf(digestLengths, capacity);
+            digests = Arrays.copyOf(digests, capacity * digestWidth);
+        }
+        return slotCount++;
+    }
+
+    private int appendName(byte[] name) {
+        if (namesUsed + name.length > names.length) {
+            long capacity = Math.max((long) names.length + (names.length >> 1), (long) namesUsed + name.length);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("file catalog name area full");
+            }
+            names = Arrays.copyOf(names, (int) capacity);
+        }
+        int offset = namesUsed;
+        System.arraycopy(name, 0, names, offset, name.length);
+        namesUsed += name.length;
+        return offset;
+    }
+
+    /**
+     * 去掉已删除文件的文件名占用的空间
+     */
+    private void compactNames() {
+        byte[] compacted = new byte[Math.max(INITIAL_CAPACITY * 16, namesUsed - namesGarbage)];
+        int used = 0;
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            System.arraycopy(names, nameOffsets[id], compacted, used, nameLengths[id]);
+            nameOffsets[id] = used;
+            used += nameLengths[id];
+        }
+        names = compacted;
+        namesUsed = used;
+        namesGarbage = 0;
+    }
+
+    private int indexOf(int dirId, byte[] name, int hash) {
+        int mask = table.length - 1;
+        for (int pos = hash & mask; ; pos = (pos + 1) & mask) {
+            int id = table[pos];
+            if (id == EMPTY) {
+                return -1;
+            }
+            if (id >= 0 && fileDirs[id] == dirId && nameEquals(id, name)) {
+                return pos;
+            }
+        }
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        int offset = nameOffsets[id];
+        return nameLengths[id] == name.length
+                && Arrays.equals(names, offset, offset + name.length, name, 0, name.length);
+    }
+
+    private void insert(int id, int hash) {
+        if ((count + tableDeleted + 1) * 2 > table.length) {
+            //重建后有效记录最多占1/4，给之后的删除标记留出空间
+            int capacity = table.length;
+            while ((count + 1) * 4 > capacity) {
+                capacity *= 2;
+            }
+            rehash(capacity);
+        }
+        int mask = table.length - 1;
+        int pos = hash & mask;
+        while (table[pos] >= 0) {
+            pos = (pos + 1) & mask;
+        }
+        if (table[pos] == DELETED) {
+            tableDeleted--;
+        }
+        table[pos] = id;
+    }
+
+    /**
+     * 重建哈希表，同时清除删除标记
+     */
+    private void rehash(int capacity) {
+        table = newTable(capacity);
+        tableDeleted = 0;
+        int mask = capacity - 1;
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            int pos = hash(fileDirs[id], names, nameOffsets[id], nameLengths[id]) & mask;
+            while (table[pos] != EMPTY) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = id;
+        }
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int hash(int dirId, byte[] bytes, int offset, int length) {
+        int h = dirId * 0x9E3779B9;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        //打散低位，线性探测对聚集比较敏感
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,227 @@
+package com.than;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 文件变动监听，使用系统的WatchService（linux下是inotify）监听根目录下所有文件夹，
+ * 把创建、修改、删除事件合并去重成一批脏路径，等事件停止一段时间（防抖）后再交给FileManager处理，
+ * 事件一直不停时，一批变动最多等待maxBatchDelay也会交出去
+ */
+public class FileChangeWatcher implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FileChangeWatcher.class);
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final long debounceTime;
+    private final long maxBatchDelay;
+    //程序自己会频繁写入的文件（日志、配置），不忽略的话每次处理变动都会产生新的变动；
+    //还有忽略规则排除的路径，被忽略的目录不会注册监听
+    private final Predicate<Path> ignored;
+
+    //下面两个集合由监听线程写入，poll时取走，访问时需要持有this的锁
+    private final Set<Path> dirtyFiles = new LinkedHashSet<>();
+    private final Set<Path> rescanFolders = new LinkedHashSet<>();
+    private long lastEventTime;
+    //这一批变动中第一个事件的时间
+    private long firstEventTime;
+
+    private Thread watchThread;
+    private volatile boolean closed;
+
+    /**
+     * 一批变动，files是发生变动的路径（可能已经被删除），folders是需要整体重新扫描的目录
+     */
+    public static class ChangeBatch {
+        private final Set<Path> files;
+        private final Set<Path> folders;
+
+        ChangeBatch(Set<Path> files, Set<Path> folders) {
+            this.files = files;
+            this.folders = folders;
+        }
+
+        public Set<Path> getFiles() {
+            return files;
+        }
+
+        public Set<Path> getFolders() {
+            return folders;
+        }
+
+        public boolean isEmpty() {
+            return files.isEmpty() && folders.isEmpty();
+        }
+    }
+
+    /**
+     * 注册所有根目录，注册失败（比如inotify数量达到上限）时抛出异常，调用方应回退到定时全量扫描
+     * @param roots 根目录
+     * @param debounceTime 防抖时间，最后一次事件之后安静这么久才会返回这一批变动
+     * @param maxBatchDelay 一批变动从第一个事件开始最多等待的时间
+     * @param ignored 需要忽略的路径
+     * @throws IOException 注册监听时的io异常
+     */
+    public FileChangeWatcher(List<Path> roots, long debounceTime, long maxBatchDelay, Predicate<Path> ignored) throws IOException {
+        this.debounceTime = debounceTime;
+        this.maxBatchDelay = maxBatchDelay;
+        this.ignored = ignored;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            for (Path root : roots) {
+                registerAll(root);
+            }
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        logger.info("watching folders: " + keys.size());
+    }
+
+    /**
+     * 开启后台监听线程
+     */
+    public void start() {
+        watchThread = new Thread(this::processEvents, "file-change-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * 递归注册目录及其所有子目录
+     * @param start 目录
+     * @throws IOException 注册时的io异常
+     */
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (ignored.test(dir)) {
+                    //被忽略的目录（比如node_modules）不需要监听，也不占用inotify的数量
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                keys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                logger.warn("skip unwatchable path: " + file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 监听线程的主循环
+     */
+    private void processEvents() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = keys.get(key);
+            if (dir == null) {
+                key.reset();
+                continue;
+            }
+            Set<Path> files = new LinkedHashSet<>();
+            Set<Path> folders = new LinkedHashSet<>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                WatchEvent.Kind<?> kind = event.kind();
+                if (kind == OVERFLOW) {
+                    //事件丢失，只重新扫描这个目录
+                    folders.add(dir);
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                if (ignored.test(child)) {
+                    continue;
+                }
+                if (kind == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    //新目录需要注册，注册之前里面可能已经有文件了，所以整体扫描一次
+                    try {
+                        registerAll(child);
+                    } catch (IOException e) {
+                        logger.error("register folder error: " + child, e);
+                    }
+                    folders.add(child);
+                } else {
+                    files.add(child);
+                }
+            }
+            if (!key.reset()) {
+                //目录已经被删除，删除事件会由上级目录报告
+                keys.remove(key);
+            }
+            if (files.isEmpty() && folders.isEmpty()) {
+                continue;
+            }
+            synchronized (this) {
+                lastEventTime = System.currentTimeMillis();
+                if (dirtyFiles.isEmpty() && rescanFolders.isEmpty()) {
+                    firstEventTime = lastEventTime;
+                }
+                dirtyFiles.addAll(files);
+                rescanFolders.addAll(folders);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 等待一批变动，有变动并且最近debounceTime内没有新事件，或者第一个事件已经等待了maxBatchDelay才返回
+     * @param timeout 最长等待时间
+     * @return 这一批变动，超时没有变动时返回空的批次
+     * @throws InterruptedException 等待被中断
+     */
+    public synchronized ChangeBatch poll(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            long now = System.currentTimeMillis();
+            boolean pending = !dirtyFiles.isEmpty() || !rescanFolders.isEmpty();
+            long release = Math.min(lastEventTime + debounceTime, firstEventTime + maxBatchDelay);
+            if (pending && now >= release) {
+                break;
+            }
+            if (!pending && now >= deadline) {
+                break;
+            }
+            long wait = pending ? release - now : deadline - now;
+            wait(Math.max(1, wait));
+        }
+        ChangeBatch batch = new ChangeBatch(new LinkedHashSet<>(dirtyFiles), new LinkedHashSet<>(rescanFolders));
+        dirtyFiles.clear();
+        rescanFolders.clear();
+        return batch;
+    }
+
+    /**
+     * 监听线程是否还在正常工作
+     * @return true为正常
+     */
+    public boolean isAlive() {
+        return !closed && watchThread != null && watchThread.isAlive();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+    }
+}
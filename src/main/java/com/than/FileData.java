@@ -1,19 +1,44 @@
 package com.than;
 
 import java.io.*;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 
 /**
  * 这个类是获取或转换一些文件的信息
  */
 public class FileData {
+    //大于这个大小的文件使用内存映射读取，小文件直接读进直接内存更快
+    private static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    //每次映射的区域大小
+    private static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    //windows下文件被映射期间无法删除或截断，直到映射被gc回收，为了不影响用户操作文件，windows下只使用直接内存读取
+    private static final boolean MAP_ENABLED = !System.getProperty("os.name", "").toLowerCase().contains("win");
+
+    private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
     /**
      * 获取文件的md5值，为了比对文件是否发生了变化
      * @param file 文件对象
      * @return md5值，字符串形式返回
      */
     public static String getMd5(File file) throws IOException, NoSuchAlgorithmException {
+        return getDigest(file, HashEngine.MD5);
+    }
+
+    /**
+     * 使用指定算法获取文件摘要，和md5一样，摘要包含文件名和文件内容
+     * @param file 文件对象
+     * @param algorithm 算法名称，见HashEngine
+     * @return 摘要，十六进制字符串形式返回
+     */
+    public static String getDigest(File file, String algorithm) throws IOException {
         if (!file.exists()) {
             throw new FileNotFoundException("文件不存在: " + file.getAbsolutePath());
         }
@@ -22,17 +47,102 @@ public class FileData {
             throw new IOException("指定路径是目录，不是文件: " + file.getAbsolutePath());
         }
 
-        String fileName = file.getName();
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        md.update(fileName.getBytes("UTF-8"));
-        try (InputStream is = new FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = is.read(buffer)) > 0) {
-                md.update(buffer, 0, read);
+        FileHasher hasher = HashEngine.create(algorithm);
+        hasher.update(file.getName().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            hashRange(channel, 0, channel.size(), hasher);
+        }
+        return bytesToHex(hasher.digest());
+    }
+
+    /**
+     * 计算文件一段区域的摘要，大区域分段映射，小区域用直接内存按位置读取，不会改变channel的位置
+     * @param channel 文件
+     * @param position 起始位置
+     * @param length 长度，超过文件末尾时只读到文件末尾
+     * @param hasher 摘要算法
+     * @throws IOException io异常
+     */
+    static void hashRange(FileChannel channel, long position, long length, FileHasher hasher) throws IOException {
+        long end = Math.min(position + length, channel.size());
+        if (MAP_ENABLED && end - position >= MAP_THRESHOLD) {
+            try {
+                for (long pos = position; pos < end; pos += MAP_REGION_SIZE) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_REGION_SIZE, end - pos));
+                    hasher.update(region);
+                }
+            } catch (InternalError e) {
+                //文件在映射期间被截断
+                throw new IOException("file truncated while reading", e);
+            }
+            return;
+        }
+        ByteBuffer buffer = readBuffer.get();
+        long pos = position;
+        while (pos < end) {
+            buffer.clear();
+            if (end - pos < buffer.capacity()) {
+                buffer.limit((int) (end - pos));
+            }
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                break;
+            }
+            pos += read;
+            buffer.flip();
+            hasher.update(buffer);
+        }
+    }
+
+    /**
+     * 把文件路径转换成固定长度的标识，用来给数据目录中和单个文件相关的数据命名
+     * @param path 文件绝对路径
+     * @return 路径的md5
+     */
+    public static String getPathKey(String path) {
+        FileHasher hasher = HashEngine.create(HashEngine.MD5);
+        hasher.update(path.getBytes(StandardCharsets.UTF_8));
+        return bytesToHex(hasher.digest());
+    }
+
+    /**
+     * 获取文件标识（unix下是设备号和inode）的64位摘要，文件系统不支持时返回0
+     * @param attrs 文件属性
+     * @return 文件标识
+     */
+    public static long getFileKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        if (key == null) {
+            return 0;
+        }
+        //FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (char c : key.toString().toCharArray()) {
+            hash ^= c;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 将十六进制字符串转换为字节数组
+     * @param hex 十六进制字符串
+     * @return 字节数组，格式不正确时返回null
+     */
+    public static byte[] hexToBytes(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
             }
+            bytes[i] = (byte) ((high << 4) | low);
         }
-        return bytesToHex(md.digest());
+        return bytes;
     }
 
     /**
@@ -40,7 +150,7 @@ public class FileData {
      * @param bytes 字节数组
      * @return 十六进制字符串
      */
-    private static String bytesToHex(byte[] bytes) {
+    public static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder(32);
         for (byte b : bytes) {
             String hex = Integer.toHexString(0xFF & b);
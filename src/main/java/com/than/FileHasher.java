@@ -0,0 +1,30 @@
+package com.than;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 文件摘要算法的接口，每个实例只用于计算一个文件，不需要线程安全，
+ * 新的算法实现这个接口后通过HashEngine注册即可在配置中选择
+ */
+public interface FileHasher {
+
+    /**
+     * 写入数据，buffer中position到limit之间的数据都会被消费
+     * @param buffer 数据，可以是堆内、直接内存或内存映射的buffer
+     */
+    void update(ByteBuffer buffer);
+
+    /**
+     * 完成计算并返回摘要，调用后实例不能再使用
+     * @return 二进制摘要
+     */
+    byte[] digest();
+
+    /**
+     * 写入字节数组
+     * @param bytes 数据
+     */
+    default void update(byte[] bytes) {
+        update(ByteBuffer.wrap(bytes));
+    }
+}
@@ -1,12 +1,12 @@
 package com.than;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.function.Function;
 
 /**
  * 这个类是整个程序基础功能最核心的类，操作文件，控制上传等
@@ -14,24 +14,58 @@ import java.util.function.Function;
 public class FileManager {
 
     public static String configFileName = "config.json";
+    //程序自己的数据目录，存放本地索引等，扫描时会跳过
+    public static String dataFolderName = ".than_drive";
     private static Config config;
 
-    //这个队列会在每次扫描完成后被填充，内容是发生了变化或新加入的文件的绝对路径
-    private final ArrayDeque<File> fileList;
-
     private static Gson gson;
     private static final Logger logger = Logger.getLogger(FileManager.class);
 
+    //扫描线程和上传线程之间的队列长度，队列满时扫描会等待上传
+    private static final int UPLOAD_QUEUE_SIZE = 1024;
+    //每次增量同步最多发送的本地变更数量
+    private static final int SYNC_BATCH_SIZE = 10000;
+
+    //服务器功能名：支持按序号增量同步
+    public static final String FEATURE_SYNC_DELTA = "sync_delta";
+
     /**
-     * 存储所有文件的md5值，方便比对,
-     * 这个map可能会存储已经删除的文件夹里的文件
+     * 存储所有文件的元数据和md5值，方便比对，
+     * 同时记录每次扫描到的文件（扫描完成后没见过的文件就是已经删除的文件），
+     * 这个目录表可能会存储已经删除的文件夹里的文件
      */
-    private Map<String, String> fileMd5Map;
+    private final FileCatalog catalog;
 
     /**
-     * 这个set存储的是每次扫描到的文件,扫描完成后会和服务器map进行一次同步，确保去掉map中已经删除掉的文件
+     * 本地持久化的文件元数据索引，启动时用它恢复目录表，不需要等待服务器，对目录表的修改都要通过它写入
      */
-    private final HashSet<String> curFileSet;
+    private final LocalFileIndex localIndex;
+
+    //当前使用的摘要算法，启动时和服务器协商
+    private volatile String hashAlgorithm = HashEngine.MD5;
+    //树形摘要的阈值，服务器支持树形摘要时才使用配置的值，否则为0，所有文件都用整个文件的摘要
+    private volatile long treeHashThreshold;
+
+    //大文件的并行分段摘要
+    private final TreeHasher treeHasher;
+
+    //服务器已有的块，上传前用来跳过明显是新内容的询问
+    private final ChunkFilter knownChunks;
+
+    //增量同步的本地变更日志和服务器变更游标
+    private final SyncJournal syncJournal;
+
+    //全量扫描的进度，程序中断后从这里继续
+    private final ScanCheckpoint scanCheckpoint;
+
+    //还没有被服务器接受的上传和删除，失败的操作按退避时间重试，程序重启后继续
+    private final UploadOutbox outbox;
+
+    //忽略规则，每次全量扫描前按当前配置重新编译，监听线程也会读取
+    private volatile IgnoreRules ignoreRules;
+
+    //最近创建的上传策略，扫描时用它判断哪些文件可以等到上传时再计算摘要，还没有连接过服务器时为null
+    private volatile FileUploader uploader;
 
     //为了在pc忙碌时，此程序尽量不要影响前台程序或高资源消耗程序的运行，此程序则需要监控资源使用情况，这个对象提供此功能
     private static SystemResourceMonitor monitor = new SystemResourceMonitor();
@@ -40,20 +74,242 @@ public class FileManager {
     public FileManager() throws IOException {
         gson = new Gson();
         config = getConfig();
-        fileList = new ArrayDeque<>();
-        curFileSet =new HashSet<>();
+        catalog = new FileCatalog();
+        localIndex = new LocalFileIndex(getDataPath("file_index.dat"), catalog);
+        monitor.setNetworkShaped(config.isAdaptiveBandwidth());
+        treeHasher = new TreeHasher(config.getTreeHashSegmentSize(), config.getScanParallelism(), config.getAppendOnlyExtensions());
+        knownChunks = new ChunkFilter(getDataPath("chunk_filter.dat"), config.getDedupFilterCapacity());
+        syncJournal = new SyncJournal(getDataPath("sync_journal.dat"), getDataPath("sync_state.json"));
+        ignoreRules = new IgnoreRules(config, getRootFolderPaths());
+        scanCheckpoint = new ScanCheckpoint(getDataPath("scan_checkpoint.dat"), localIndex, config.getScanCheckpointInterval());
+        outbox = new UploadOutbox(getDataPath("upload_outbox.dat"), config.getRetryBaseTime(), config.getRetryMaxTime());
+        FileSnapshot.cleanStaging();
+    }
+
+    /**
+     * 获取数据目录下的文件路径，数据目录不存在时会创建
+     * @param name 文件名
+     * @return 文件路径
+     * @throws IOException 创建目录时的io异常
+     */
+    public static Path getDataPath(String name) throws IOException {
+        Path folder = Paths.get(dataFolderName);
+        Files.createDirectories(folder);
+        return folder.resolve(name);
     }
 
     /**
-     * md5 map记录了上一次上传的文件的md5，其中key是文件绝对路径，value是文件md5。这个值需要在每次程序启动时从后端获取
-     * 为什么需要从后端获取，因为这个值在后端是长期存在在内存中的（为了记录当前已经上传过的文件），因此本地没有必要单独使用文件将其持久化
-     * 并且每次启动程序先获取这个文件还能检测后端是否在线
-     * @param map map的json
+     * 和服务器协商摘要算法和是否使用树形摘要，配置的算法服务器支持时才使用，否则使用md5；
+     * 服务器声明支持树形摘要时大文件才使用树形摘要，否则所有文件都用整个文件的摘要。
+     * 服务器不在线时沿用上一次协商的结果，避免摘要来回切换导致文件被重复上传
+     * @param networkUtil 网络工具
+     * @throws IOException 读写协商结果时的io异常
      */
-    public void setFileMd5Map(String map) {
-        this.fileMd5Map = gson.fromJson(map, new TypeToken<>() {
+    public void negotiateHashAlgorithm(NetworkUtil networkUtil) throws IOException {
+        String wanted = config.getHashAlgorithm();
+        if (!HashEngine.isSupported(wanted)) {
+            wanted = HashEngine.MD5;
+        }
+        boolean wantTree = config.getTreeHashThreshold() > 0;
+        ServerFeatures features = null;
+        if (!HashEngine.MD5.equals(wanted) || wantTree) {
+            try {
+                features = networkUtil.getServerFeatures();
+                logger.info("server features: " + features);
+            } catch (IOException e) {
+                logger.warn("server offline, use last negotiated digest");
+            }
+        }
+        Path savedFile = getDataPath("hash_algorithm");
+        String algorithm;
+        if (HashEngine.MD5.equals(wanted)) {
+            algorithm = wanted;
+        } else if (features != null) {
+            algorithm = features.supportsHash(wanted) ? wanted : HashEngine.MD5;
+        } else {
+            String saved = Files.exists(savedFile) ? Files.readString(savedFile).trim() : HashEngine.MD5;
+            algorithm = HashEngine.isSupported(saved) ? saved : HashEngine.MD5;
+        }
+        Files.writeString(savedFile, algorithm);
+
+        Path treeFile = getDataPath("tree_digest");
+        boolean tree;
+        if (!wantTree) {
+            tree = false;
+        } else if (features != null) {
+            tree = features.supports(TreeHasher.FEATURE_TREE_DIGEST);
+        } else {
+            tree = Files.exists(treeFile) && Boolean.parseBoolean(Files.readString(treeFile).trim());
+        }
+        Files.writeString(treeFile, String.valueOf(tree));
+
+        hashAlgorithm = algorithm;
+        treeHashThreshold = tree ? config.getTreeHashThreshold() : 0;
+        networkUtil.setHashAlgorithm(algorithm);
+        networkUtil.setTreeDigest(treeHashThreshold, config.getTreeHashSegmentSize());
+        logger.info("hash algorithm: " + algorithm + " tree digest: " + tree);
+    }
+
+    /**
+     * 本地索引中是否已经有数据，有的话启动时不需要等待服务器返回md5 map
+     * @return true为有本地数据
+     */
+    public boolean hasLocalIndex() {
+        return !localIndex.isEmpty();
+    }
+
+    /**
+     * md5 map记录了上一次上传的文件的md5，其中key是文件绝对路径，value是文件md5。
+     * 启动时先从本地索引恢复，服务器返回的map只用来和本地数据对账，以服务器为准，
+     * 服务器支持增量同步时只获取上次同步之后的变更
+     * @param networkUtil 网络工具
+     * @throws IOException 获取map时的网络异常或写本地索引时的io异常
+     */
+    public void loadFileMap(NetworkUtil networkUtil) throws IOException {
+        if (networkUtil.features().supports(FEATURE_SYNC_DELTA)) {
+            syncDelta(networkUtil);
+        } else {
+            reloadFileMap(networkUtil);
+        }
+    }
+
+    /**
+     * 获取服务器的整个map并对账
+     * @param networkUtil 网络工具
+     * @throws IOException 获取map时的网络异常或写本地索引时的io异常
+     */
+    private void reloadFileMap(NetworkUtil networkUtil) throws IOException {
+        reconcileFileMap(networkUtil::getFileMap);
+    }
+
+    /**
+     * 逐项读取服务器map的函数
+     */
+    @FunctionalInterface
+    private interface FileMapReader {
+        void read(NetworkUtil.MapEntryConsumer consumer) throws IOException;
+    }
+
+    /**
+     * 用服务器的map对账，map是边读边处理的，不会整个放进内存：
+     * md5不一致的文件以服务器为准，并清除本地记录的文件属性，保证下次扫描时会重新比对，
+     * 整个map读完后，服务器没有确认过的文件从本地删除（下次扫描会重新上传），读取中途失败时不删除任何记录
+     * @param reader 读取服务器map的函数
+     * @throws IOException 网络异常或写本地索引时的io异常
+     */
+    private synchronized void reconcileFileMap(FileMapReader reader) throws IOException {
+        catalog.clearConfirmed();
+        reader.read((path, md5) -> {
+            if (!md5.equals(catalog.confirm(path))) {
+                recordIndex(path, null, md5);
+                catalog.confirm(path);
+            }
         });
-        fileMd5Map = (fileMd5Map == null) ? new HashMap<>() : fileMd5Map;
+        List<String> removed = new ArrayList<>();
+        catalog.forEachUnconfirmed(removed::add);
+        for (String path : removed) {
+            forgetFile(path);
+        }
+        localIndex.compactIfNeeded();
+    }
+
+    /**
+     * 增量同步：分批发送服务器还没有确认的本地变更，并应用游标之后的服务器变更，
+     * 服务器认为游标失效时退回到全量对账。没有变更时只有一次很小的请求
+     * @param networkUtil 网络工具
+     * @throws IOException 网络异常或写本地索引时的io异常
+     */
+    private synchronized void syncDelta(NetworkUtil networkUtil) throws IOException {
+        boolean more = true;
+        while (true) {
+            List<SyncJournal.Change> changes = syncJournal.pending(SYNC_BATCH_SIZE);
+            if (changes.isEmpty() && !more) {
+                break;
+            }
+            SyncJournal.Response response = networkUtil.syncDelta(changes, syncJournal.getCursor());
+            if (!changes.isEmpty() && response.getAck() < changes.get(changes.size() - 1).getSeq()) {
+                throw new IOException("server did not ack local changes, ack: " + response.getAck());
+            }
+            if (response.isReset()) {
+                logger.info("sync cursor reset, reconcile whole map");
+                reloadFileMap(networkUtil);
+            } else {
+                for (SyncJournal.Change change : response.getChanges()) {
+                    applyServerChange(change);
+                }
+            }
+            for (SyncJournal.Change rejected : response.getRejected()) {
+                //上传没有被服务器记录下来，以服务器为准，下次扫描会重新上传
+                logger.warn("upload rejected by server: " + rejected.getPath());
+                applyServerChange(rejected);
+            }
+            syncJournal.setCursor(response.getCursor());
+            syncJournal.ack(response.getAck());
+            more = response.isMore() && !response.isReset();
+        }
+        localIndex.compactIfNeeded();
+    }
+
+    /**
+     * 应用一个服务器变更，md5为null的上传变更表示服务器没有这个文件
+     * @param change 服务器变更
+     * @throws IOException 写本地索引时的io异常
+     */
+    private void applyServerChange(SyncJournal.Change change) throws IOException {
+        String path = change.getPath();
+        if (path == null) {
+            return;
+        }
+        if (SyncJournal.OP_DELETE.equals(change.getOp()) || change.getMd5() == null) {
+            if (catalog.get(path) != null) {
+                forgetFile(path);
+            }
+        } else if (!change.getMd5().equals(catalog.getDigest(path))) {
+            recordIndex(path, null, change.getMd5());
+        }
+    }
+
+    /**
+     * 删除一个文件的所有本地记录
+     * @param path 文件绝对路径
+     * @throws IOException 写本地索引时的io异常
+     */
+    private void forgetFile(String path) throws IOException {
+        localIndex.remove(path);
+        treeHasher.forget(path);
+        ChunkManifest.forget(path);
+    }
+
+    /**
+     * 记录文件元数据到本地索引
+     * @param path 文件绝对路径
+     * @param stat 文件属性，为null表示只知道md5
+     * @param md5 文件md5
+     * @throws IOException 写本地索引时的io异常
+     */
+    private void recordIndex(String path, FileSnapshot.Stat stat, String md5) throws IOException {
+        byte[] digest = FileData.hexToBytes(md5);
+        if (digest == null) {
+            return;
+        }
+        if (stat == null) {
+            localIndex.put(path, new LocalFileIndex.Entry(-1, -1, 0, digest));
+        } else {
+            localIndex.put(path, new LocalFileIndex.Entry(stat.getSize(), stat.getModified(), stat.getFileKey(), digest));
+        }
+    }
+
+    /**
+     * 本地索引中记录的文件属性，上传时用它判断扫描时计算的摘要是否还能用
+     * @param path 文件绝对路径
+     * @return 文件属性，没有记录或者只记录了md5时返回null
+     */
+    private FileSnapshot.Stat indexedStat(String path) {
+        LocalFileIndex.Entry entry = catalog.get(path);
+        if (entry == null || entry.getSize() < 0) {
+            return null;
+        }
+        return new FileSnapshot.Stat(entry.getSize(), entry.getLastModified(), entry.getFileKey());
     }
 
     /**
@@ -102,6 +358,8 @@ public class FileManager {
         if (config != null) {
             writeToConfig(config);
             FileManager.config=config;
+            //限速线程每次调整都会读取新的配置，资源监控需要单独更新
+            monitor.setNetworkShaped(config.isAdaptiveBandwidth());
         }
     }
 
@@ -125,76 +383,193 @@ public class FileManager {
     }
 
 
+    /**
+     * 扫描设置的根目录，根目录之间和子目录之间都是并行扫描的，
+     * 需要上传的文件会放进发件箱，扫描到的文件会标记为见过，
+     * 被忽略的文件不会标记为见过，同步时会当作已删除的文件。
+     * 扫描进度定期写入检查点，上次的扫描被中断时，已经扫描完的目录不再重新扫描
+     */
+    public void scanFiles() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        scanFiles(null);
+    }
+
     /**
      * 扫描设置的根目录
-     *
-     * @return 是否目录需要更新，返回true表示需要，否则不需要
+     * @param uploads 上传线程池，不为null时需要上传的文件直接交给它，扫描和上传同时进行；
+     *                为null时只留在发件箱中
      */
-    public ArrayDeque<File> scanFiles() throws IOException, NoSuchAlgorithmException, InterruptedException {
-        ArrayDeque<File> files;
-        ArrayList<File> rootFolderList=new ArrayList<>();
-        for (String rootFolder : config.getRootFolders()) {
-            rootFolderList.add(new File(rootFolder));
+    private void scanFiles(UploadPool uploads) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        List<Path> roots = getRootFolderPaths();
+        ignoreRules = new IgnoreRules(config, roots);
+        catalog.clearSeen();
+        Set<String> doneFolders = scanCheckpoint.beginScan(roots);
+        if (!doneFolders.isEmpty()) {
+            logger.info("resume scan, skip finished folders: " + doneFolders.size());
+            catalog.markSeenUnder(doneFolders);
         }
-        for (File file : rootFolderList) {
-            files = recursionScanFiles(file);
-            fileList.addAll(files);
-        }
-        return fileList;
+        scanFolders(roots, scanCheckpoint, uploads);
+        scanCheckpoint.finishScan();
     }
 
+    /**
+     * 获取配置的根目录
+     * @return 根目录路径
+     */
+    private List<Path> getRootFolderPaths() {
+        List<Path> rootFolderList = new ArrayList<>();
+        for (String rootFolder : config.getRootFolders()) {
+            rootFolderList.add(Paths.get(rootFolder));
+        }
+        return rootFolderList;
+    }
 
     /**
-     * 递归扫描文件夹下的目录
-     * @param folder 目录
-     * @return 需要更新的文件
+     * 并行扫描若干目录，扫描到的文件在目录表中标记为见过，需要更新的文件放进发件箱
+     * @param folders 要扫描的目录
+     * @param checkpoint 扫描检查点，只有全量扫描需要记录进度，其他时候为null
+     * @param uploads 上传线程池，为null时需要上传的文件只留在发件箱中
      */
-    private ArrayDeque<File> recursionScanFiles(File folder) throws IOException, NoSuchAlgorithmException, InterruptedException {
-        File[] files = folder.listFiles();
-        ArrayDeque<File> fileList = new ArrayDeque<>();
-        for (File file : files) {
-            if (file.isDirectory()) {
-                monitor.waitForLowUsage();
-                fileList.addAll(recursionScanFiles(file));
-            } else {
-                curFileSet.add(file.getAbsolutePath());
-                if (shouldFileUpdate(file)) {
-                    fileList.add(file);
-                }
+    private void scanFolders(List<Path> folders, ScanCheckpoint checkpoint, UploadPool uploads) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        ParallelFileScanner scanner = new ParallelFileScanner(config.getScanParallelism(), monitor, getRootFolderPaths());
+        scanner.scan(folders, ignoreRules, checkpoint, (file, attrs) -> {
+            if (isDataFile(file)) {
+                return;
             }
-        }
-        return fileList;
+            String path = file.toAbsolutePath().toString();
+            if (!shouldFileUpdate(path, attrs) || uploads == null) {
+                return;
+            }
+            UploadOutbox.Item item = outbox.claim(path);
+            if (item == null) {
+                return;
+            }
+            try {
+                uploads.submit(item);
+            } catch (InterruptedException e) {
+                outbox.release(item);
+                throw e;
+            }
+        });
     }
 
 
     /**
-     * 判断文件是否需要上传
-     * @param file 目标文件对象
+     * 判断文件是否需要上传，先比对本地索引中记录的大小、修改时间和文件标识，都一致时直接认为没有变化，
+     * 不一致时才计算一次md5，算出的md5会记录下来，上传时直接复用。
+     * 内容一定变了并且会整个文件上传的文件不在扫描时计算，上传时边发送边计算。
+     * 最近修改过还没有稳定的文件，和计算摘要期间发生了变化的文件，不记录摘要，放进发件箱等稳定后再在上传时计算
+     * @param path 目标文件绝对路径
+     * @param attrs 扫描时读取到的文件属性
      * @return 是否需要上传，true为需要，false则不需要
      * @throws IOException 读取目标文件时的io异常
      * @throws NoSuchAlgorithmException 获取md5函数的算法异常
      */
-    private boolean shouldFileUpdate(File file) throws IOException, NoSuchAlgorithmException {
-        if (!fileMd5Map.containsKey(file.getAbsolutePath())) {
-            fileMd5Map.put(file.getAbsolutePath(), FileData.getMd5(file));
+    private boolean shouldFileUpdate(String path, BasicFileAttributes attrs) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        LocalFileIndex.Entry entry = catalog.visit(path);
+        if (entry != null && isStatUnchanged(entry, attrs)) {
+            return false;
+        }
+        long unsettled = FileSnapshot.Stat.of(attrs).unsettled(config.getSettleTime(), System.currentTimeMillis());
+        if (unsettled > 0) {
+            deferChanging(path, entry, unsettled);
             return true;
         }
-        if (file.lastModified() > config.getLastUpdateTime()) {
-            //这里再判断一遍md5是为了程序可靠性，因为有时文件未修改，但修改时间会发生改变
-            if (!fileMd5Map.get(file.getAbsolutePath()).equals(FileData.getMd5(file))) {
-                fileMd5Map.put(file.getAbsolutePath(), FileData.getMd5(file));
-                return true;
+        FileUploader current = uploader;
+        if ((entry == null || entry.getSize() != attrs.size()) && current != null && current.canDeferDigest(attrs.size())) {
+            //新文件或者大小变了的文件内容一定变了，摘要等到上传时边发送边计算，文件只读一次。
+            //本地索引先记下没有摘要、属性未知的记录，上传前程序中断的话下次扫描还会处理它
+            outbox.put(path, null);
+            localIndex.put(path, new LocalFileIndex.Entry(-1, -1, 0, new byte[0]));
+            if (entry == null) {
+                catalog.markSeen(path);
             }
+            return true;
         }
-        return false;
+        //文件属性变了不代表内容一定变了，有时文件未修改，但修改时间会发生改变，所以还要比对md5
+        String md5 = computeDigest(path, attrs);
+        if (!FileSnapshot.Stat.of(attrs).equals(FileSnapshot.Stat.read(Paths.get(path)))) {
+            //计算期间文件被写入，算出的摘要对应的不是任何一个完整的版本
+            deferChanging(path, entry, config.getSettleTime());
+            return true;
+        }
+        boolean changed = entry == null || !md5.equals(FileData.bytesToHex(entry.getDigest()));
+        if (changed) {
+            //先记到发件箱再写本地索引，索引里有了新摘要的文件重启后一定还会上传
+            outbox.put(path, md5);
+        }
+        recordIndex(path, FileSnapshot.Stat.of(attrs), md5);
+        if (entry == null) {
+            catalog.markSeen(path);
+        }
+        return changed;
     }
 
     /**
-     * 外部获取md5 map
-     * @return md5 map
+     * 还在变化的文件放进发件箱，等待一段时间后在上传时计算摘要，本地索引中的记录不变，
+     * 新文件和推迟计算摘要的文件一样先记下一条没有摘要的记录
+     * @param path 文件绝对路径
+     * @param entry 本地索引中的记录，新文件为null
+     * @param delay 等待的毫秒数
+     * @throws IOException 写发件箱或本地索引时的io异常
      */
-    public Map<String, String> getFileMd5Map() {
-        return fileMd5Map;
+    private void deferChanging(String path, LocalFileIndex.Entry entry, long delay) throws IOException {
+        logger.info("file still changing, postpone " + delay + " ms: " + path);
+        outbox.defer(path, delay);
+        if (entry == null) {
+            localIndex.put(path, new LocalFileIndex.Entry(-1, -1, 0, new byte[0]));
+            catalog.markSeen(path);
+        }
+    }
+
+    /**
+     * 计算文件摘要，服务器支持树形摘要时超过阈值的大文件使用并行分段摘要
+     * @param path 文件绝对路径
+     * @param attrs 文件属性
+     * @return 摘要
+     * @throws IOException 读取文件时的io异常
+     */
+    private String computeDigest(String path, BasicFileAttributes attrs) throws IOException, InterruptedException {
+        long threshold = treeHashThreshold;
+        if (threshold > 0 && attrs.size() >= threshold) {
+            return treeHasher.digest(Paths.get(path), attrs, hashAlgorithm);
+        }
+        return FileData.getDigest(new File(path), hashAlgorithm);
+    }
+
+    /**
+     * 上传时从快照计算摘要，算法和扫描时一致
+     * @param path 原文件绝对路径
+     * @param snapshot 文件的快照
+     * @return 摘要
+     * @throws IOException 读取文件时的io异常
+     */
+    private String computeDigest(String path, FileSnapshot snapshot) throws IOException, InterruptedException {
+        long threshold = treeHashThreshold;
+        FileSnapshot.Stat stat = snapshot.getStat();
+        if (threshold > 0 && stat.getSize() >= threshold) {
+            return treeHasher.digest(Paths.get(path), snapshot.getPath(), stat, hashAlgorithm);
+        }
+        return FileData.getDigest(snapshot.getPath().toFile(), hashAlgorithm);
+    }
+
+    /**
+     * 比对本地索引中记录的文件属性，只知道md5的记录（大小为-1）不会一致
+     * @param entry 本地索引中的记录
+     * @param attrs 当前的文件属性
+     * @return true表示文件没有变化
+     */
+    private static boolean isStatUnchanged(LocalFileIndex.Entry entry, BasicFileAttributes attrs) {
+        return entry.getSize() == attrs.size()
+                && entry.getLastModified() == attrs.lastModifiedTime().toMillis()
+                && entry.getFileKey() == FileData.getFileKey(attrs);
+    }
+
+    /**
+     * 外部获取文件目录表
+     * @return 文件目录表
+     */
+    public FileCatalog getCatalog() {
+        return catalog;
     }
 
 
@@ -209,39 +584,276 @@ public class FileManager {
         //检测一下系统资源情况，你也不希望打游戏的时候突然给你来一下吧 /doge
         monitor.waitForLowUsage();
         logger.info("start get md5");
-        Map<String, String> map = getFileMd5Map();
-        ArrayDeque<File> files = scanFiles();
-        logger.info("start update files");
-        logger.info("files size: " + files.size());
-        logger.info("files : " + files.stream().map((Function<File, Object>) File::getAbsolutePath).toList());
-        while (!files.isEmpty()) {
-            String path = files.pop().getAbsolutePath();
-            monitor.waitForLowUsage();
-            networkUtil.upload(path, map.get(path));
+        //服务器在线时边扫描边上传；不在线时扫描只依赖本地索引，扫描完再等待服务器在线后上传
+        UploadPool uploads = networkUtil.heart() ? null : createUploadPool(networkUtil);
+        try {
+            scanFiles(uploads);
+        } finally {
+            if (uploads != null) {
+                finishUploads(uploads);
+            }
         }
+        //本次扫描没有见过的文件就是已经删除的文件
+        collectDeleted(null, true);
+        heart(networkUtil);
+        //服务器不在线时扫描到的文件和到了重试时间的文件，还在退避的文件留在发件箱里等下次重试
+        uploadFiles(networkUtil);
         logger.info("start update time");
         updateLastUpdateTime(System.currentTimeMillis());
         syncFileMap(networkUtil);
     }
 
     /**
-     * 同步文件已经删除的文件
+     * 处理监听到的一批变动，只检查变动的文件和需要重新扫描的目录，然后上传并同步
+     * @param networkUtil 网络工具
+     * @param batch 监听到的变动
+     * @throws InterruptedException 等待资源时被中断
+     * @throws IOException 网络或文件io
+     * @throws NoSuchAlgorithmException md5工具异常
+     */
+    public synchronized void startIncrementalScan(NetworkUtil networkUtil, FileChangeWatcher.ChangeBatch batch) throws InterruptedException, IOException, NoSuchAlgorithmException {
+        monitor.waitForLowUsage();
+        logger.info("start incremental scan, files: " + batch.getFiles().size() + " folders: " + batch.getFolders().size());
+        Set<Path> folders = new LinkedHashSet<>(batch.getFolders());
+        for (Path file : batch.getFiles()) {
+            if (file.getFileName().toString().equals(ignoreRules.getIgnoreFileName())) {
+                //忽略规则变了，整个目录按新规则重新扫描
+                ignoreRules.invalidate(file.getParent());
+                folders.add(file.getParent());
+            }
+        }
+        for (Path file : batch.getFiles()) {
+            String path = file.toAbsolutePath().toString();
+            BasicFileAttributes attrs;
+            try {
+                attrs = ParallelFileScanner.readAttributes(file);
+            } catch (NoSuchFileException e) {
+                //文件或目录已经被删除
+                collectDeleted(path, false);
+                continue;
+            }
+            if (attrs == null) {
+                //链接的目标不存在了，和全量扫描一样当作已删除
+                collectDeleted(path, false);
+                continue;
+            }
+            if (attrs.isDirectory() && Files.isSymbolicLink(file)) {
+                //指向目录的链接不会报告自己的目录事件，和全量扫描一样进入链接的目录
+                folders.add(file);
+                continue;
+            }
+            if (!attrs.isRegularFile()) {
+                continue;
+            }
+            if (ignoreRules.isIgnored(file, attrs)) {
+                //变得被忽略的文件（比如超过了大小上限）当作已删除
+                String md5 = catalog.getDigest(path);
+                if (md5 != null) {
+                    outbox.delete(path, md5);
+                }
+            } else {
+                try {
+                    shouldFileUpdate(path, attrs);
+                } catch (NoSuchFileException e) {
+                    //读取属性之后被删除，比如编辑器的临时文件和原子保存时的改名
+                    collectDeleted(path, false);
+                } catch (AccessDeniedException e) {
+                    //被其他程序锁住，等下次变动或全量扫描再处理
+                    logger.warn("skip unreadable file: " + path);
+                }
+            }
+        }
+        if (!folders.isEmpty()) {
+            catalog.clearSeen();
+            scanFolders(new ArrayList<>(folders), null, null);
+            for (Path folder : folders) {
+                collectDeleted(folder.toAbsolutePath().toString(), true);
+            }
+        }
+        heart(networkUtil);
+        uploadFiles(networkUtil);
+        updateLastUpdateTime(System.currentTimeMillis());
+        syncFileMap(networkUtil);
+    }
+
+    /**
+     * 找出一个路径（或以它为前缀的目录）下已经不存在的文件，放进发件箱
+     * @param path 文件或目录的绝对路径，为null表示所有文件
+     * @param onlyUnseen true表示只找重新扫描时没有见过的文件，false表示整个路径都已被删除
+     * @throws IOException 写发件箱时的io异常
+     */
+    private void collectDeleted(String path, boolean onlyUnseen) throws IOException {
+        Map<String, String> deletedMap = new LinkedHashMap<>();
+        catalog.forEachUnder(path, onlyUnseen, deletedMap::put);
+        for (Map.Entry<String, String> deleted : deletedMap.entrySet()) {
+            outbox.delete(deleted.getKey(), deleted.getValue());
+        }
+    }
+
+    /**
+     * 发件箱里有到了重试时间的操作时，在两次扫描之间发送，不用等到下一次扫描
+     * @param networkUtil 网络工具
+     * @throws InterruptedException 等待资源时被中断
+     * @throws IOException 网络或文件io
+     */
+    private synchronized void retryOutbox(NetworkUtil networkUtil) throws InterruptedException, IOException {
+        if (!outbox.hasReady()) {
+            return;
+        }
+        logger.info("retry upload outbox, items: " + outbox.size());
+        uploadFiles(networkUtil);
+        syncFileMap(networkUtil);
+    }
+
+    /**
+     * 并发上传发件箱中到了重试时间的文件，上传成功的操作从发件箱中删除，失败的操作按退避时间等待下次重试
+     * @param networkUtil 网络工具
+     * @throws InterruptedException 等待资源时被中断
+     * @throws IOException 网络io异常
+     */
+    private void uploadFiles(NetworkUtil networkUtil) throws InterruptedException, IOException {
+        logger.info("start update files");
+        List<UploadOutbox.Item> ready = outbox.takeReady();
+        logger.info("files size: " + ready.size() + " outbox size: " + outbox.size());
+        if (ready.isEmpty()) {
+            return;
+        }
+        //队列只能在已经放进去的任务之间排序，积压的操作先按同样的顺序排好再提交
+        UploadScheduler.Priority priority = new UploadScheduler.Priority(config);
+        long now = System.currentTimeMillis();
+        Map<UploadOutbox.Item, Long> delays = new HashMap<>();
+        for (UploadOutbox.Item item : ready) {
+            File file = new File(item.getPath());
+            delays.put(item, priority.delayOf(item.getPath(), file.length(), file.lastModified(), now));
+        }
+        ready.sort(Comparator.comparingLong(delays::get));
+        UploadPool uploads = createUploadPool(networkUtil);
+        try {
+            for (int i = 0; i < ready.size(); i++) {
+                try {
+                    uploads.submit(ready.get(i));
+                } catch (InterruptedException e) {
+                    ready.subList(i, ready.size()).forEach(outbox::release);
+                    throw e;
+                }
+            }
+        } finally {
+            finishUploads(uploads);
+        }
+    }
+
+    /**
+     * 创建上传线程池，上传成功的操作从发件箱中删除，服务器支持增量同步时还要写入本地变更日志
+     * @param networkUtil 网络工具
+     * @return 上传线程池
+     */
+    private UploadPool createUploadPool(NetworkUtil networkUtil) {
+        FileUploader uploader = new FileUploader(networkUtil, config, knownChunks, this::computeDigest, this::indexedStat);
+        this.uploader = uploader;
+        boolean journalUploads = networkUtil.features().supports(FEATURE_SYNC_DELTA);
+        return new UploadPool(uploader, monitor, config.getUploadWorkers(), config.getUploadMaxInFlightBytes(),
+                new UploadScheduler.Priority(config), UPLOAD_QUEUE_SIZE,
+                (item, result) -> {
+                    if (result.isHashed()) {
+                        //摘要是上传时才算出来的，现在记到本地索引
+                        recordIndex(item.getPath(), result.getStat(), result.getDigest());
+                    }
+                    if (journalUploads) {
+                        //变更写入日志之后才能从发件箱删除，否则程序被结束时这次上传不会同步给其他客户端
+                        syncJournal.append(SyncJournal.OP_PUT, item.getPath(), result.getDigest());
+                        syncJournal.flushChanges();
+                    }
+                    outbox.done(item);
+                });
+    }
+
+    /**
+     * 等待上传线程池中的文件上传完成，上传失败的操作按退避时间等待重试，文件还在变化的操作等稳定后再上传，
+     * 没有发送的操作放回发件箱
+     * @param uploads 上传线程池
+     * @throws InterruptedException 等待时被中断
+     * @throws IOException 保存过滤器、变更日志或发件箱时的io异常
+     */
+    private void finishUploads(UploadPool uploads) throws InterruptedException, IOException {
+        UploadPool.Result result = null;
+        try {
+            result = uploads.finish();
+        } finally {
+            if (result == null) {
+                result = uploads.getResult();
+            }
+            for (UploadOutbox.Item item : result.getFailed()) {
+                outbox.failed(item);
+            }
+            for (UploadOutbox.Item item : result.getChanged()) {
+                outbox.changed(item, config.getSettleTime());
+            }
+            result.getUnsent().forEach(outbox::release);
+            knownChunks.save();
+            syncJournal.flush();
+        }
+    }
+
+    /**
+     * 把发件箱中的删除发给服务器并同步，发送前文件又出现了的删除直接丢弃。
+     * 服务器支持增量同步时，删除先写入本地变更日志，再只交换双方的变更；
+     * 否则发送全部已删除的文件，并用服务器返回的整个map对账，请求和响应都是流式处理的。
+     * 同步失败时删除留在发件箱中，下次同步时再发送
      * @param networkUtil 网络工具
      * @throws IOException 网络异常
      */
-    public void syncFileMap(NetworkUtil networkUtil) throws IOException {
+    public synchronized void syncFileMap(NetworkUtil networkUtil) throws IOException {
         logger.info("start sync");
-        Map<String,String> deletedMap=new HashMap<>();
-        Set<String> keySet = fileMd5Map.keySet();
-        for (String s : keySet) {
-            if (!curFileSet.contains(s)) {
-                deletedMap.put(s, fileMd5Map.get(s));
+        List<UploadOutbox.Item> deletes = new ArrayList<>();
+        for (UploadOutbox.Item item : outbox.getDeletes()) {
+            if (isRestored(item.getPath())) {
+                outbox.done(item);
+            } else {
+                deletes.add(item);
+            }
+        }
+        if (!networkUtil.features().supports(FEATURE_SYNC_DELTA)) {
+            reconcileFileMap(consumer -> networkUtil.syncFileMap(
+                    action -> deletes.forEach(item -> action.accept(item.getPath(), item.getMd5())), consumer));
+            for (UploadOutbox.Item item : deletes) {
+                outbox.done(item);
+            }
+            return;
+        }
+        for (UploadOutbox.Item item : deletes) {
+            syncJournal.append(SyncJournal.OP_DELETE, item.getPath(), item.getMd5());
+        }
+        syncJournal.flush();
+        logger.info("sync deleted files: " + deletes.size());
+        //删除已经持久化在变更日志里，可以从发件箱中删除了
+        for (UploadOutbox.Item item : deletes) {
+            outbox.done(item);
+            forgetFile(item.getPath());
+        }
+        syncDelta(networkUtil);
+    }
+
+    /**
+     * 删除发送前文件是否又出现了（比如被删除后又恢复），这时删除已经过时
+     * @param path 文件绝对路径
+     * @return true表示文件还在，并且不被忽略
+     */
+    private boolean isRestored(String path) {
+        Path file = Paths.get(path);
+        try {
+            BasicFileAttributes attrs = ParallelFileScanner.readAttributes(file);
+            if (attrs == null || !attrs.isRegularFile() || ignoreRules.isIgnored(file, attrs)) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        for (Path root : getRootFolderPaths()) {
+            if (file.startsWith(root.toAbsolutePath())) {
+                return true;
             }
         }
-        curFileSet.clear();
-        String data=networkUtil.syncFileMap(deletedMap);
-        logger.info("sync data: " + deletedMap);
-        fileMd5Map=gson.fromJson(data, new TypeToken<>(){}.getType());
+        return false;
     }
 
     /**
@@ -252,29 +864,105 @@ public class FileManager {
      * @throws NoSuchAlgorithmException md5获取时
      */
     public void start(NetworkUtil networkUtil) throws InterruptedException, IOException, NoSuchAlgorithmException {
+        FileChangeWatcher watcher = createWatcher();
         while (true) {
-            heart(networkUtil);
             startScan(networkUtil);
+            if (watcher != null) {
+                watchChanges(networkUtil, watcher);
+                //监听线程意外退出时，回到定时全量扫描
+                watcher = null;
+            }
             logger.info("start waiting");
             while (System.currentTimeMillis() <= config.getLastUpdateTime() + config.getScanIntervalTime()) {
                 Thread.sleep(60000);
                 heart(networkUtil);
+                retryOutbox(networkUtil);
+            }
+        }
+    }
+
+    /**
+     * 创建文件变动监听，必须在第一次全量扫描之前注册，避免漏掉扫描期间的变动
+     * @return 监听对象，未开启监听模式或注册失败时返回null
+     */
+    private FileChangeWatcher createWatcher() {
+        if (!config.isWatchMode()) {
+            return null;
+        }
+        try {
+            FileChangeWatcher watcher = new FileChangeWatcher(getRootFolderPaths(), config.getWatchDebounceTime(), config.getWatchMaxBatchDelay(),
+                    path -> isInternalFile(path) || ignoreRules.isIgnored(path));
+            watcher.start();
+            return watcher;
+        } catch (IOException e) {
+            logger.error("watch folders error, fall back to interval scan", e);
+            return null;
+        }
+    }
+
+    /**
+     * 是否是程序自己维护的文件，比如配置文件和日志文件
+     * @param path 文件路径
+     * @return true为程序自己的文件
+     */
+    static boolean isInternalFile(Path path) {
+        Path file = path.toAbsolutePath().normalize();
+        return file.equals(Paths.get(configFileName).toAbsolutePath().normalize())
+                || file.equals(Paths.get(Logger.getLogFilePath()).toAbsolutePath().normalize())
+                || isDataFile(file);
+    }
+
+    /**
+     * 是否是数据目录下的文件，这些文件不需要扫描和上传
+     * @param path 文件路径
+     * @return true为数据目录下的文件
+     */
+    static boolean isDataFile(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(Paths.get(dataFolderName).toAbsolutePath().normalize());
+    }
+
+    /**
+     * 监听模式的主循环，每分钟发一次心跳，有变动时做增量扫描
+     * @param networkUtil 网络工具
+     * @param watcher 文件变动监听
+     * @throws InterruptedException Thread.sleep发生问题时
+     * @throws IOException 网络或文件io
+     * @throws NoSuchAlgorithmException md5获取时
+     */
+    private void watchChanges(NetworkUtil networkUtil, FileChangeWatcher watcher) throws InterruptedException, IOException, NoSuchAlgorithmException {
+        logger.info("start watching changes");
+        long lastHeart = System.currentTimeMillis();
+        while (watcher.isAlive()) {
+            FileChangeWatcher.ChangeBatch batch = watcher.poll(60000);
+            if (!batch.isEmpty()) {
+                startIncrementalScan(networkUtil, batch);
+            }
+            //变动一直不停时也要按时发心跳、重试发件箱
+            if (batch.isEmpty() || System.currentTimeMillis() - lastHeart >= 60000) {
+                heart(networkUtil);
+                retryOutbox(networkUtil);
+                lastHeart = System.currentTimeMillis();
             }
         }
+        logger.warn("watcher stopped");
+        watcher.close();
     }
 
     /**
-     * 心跳函数
+     * 心跳函数，服务器不在线时一直等待，恢复后发件箱中的操作立即可以重试
      * @param networkUtil 网络工具
      * @throws InterruptedException Thread.sleep发生问题时
      * @throws IOException 网络或文件io
      */
     private void heart(NetworkUtil networkUtil) throws InterruptedException, IOException {
-        if (networkUtil.heart()) {
-            Util.showWindowsNotification("服务器连接存在问题", "请检查日志");
+        if (!networkUtil.heart()) {
+            return;
         }
+        Util.showWindowsNotification("服务器连接存在问题", "请检查日志");
         while (networkUtil.heart()) {
             Thread.sleep(5000);
         }
+        logger.info("server back online, outbox size: " + outbox.size());
+        outbox.resetBackoff();
     }
 }
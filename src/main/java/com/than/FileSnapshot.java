@@ -0,0 +1,327 @@
+package com.than;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 上传时读取文件的一致视图。
+ * 扫描时计算摘要和上传时读取文件之间有时间差，正在写入的文件（日志、数据库、下载中的文件）在这期间会变化，
+ * 服务器会保存和摘要对不上的内容，下次扫描又发现变化，反复上传。
+ * 打开时记下文件的大小、修改时间和文件标识，读取结束后再比对，不一致时放弃这次读取，等文件稳定后再上传；
+ * 最后一次修改还不到稳定时间的文件直接放弃，不浪费带宽。
+ * <p>
+ * 只有两种文件需要暂存：读取期间已经变化过一次的文件，和超过复制上限、读取时间较长的大文件。
+ * 文件系统支持时（btrfs、xfs等的reflink）先克隆出一个写时复制的快照，从快照读取，原文件之后的写入不影响快照；
+ * 不支持克隆时，变化过的文件（不超过上限）复制一份到暂存目录再读。
+ * 其他文件直接读原文件，读完后检查属性，不为每个文件都创建暂存目录、启动克隆进程或者多写一遍磁盘。
+ * 暂存的副本和原文件同名，摘要中的文件名不受影响
+ */
+public class FileSnapshot implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FileSnapshot.class);
+
+    private static final String STAGING_FOLDER = "staging";
+    //只在linux上用cp --reflink克隆，其他系统直接复制
+    private static final boolean CLONE_AVAILABLE = System.getProperty("os.name").toLowerCase().contains("linux");
+    //每个文件系统是否支持克隆到暂存目录，第一次尝试后记下来，不支持的文件系统不再尝试
+    private static final Map<FileStore, Boolean> cloneSupport = new ConcurrentHashMap<>();
+    //最多记住的变化过的文件数量
+    private static final int CHANGED_CAPACITY = 1024;
+    //直接读取时发生过变化的文件，之后暂存再读，按访问顺序只保留最近的一部分
+    private static final Map<String, Boolean> changedWhileReading = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > CHANGED_CAPACITY;
+                }
+            });
+
+    /**
+     * 判断文件是否变化用的属性，和本地索引中记录的一致
+     */
+    public static class Stat {
+        private final long size;
+        private final long modified;
+        private final long fileKey;
+
+        public Stat(long size, long modified, long fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        public static Stat of(BasicFileAttributes attrs) {
+            return new Stat(attrs.size(), attrs.lastModifiedTime().toMillis(), FileData.getFileKey(attrs));
+        }
+
+        public static Stat read(Path file) throws IOException {
+            return of(Files.readAttributes(file, BasicFileAttributes.class));
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getFileKey() {
+            return fileKey;
+        }
+
+        /**
+         * 距离文件稳定还要等待的时间，修改时间在未来的文件（比如从别的机器复制过来）当作已经稳定
+         * @param settleTime 稳定时间，0表示不等待
+         * @param now 当前时间
+         * @return 还要等待的毫秒数，0表示已经稳定
+         */
+        public long unsettled(long settleTime, long now) {
+            long age = now - modified;
+            return age < 0 || age >= settleTime ? 0 : settleTime - age;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Stat stat)) {
+                return false;
+            }
+            return size == stat.size && modified == stat.modified && fileKey == stat.fileKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, fileKey);
+        }
+
+        @Override
+        public String toString() {
+            return "size: " + size + " modified: " + modified;
+        }
+    }
+
+    /**
+     * 文件还在变化，读到的内容不可用，调用方等文件稳定后重新计算摘要再上传
+     */
+    public static class ChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ChangedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Path source;
+    private final Path path;
+    private final Stat stat;
+    //暂存副本所在的目录，直接读原文件时为null
+    private final Path stagingDir;
+
+    private FileSnapshot(Path source, Path path, Stat stat, Path stagingDir) {
+        this.source = source;
+        this.path = path;
+        this.stat = stat;
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * 打开文件的一致视图，变化过的文件和大文件能克隆时读取副本，变化过的文件不能克隆时复制一份
+     * @param source 原文件
+     * @param config 配置，决定稳定时间和是否暂存
+     * @return 快照，使用完后需要关闭
+     * @throws ChangedException 文件还没有稳定，或者复制期间发生了变化
+     * @throws IOException 文件io异常
+     */
+    public static FileSnapshot open(Path source, Config config) throws IOException {
+        Stat before = Stat.read(source);
+        if (before.unsettled(config.getSettleTime(), System.currentTimeMillis()) > 0) {
+            throw new ChangedException("file still changing: " + source);
+        }
+        if (!config.isUploadStaging()) {
+            return new FileSnapshot(source, source, before, null);
+        }
+        boolean changed = changedWhileReading.get(source.toString()) != null;
+        boolean copyable = changed && before.size <= config.getStagingMaxSize();
+        boolean cloneable = (changed || before.size > config.getStagingMaxSize()) && canClone(source);
+        if (!copyable && !cloneable) {
+            return new FileSnapshot(source, source, before, null);
+        }
+        Path staging = FileManager.getDataPath(STAGING_FOLDER);
+        Files.createDirectories(staging);
+        Path dir = Files.createTempDirectory(staging, "snap");
+        Path copy = dir.resolve(source.getFileName());
+        boolean staged = false;
+        try {
+            if (cloneable && clone(source, copy)) {
+                staged = true;
+            } else if (copyable) {
+                Files.copy(source, copy, StandardCopyOption.REPLACE_EXISTING);
+                staged = true;
+            }
+            if (staged && !before.equals(Stat.read(source))) {
+                throw new ChangedException("file changed while staging: " + source);
+            }
+        } catch (IOException e) {
+            staged = false;
+            throw e;
+        } finally {
+            if (!staged) {
+                deleteStaging(copy, dir);
+            }
+        }
+        return staged ? new FileSnapshot(source, copy, before, dir) : new FileSnapshot(source, source, before, null);
+    }
+
+    /**
+     * 文件所在的文件系统是否可能支持克隆，已经确认不支持的不再尝试
+     */
+    private static boolean canClone(Path source) throws IOException {
+        return CLONE_AVAILABLE && !Boolean.FALSE.equals(cloneSupport.get(Files.getFileStore(source)));
+    }
+
+    /**
+     * 用reflink克隆文件，只复制元数据，和文件大小无关。暂存目录和原文件不在同一个文件系统时也会失败
+     * @return true表示克隆成功
+     */
+    private static boolean clone(Path source, Path target) throws IOException {
+        FileStore store = Files.getFileStore(source);
+        boolean cloned;
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            cloned = process.waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("clone interrupted");
+        } catch (IOException e) {
+            cloned = false;
+        }
+        if (cloneSupport.putIfAbsent(store, cloned) == null) {
+            logger.info("file system " + store + " clone supported: " + cloned);
+        }
+        return cloned;
+    }
+
+    /**
+     * 读取数据用的路径，暂存时是副本，否则是原文件
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * 打开时原文件的属性
+     */
+    public Stat getStat() {
+        return stat;
+    }
+
+    /**
+     * 是否读取的是副本，这时读取期间原文件的变化不影响读到的内容
+     */
+    public boolean isStaged() {
+        return stagingDir != null;
+    }
+
+    /**
+     * 检查原文件在读取期间是否变化，读取副本时不需要检查
+     * @throws ChangedException 原文件变化了
+     * @throws IOException 读取文件属性时的io异常
+     */
+    public void verify() throws IOException {
+        if (stagingDir != null) {
+            return;
+        }
+        if (!stat.equals(Stat.read(source))) {
+            changedWhileReading.put(source.toString(), Boolean.TRUE);
+            throw new ChangedException("file changed while reading: " + source);
+        }
+    }
+
+    /**
+     * 包装文件的请求体，内容写完后检查原文件是否变化，变化时抛出异常中止请求，
+     * 请求体没有写完，服务器不会保存读到一半的内容
+     * @param body 读取getPath的请求体
+     * @return 包装后的请求体
+     */
+    public RequestBody guard(RequestBody body) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public long contentLength() throws IOException {
+                return body.contentLength();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                body.writeTo(sink);
+                verify();
+            }
+        };
+    }
+
+    /**
+     * 删除暂存的副本
+     */
+    @Override
+    public void close() {
+        if (stagingDir != null) {
+            deleteStaging(path, stagingDir);
+        }
+    }
+
+    private static void deleteStaging(Path copy, Path dir) {
+        try {
+            Files.deleteIfExists(copy);
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            logger.warn("delete staging copy error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 删除上次运行时没有来得及删除的副本
+     */
+    public static void cleanStaging() {
+        try {
+            Path staging = FileManager.getDataPath(STAGING_FOLDER);
+            if (!Files.isDirectory(staging)) {
+                return;
+            }
+            try (Stream<Path> dirs = Files.list(staging)) {
+                for (Path dir : dirs.toList()) {
+                    try (Stream<Path> files = Files.list(dir)) {
+                        for (Path file : files.toList()) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    Files.deleteIfExists(dir);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("clean staging folder error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.than;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 上传策略，根据文件大小和服务器支持的功能决定整个文件上传还是只上传服务器还没有的块。
+ * 服务器已有的块可能来自这个文件的上一个版本（按块上传），也可能来自其他文件（跨文件去重）。
+ * 不能按块上传的大文件分成固定大小的段上传，中断后用同一个会话继续。
+ * 扫描时没有计算摘要的文件在上传时边发送边计算，文件只读一次。
+ * 所有方式都从文件的快照读取（见FileSnapshot），文件在计算摘要之后或者读取期间变化时抛出FileSnapshot.ChangedException，
+ * 服务器不会保存读到一半的内容
+ */
+public class FileUploader {
+
+    private static final Logger logger = Logger.getLogger(FileUploader.class);
+
+    //服务器功能名：支持按块上传和提交块清单
+    public static final String FEATURE_CHUNK = "chunk";
+    //服务器功能名：支持批量询问服务器已有哪些块
+    public static final String FEATURE_DEDUP = "dedup";
+    //服务器功能名：支持把多个小文件打包成一个请求上传
+    public static final String FEATURE_PACK = "pack";
+    //服务器功能名：支持分段上传会话
+    public static final String FEATURE_SESSION = "upload_session";
+    //服务器功能名：支持在文件之后接收摘要
+    public static final String FEATURE_DIGEST_TRAILER = "digest_trailer";
+
+    //每次询问服务器的块数量上限
+    private static final int QUERY_BATCH = 4096;
+
+    private final NetworkUtil networkUtil;
+    private final Config config;
+    private final ChunkEngine chunkEngine;
+    //服务器已有的块，为null时不做跨文件去重
+    private final ChunkFilter knownChunks;
+    //分段上传的发送线程，所有文件共用，限制同时在传输的段数
+    private final ExecutorService sessionExecutor;
+    //服务器需要先收到摘要时，用和扫描一样的方式计算摘要
+    private final Digester digester;
+    //扫描时计算摘要依据的文件属性
+    private final IndexLookup index;
+
+    /**
+     * 计算文件摘要，和扫描时的算法一致
+     */
+    @FunctionalInterface
+    public interface Digester {
+        /**
+         * @param path 原文件绝对路径
+         * @param snapshot 文件的快照，从它读取内容
+         */
+        String digest(String path, FileSnapshot snapshot) throws IOException, InterruptedException;
+    }
+
+    /**
+     * 查询本地索引中记录的文件属性
+     */
+    @FunctionalInterface
+    public interface IndexLookup {
+        /**
+         * @param path 文件绝对路径
+         * @return 计算摘要时的文件属性，不知道时返回null
+         */
+        FileSnapshot.Stat indexed(String path);
+    }
+
+    /**
+     * 一个文件的上传结果
+     */
+    public static class Uploaded {
+        private final String digest;
+        private final boolean hashed;
+        private final FileSnapshot.Stat stat;
+
+        Uploaded(String digest, boolean hashed, FileSnapshot.Stat stat) {
+            this.digest = digest;
+            this.hashed = hashed;
+            this.stat = stat;
+        }
+
+        /**
+         * 上传时使用的摘要
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * 摘要是否是上传时才计算的，这时本地索引中还没有记录
+         */
+        public boolean isHashed() {
+            return hashed;
+        }
+
+        /**
+         * 上传的内容对应的文件属性，只有上传时计算了摘要才有
+         */
+        public FileSnapshot.Stat getStat() {
+            return stat;
+        }
+    }
+
+    public FileUploader(NetworkUtil networkUtil, Config config, ChunkFilter knownChunks, Digester digester, IndexLookup index) {
+        this.networkUtil = networkUtil;
+        this.config = config;
+        this.digester = digester;
+        this.index = index;
+        this.chunkEngine = new ChunkEngine(config.getChunkAvgSize());
+        this.knownChunks = config.isDedupUpload() ? knownChunks : null;
+        this.sessionExecutor = Executors.newFixedThreadPool(config.getSessionParallelism(), runnable -> {
+            Thread thread = new Thread(runnable, "session-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 上传文件，能按块上传时只上传服务器还没有的块，按块上传失败时回退到分段上传或整个文件上传
+     * @param path 文件绝对路径
+     * @param md5 文件摘要，为null或空时在上传时计算
+     * @param key 发件箱中操作的幂等键，重试时不变，服务器不会为同一个键生成两个版本
+     * @return 上传结果
+     * @throws FileSnapshot.ChangedException 文件还没有稳定，或者计算摘要之后、读取期间发生了变化
+     * @throws IOException 网络或文件io异常
+     */
+    public Uploaded upload(String path, String md5, String key) throws IOException {
+        if (md5 == null || md5.isEmpty()) {
+            return uploadUnhashed(path, key);
+        }
+        try (FileSnapshot snapshot = FileSnapshot.open(Paths.get(path), config)) {
+            FileSnapshot.Stat indexed = index.indexed(path);
+            if (indexed != null && !indexed.equals(snapshot.getStat())) {
+                //摘要是按扫描时的内容算的，已经不能用了
+                throw new FileSnapshot.ChangedException("file changed after digest: " + path);
+            }
+            uploadSnapshot(path, snapshot, md5, key);
+            return new Uploaded(md5, false, null);
+        }
+    }
+
+    /**
+     * 按文件大小选择上传方式
+     */
+    private void uploadSnapshot(String path, FileSnapshot snapshot, String md5, String key) throws IOException {
+        long size = snapshot.getStat().getSize();
+        if (usesChunks(size)) {
+            try {
+                uploadChunks(path, snapshot, md5, key);
+                return;
+            } catch (FileSnapshot.ChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.error("chunk upload failed, upload whole file: " + path, e);
+            }
+        }
+        if (usesSession(size)) {
+            //分段上传失败时不回退，保留会话，下次重试时继续
+            uploadSession(path, snapshot, md5, key);
+            return;
+        }
+        networkUtil.upload(path, snapshot, md5, key);
+    }
+
+    /**
+     * 扫描时是否可以不计算摘要，留到上传时边发送边计算：
+     * 只有整个文件上传的文件可以，打包、按块和分段上传都需要先知道摘要，
+     * 使用并行分段摘要的大文件也不行，上传时只能按顺序计算
+     * @param size 文件大小
+     * @return true表示可以推迟计算摘要
+     */
+    public boolean canDeferDigest(long size) {
+        return config.isDigestOnUpload()
+                && !networkUtil.usesTreeDigest(size)
+                && !canPack(size) && !usesChunks(size) && !usesSession(size)
+                && networkUtil.features().supports(FEATURE_DIGEST_TRAILER);
+    }
+
+    private boolean usesChunks(long size) {
+        boolean delta = config.isDeltaUpload() && size >= config.getDeltaUploadThreshold();
+        boolean dedup = knownChunks != null && size >= config.getDedupMinSize();
+        return (delta || dedup) && networkUtil.features().supports(FEATURE_CHUNK);
+    }
+
+    private boolean usesSession(long size) {
+        return size >= config.getSessionUploadThreshold() && networkUtil.features().supports(FEATURE_SESSION);
+    }
+
+    /**
+     * 上传还没有计算摘要的文件：服务器支持时摘要跟在文件后面发送，否则先从快照计算摘要再上传。
+     * 摘要和上传的内容都来自同一个快照，返回的属性可以直接记到本地索引
+     * @param path 文件绝对路径
+     * @param key 幂等键
+     * @return 上传结果
+     * @throws IOException 网络或文件io异常
+     */
+    private Uploaded uploadUnhashed(String path, String key) throws IOException {
+        try (FileSnapshot snapshot = FileSnapshot.open(Paths.get(path), config)) {
+            String digest;
+            if (canDeferDigest(snapshot.getStat().getSize())) {
+                digest = networkUtil.uploadWithDigestTrailer(path, snapshot, key);
+            } else {
+                try {
+                    digest = digester.digest(path, snapshot);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("digest interrupted");
+                }
+                //直接读原文件时，计算摘要期间变化了的话摘要不可用
+                snapshot.verify();
+                uploadSnapshot(path, snapshot, digest, key);
+            }
+            return new Uploaded(digest, true, snapshot.getStat());
+        }
+    }
+
+    /**
+     * 分段上传：文件没有变化时继续本地记录的会话，只发送服务器还没有收到的段，
+     * 多个段同时发送，收齐后服务器原子地保存成新版本。结束会话前检查原文件没有变化
+     * @param path 文件绝对路径
+     * @param snapshot 文件的快照
+     * @param md5 文件摘要
+     * @param key 幂等键，结束会话时附带
+     * @throws IOException 网络或文件io异常，会话会保留下来
+     */
+    private void uploadSession(String path, FileSnapshot snapshot, String md5, String key) throws IOException {
+        File file = new File(path);
+        long size = snapshot.getStat().getSize();
+        long modified = snapshot.getStat().getModified();
+        UploadSession session = UploadSession.load(path);
+        Set<Integer> received = new HashSet<>();
+        if (session != null && session.matches(md5, size, modified)) {
+            NetworkUtil.SessionStatus status = networkUtil.uploadSessionStatus(session.getId());
+            if (status == null) {
+                logger.info("upload session expired: " + path);
+                session = null;
+            } else {
+                received.addAll(status.getReceived());
+                logger.info("resume upload session " + path + " from offset " + status.getOffset()
+                        + " received chunks: " + received.size() + "/" + session.getChunkCount());
+            }
+        } else {
+            session = null;
+        }
+        if (session == null) {
+            int chunkSize = config.getSessionChunkSize();
+            String id = networkUtil.openUploadSession(path, md5, file.getName(), size, chunkSize);
+            session = new UploadSession(id, path, md5, size, modified, chunkSize);
+            session.save();
+        }
+
+        List<Integer> toSend = new ArrayList<>();
+        for (int i = 0; i < session.getChunkCount(); i++) {
+            if (!received.contains(i)) {
+                toSend.add(i);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(snapshot.getPath(), StandardOpenOption.READ)) {
+            sendSessionChunks(session, channel, toSend);
+            snapshot.verify();
+            List<Integer> missing = networkUtil.finishUploadSession(session.getId(), key);
+            if (!missing.isEmpty()) {
+                logger.warn("upload session missing chunks: " + missing.size());
+                sendSessionChunks(session, channel, missing);
+                snapshot.verify();
+                if (!networkUtil.finishUploadSession(session.getId(), key).isEmpty()) {
+                    throw new IOException("upload session still missing chunks");
+                }
+            }
+        }
+        UploadSession.forget(path);
+        logger.info("session upload " + path + " sent chunks: " + toSend.size() + "/" + session.getChunkCount());
+    }
+
+    /**
+     * 同时发送多个段，任何一段失败时不再发送剩下的段
+     */
+    private void sendSessionChunks(UploadSession session, FileChannel channel, List<Integer> indexes) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int index : indexes) {
+            futures.add(sessionExecutor.submit(() -> {
+                ChunkEngine.Chunk range = new ChunkEngine.Chunk((long) index * session.getChunkSize(), session.getChunkLength(index), null);
+                byte[] data = ChunkEngine.readChunk(channel, range);
+                MessageDigest sha = ChunkEngine.newSha256();
+                networkUtil.uploadSessionChunk(session.getId(), index, FileData.bytesToHex(sha.digest(data)), data);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException io ? io : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("session upload interrupted");
+        } finally {
+            //不中断正在发送的段，中断会关闭共用的文件通道
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 文件是否可以和其他小文件打包上传
+     * @param size 文件大小
+     * @return true表示可以放进包里
+     */
+    public boolean canPack(long size) {
+        return config.isPackUpload() && size < config.getPackThreshold() && networkUtil.features().supports(FEATURE_PACK);
+    }
+
+    /**
+     * 包是否已经装满
+     * @param files 包里的文件数量
+     * @param bytes 包里的文件总大小
+     * @return true表示需要发送
+     */
+    public boolean isPackFull(int files, long bytes) {
+        return files >= config.getPackMaxFiles() || bytes >= config.getPackMaxBytes();
+    }
+
+    /**
+     * 打包上传的结果
+     */
+    public static class PackUploaded {
+        private final List<String> rejected;
+        private final List<UploadOutbox.Item> changed;
+
+        PackUploaded(List<String> rejected, List<UploadOutbox.Item> changed) {
+            this.rejected = rejected;
+            this.changed = changed;
+        }
+
+        /**
+         * 服务器没有保存成功的文件
+         */
+        public List<String> getRejected() {
+            return rejected;
+        }
+
+        /**
+         * 还在变化或者计算摘要之后变化了的文件，没有放进包里
+         */
+        public List<UploadOutbox.Item> getChanged() {
+            return changed;
+        }
+    }
+
+    /**
+     * 打包上传多个小文件，先给每个文件打开快照，正在变化的文件不放进包里
+     * @param files 发件箱中的上传操作
+     * @return 上传结果
+     * @throws IOException 网络或文件io异常，这时整个包都没有保存
+     */
+    public PackUploaded uploadPack(List<UploadOutbox.Item> files) throws IOException {
+        List<UploadOutbox.Item> sent = new ArrayList<>();
+        List<UploadOutbox.Item> changed = new ArrayList<>();
+        List<FileSnapshot> snapshots = new ArrayList<>();
+        try {
+            for (UploadOutbox.Item item : files) {
+                FileSnapshot snapshot;
+                try {
+                    snapshot = FileSnapshot.open(Paths.get(item.getPath()), config);
+                } catch (FileSnapshot.ChangedException e) {
+                    changed.add(item);
+                    continue;
+                }
+                FileSnapshot.Stat indexed = index.indexed(item.getPath());
+                if (indexed != null && !indexed.equals(snapshot.getStat())) {
+                    snapshot.close();
+                    changed.add(item);
+                    continue;
+                }
+                snapshots.add(snapshot);
+                sent.add(item);
+            }
+            List<String> rejected = sent.isEmpty() ? List.of() : networkUtil.uploadPack(sent, snapshots);
+            return new PackUploaded(rejected, changed);
+        } finally {
+            snapshots.forEach(FileSnapshot::close);
+        }
+    }
+
+    /**
+     * 切块后只上传服务器还没有的块，再提交新的清单：
+     * 上一次清单中的块直接认为服务器已有，过滤器判断可能已有的块批量询问服务器，其余的块直接上传，
+     * 服务器报告缺少的块（比如服务器清理过）会补传一次。提交清单前检查原文件没有变化
+     * @param path 文件绝对路径
+     * @param snapshot 文件的快照
+     * @param md5 文件摘要
+     * @param key 幂等键，提交清单时附带
+     * @throws IOException 网络或文件io异常
+     */
+    private void uploadChunks(String path, FileSnapshot snapshot, String md5, String key) throws IOException {
+        Path file = Paths.get(path);
+        List<ChunkEngine.Chunk> chunks = chunkEngine.split(snapshot.getPath());
+        ChunkManifest previous = ChunkManifest.load(path);
+        Set<String> known = previous == null ? Collections.emptySet() : new HashSet<>(previous.getChunks());
+        Map<String, ChunkEngine.Chunk> byHash = new LinkedHashMap<>();
+        for (ChunkEngine.Chunk chunk : chunks) {
+            byHash.putIfAbsent(chunk.getHash(), chunk);
+        }
+
+        List<String> toSend = new ArrayList<>();
+        List<String> candidates = new ArrayList<>();
+        boolean canQuery = knownChunks != null && networkUtil.features().supports(FEATURE_DEDUP);
+        for (String hash : byHash.keySet()) {
+            if (known.contains(hash)) {
+                continue;
+            }
+            if (canQuery && knownChunks.mightContain(hash)) {
+                candidates.add(hash);
+            } else {
+                toSend.add(hash);
+            }
+        }
+        for (int i = 0; i < candidates.size(); i += QUERY_BATCH) {
+            toSend.addAll(networkUtil.queryChunks(candidates.subList(i, Math.min(candidates.size(), i + QUERY_BATCH))));
+        }
+
+        ChunkManifest manifest = new ChunkManifest(path, md5, chunks);
+        long sentBytes = 0;
+        try (FileChannel channel = FileChannel.open(snapshot.getPath(), StandardOpenOption.READ)) {
+            for (String hash : toSend) {
+                ChunkEngine.Chunk chunk = byHash.get(hash);
+                if (chunk == null) {
+                    throw new IOException("server asked for unknown chunk: " + hash);
+                }
+                networkUtil.uploadChunk(hash, ChunkEngine.readChunk(channel, chunk));
+                sentBytes += chunk.getLength();
+                if (knownChunks != null) {
+                    //中途失败重试时，已经发送的块通过询问服务器跳过
+                    knownChunks.add(hash);
+                }
+            }
+            snapshot.verify();
+            List<String> missing = networkUtil.commitChunks(manifest, file.getFileName().toString(), key);
+            if (!missing.isEmpty()) {
+                logger.warn("server missing chunks: " + missing.size());
+                for (String hash : missing) {
+                    ChunkEngine.Chunk chunk = byHash.get(hash);
+                    if (chunk == null) {
+                        throw new IOException("server asked for unknown chunk: " + hash);
+                    }
+                    networkUtil.uploadChunk(hash, ChunkEngine.readChunk(channel, chunk));
+                    sentBytes += chunk.getLength();
+                }
+                snapshot.verify();
+                if (!networkUtil.commitChunks(manifest, file.getFileName().toString(), key).isEmpty()) {
+                    throw new IOException("chunk commit still missing chunks");
+                }
+            }
+        }
+        manifest.save();
+        if (knownChunks != null) {
+            byHash.keySet().forEach(knownChunks::add);
+        }
+        logger.info("chunk upload " + path + " chunks: " + chunks.size() + " queried: " + candidates.size()
+                + " sent bytes: " + sentBytes + "/" + manifest.getSize());
+    }
+}
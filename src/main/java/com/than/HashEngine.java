@@ -0,0 +1,55 @@
+package com.than;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 摘要算法的注册表，算法名称同时也是和服务器协商时使用的名称
+ */
+public class HashEngine {
+
+    //默认算法，旧版本服务器只认识md5
+    public static final String MD5 = "md5";
+    public static final String XX128 = "xx128";
+    public static final String BLAKE3 = "blake3";
+
+    private static final Map<String, Supplier<FileHasher>> engines = new ConcurrentHashMap<>();
+
+    static {
+        register(MD5, Md5Hasher::new);
+        register(XX128, Xx128Hasher::new);
+        register(BLAKE3, Blake3Hasher::new);
+    }
+
+    /**
+     * 注册新的算法
+     * @param name 算法名称
+     * @param factory 创建实例的函数
+     */
+    public static void register(String name, Supplier<FileHasher> factory) {
+        engines.put(name, factory);
+    }
+
+    /**
+     * 创建算法实例
+     * @param name 算法名称，为空时使用md5
+     * @return 算法实例
+     */
+    public static FileHasher create(String name) {
+        Supplier<FileHasher> factory = engines.get(name == null ? MD5 : name);
+        if (factory == null) {
+            throw new IllegalArgumentException("unknown hash algorithm: " + name);
+        }
+        return factory.get();
+    }
+
+    public static boolean isSupported(String name) {
+        return name != null && engines.containsKey(name);
+    }
+
+    public static Set<String> getSupported() {
+        return engines.keySet();
+    }
+}
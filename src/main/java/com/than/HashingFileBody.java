@@ -0,0 +1,89 @@
+package com.than;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 边发送边计算摘要的文件请求体，文件只读一次。
+ * 通过FileChannel读进直接内存，同一块数据先交给摘要算法再写入连接，发送完成后摘要可用，
+ * 摘要和FileData.getDigest的算法一致（文件名加文件内容）。
+ * okhttp重试时会再次调用writeTo，每次都重新计算
+ */
+public class HashingFileBody extends RequestBody {
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/octet-stream");
+
+    private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    private final Path file;
+    private final long length;
+    private final String algorithm;
+    private volatile String digest;
+
+    /**
+     * @param file 文件
+     * @param length 开始上传前的文件大小，发送的字节数必须和它一致
+     * @param algorithm 摘要算法，见HashEngine
+     */
+    public HashingFileBody(Path file, long length, String algorithm) {
+        this.file = file;
+        this.length = length;
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        digest = null;
+        FileHasher hasher = HashEngine.create(algorithm);
+        hasher.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = readBuffer.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                if (length - position < buffer.capacity()) {
+                    buffer.limit((int) (length - position));
+                }
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    //已经声明了长度，文件变短时只能放弃这次请求
+                    throw new IOException("file truncated while uploading: " + file);
+                }
+                position += read;
+                buffer.flip();
+                hasher.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    sink.write(buffer);
+                }
+            }
+        }
+        digest = FileData.bytesToHex(hasher.digest());
+    }
+
+    /**
+     * 发送完成后的摘要
+     * @return 十六进制摘要，还没有发送完时返回null
+     */
+    public String getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,481 @@
+package com.than;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 忽略规则引擎，规则的写法和.gitignore一样，来源是配置文件和每个目录下的忽略文件，
+ * 下级目录的忽略文件优先级更高，同一个来源里后写的规则优先。
+ * <p>
+ * 规则在加载时编译成几种结构：不带路径的字面文件名放进哈希表，*.ext这类规则按扩展名分桶，
+ * 带路径的规则按开头的字面目录放进前缀树，只有剩下的通配部分才编译成正则，
+ * 所以匹配一个条目只需要查几次表、沿前缀树走路径的深度，开销不会随规则数量增长，
+ * 只有既没有字面扩展名、开头也没有字面目录的通配规则（比如~$*、**&#47;a/b）才需要逐条匹配。
+ * <p>
+ * 扫描时被忽略的目录整个跳过，不会再列出里面的内容；另外还有文件大小上限和扩展名过滤，只对普通文件生效
+ */
+public class IgnoreRules {
+
+    private static final Logger logger = Logger.getLogger(IgnoreRules.class);
+
+    private final List<Path> roots = new ArrayList<>();
+    //每个根目录对应一个只有配置规则的作用域
+    private final Map<Path, Scope> baseScopes = new HashMap<>();
+    private final String ignoreFileName;
+    private final long maxFileSize;
+    private final Set<String> includeExtensions;
+    private final Set<String> excludeExtensions;
+    //监听模式下检查单个路径时，按目录缓存已经加载过忽略文件的作用域
+    private final Map<Path, Scope> scopeCache = new ConcurrentHashMap<>();
+
+    /**
+     * 编译配置中的规则
+     * @param config 配置
+     * @param rootFolders 根目录，配置中带路径的规则以每个根目录为起点
+     */
+    public IgnoreRules(Config config, List<Path> rootFolders) {
+        this.ignoreFileName = config.getIgnoreFileName();
+        this.maxFileSize = config.getMaxFileSize();
+        this.includeExtensions = normalizeExtensions(config.getIncludeExtensions());
+        this.excludeExtensions = normalizeExtensions(config.getExcludeExtensions());
+        RuleSet configRules = RuleSet.compile(config.getIgnorePatterns());
+        for (Path root : rootFolders) {
+            Path absolute = root.toAbsolutePath();
+            roots.add(absolute);
+            baseScopes.put(absolute, new Scope(null, absolute, configRules));
+        }
+    }
+
+    /**
+     * 获取扫描一个目录时使用的作用域，目录自己的忽略文件由扫描器在列出目录后再加载
+     * @param dir 要扫描的目录
+     * @return 作用域，目录本身（或者它的上级目录）被忽略时返回null，不在根目录下时也返回null
+     */
+    public Scope scopeFor(Path dir) {
+        Path absolute = dir.toAbsolutePath();
+        Path root = findRoot(absolute);
+        if (root == null) {
+            return null;
+        }
+        Scope scope = baseScopes.get(root);
+        Path current = root;
+        for (int i = root.getNameCount(); i < absolute.getNameCount(); i++) {
+            Scope own = resolve(current, scope);
+            String name = absolute.getName(i).toString();
+            Path child = current.resolve(name);
+            if (own.matches(child.toString(), name, true)) {
+                return null;
+            }
+            scope = own;
+            current = child;
+        }
+        return scope;
+    }
+
+    /**
+     * 只按忽略规则判断一个路径是否被忽略（包括上级目录被忽略），不检查文件大小和扩展名，
+     * 用于过滤监听到的事件，路径可能已经被删除
+     * @param path 路径
+     * @return true表示被忽略
+     */
+    public boolean isIgnored(Path path) {
+        Path absolute = path.toAbsolutePath();
+        Scope scope = ownScopeOfParent(absolute);
+        if (scope == null) {
+            return absolute.getParent() != null && findRoot(absolute.getParent()) != null;
+        }
+        String name = absolute.getFileName().toString();
+        return scope.matches(absolute.toString(), name, Files.isDirectory(absolute, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    /**
+     * 判断一个路径是否被忽略，普通文件还会检查大小和扩展名
+     * @param path 路径
+     * @param attrs 路径的属性
+     * @return true表示被忽略
+     */
+    public boolean isIgnored(Path path, BasicFileAttributes attrs) {
+        Path absolute = path.toAbsolutePath();
+        Scope scope = ownScopeOfParent(absolute);
+        if (scope == null) {
+            return absolute.getParent() != null && findRoot(absolute.getParent()) != null;
+        }
+        return scope.isIgnored(absolute, attrs);
+    }
+
+    /**
+     * 目录下的忽略文件发生了变化，丢掉这个目录及其子目录缓存的作用域
+     * @param dir 目录
+     */
+    public void invalidate(Path dir) {
+        Path absolute = dir.toAbsolutePath();
+        scopeCache.keySet().removeIf(cached -> cached.startsWith(absolute));
+    }
+
+    public String getIgnoreFileName() {
+        return ignoreFileName;
+    }
+
+    /**
+     * 获取路径所在目录自己的作用域（已加载这个目录的忽略文件）
+     * @return 作用域，路径不在根目录下、本身是根目录或者上级目录被忽略时返回null
+     */
+    private Scope ownScopeOfParent(Path absolute) {
+        Path parent = absolute.getParent();
+        if (parent == null || findRoot(parent) == null) {
+            return null;
+        }
+        Scope scope = scopeFor(parent);
+        return scope == null ? null : resolve(parent, scope);
+    }
+
+    private Scope resolve(Path dir, Scope parentScope) {
+        return scopeCache.computeIfAbsent(dir, d -> parentScope.enter(d, Files.isRegularFile(d.resolve(ignoreFileName))));
+    }
+
+    /**
+     * 找到包含这个路径的根目录，根目录嵌套时取最深的一个
+     */
+    private Path findRoot(Path absolute) {
+        Path found = null;
+        for (Path root : roots) {
+            if (absolute.startsWith(root) && (found == null || root.getNameCount() > found.getNameCount())) {
+                found = root;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 普通文件是否被大小上限或扩展名过滤掉
+     */
+    private boolean isFiltered(String name, long size) {
+        if (maxFileSize > 0 && size > maxFileSize) {
+            return true;
+        }
+        if (includeExtensions.isEmpty() && excludeExtensions.isEmpty()) {
+            return false;
+        }
+        int dot = name.lastIndexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return (!includeExtensions.isEmpty() && !includeExtensions.contains(extension))
+                || excludeExtensions.contains(extension);
+    }
+
+    private static Set<String> normalizeExtensions(List<String> extensions) {
+        Set<String> result = new HashSet<>();
+        for (String extension : extensions) {
+            String normalized = extension.startsWith(".") ? extension.substring(1) : extension;
+            result.add(normalized.toLowerCase(Locale.ROOT));
+        }
+        return result;
+    }
+
+    /**
+     * 一个目录的规则作用域，由这个目录的忽略文件和所有上级作用域组成，不可变，可以被多个扫描线程共享
+     */
+    public class Scope {
+        private final Scope parent;
+        private final RuleSet rules;
+        private final String base;
+        //条目路径去掉这么长的前缀就是相对于base的路径
+        private final int prefixLength;
+
+        private Scope(Scope parent, Path base, RuleSet rules) {
+            this.parent = parent;
+            this.rules = rules;
+            this.base = base.toString();
+            this.prefixLength = this.base.endsWith(File.separator) ? this.base.length() : this.base.length() + 1;
+        }
+
+        /**
+         * 进入一个子目录，子目录有忽略文件时加载它，否则直接沿用当前作用域
+         * @param dir 子目录
+         * @param hasIgnoreFile 子目录下是否有忽略文件，扫描器列出目录时就能知道，不需要再访问一次文件系统
+         * @return 子目录的作用域
+         */
+        public Scope enter(Path dir, boolean hasIgnoreFile) {
+            if (!hasIgnoreFile) {
+                return this;
+            }
+            Path file = dir.resolve(ignoreFileName);
+            try {
+                return new Scope(this, dir.toAbsolutePath(), RuleSet.compile(Files.readAllLines(file, StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                logger.warn("read ignore file error: " + file);
+                return this;
+            }
+        }
+
+        /**
+         * 判断当前作用域下的一个条目是否被忽略
+         * @param entry 条目路径
+         * @param attrs 条目的属性
+         * @return true表示被忽略，被忽略的目录不需要再进入
+         */
+        public boolean isIgnored(Path entry, BasicFileAttributes attrs) {
+            String name = entry.getFileName().toString();
+            if (attrs.isRegularFile() && isFiltered(name, attrs.size())) {
+                return true;
+            }
+            return matches(entry.toAbsolutePath().toString(), name, attrs.isDirectory());
+        }
+
+        /**
+         * 从最深的作用域开始找，第一个有规则命中的作用域决定结果
+         */
+        private boolean matches(String absolute, String name, boolean directory) {
+            for (Scope scope = this; scope != null; scope = scope.parent) {
+                if (scope.rules.isEmpty() || absolute.length() <= scope.prefixLength) {
+                    continue;
+                }
+                String relative = absolute.substring(scope.prefixLength);
+                if (File.separatorChar != '/') {
+                    relative = relative.replace(File.separatorChar, '/');
+                }
+                Rule rule = scope.rules.match(relative, name, directory);
+                if (rule != null) {
+                    return !rule.negate;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 一条编译后的规则，regex为null表示字面匹配（已经由哈希表或前缀树保证）
+     */
+    private static class Rule {
+        private final int order;
+        private final boolean negate;
+        private final boolean directoryOnly;
+        private final Pattern regex;
+
+        Rule(int order, boolean negate, boolean directoryOnly, Pattern regex) {
+            this.order = order;
+            this.negate = negate;
+            this.directoryOnly = directoryOnly;
+            this.regex = regex;
+        }
+    }
+
+    /**
+     * 前缀树的节点，按路径的一段索引
+     */
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        //路径正好到这个节点结束时命中的规则
+        private final List<Rule> literal = new ArrayList<>();
+        //剩余路径还要用正则匹配的规则
+        private final List<Rule> globs = new ArrayList<>();
+    }
+
+    /**
+     * 一个来源（配置或者一个忽略文件）编译后的规则
+     */
+    private static class RuleSet {
+        //不带路径的字面文件名
+        private final Map<String, List<Rule>> names = new HashMap<>();
+        //不带路径、以.ext结尾的通配规则，按扩展名分桶
+        private final Map<String, List<Rule>> extensions = new HashMap<>();
+        //不带路径、没有字面扩展名的通配规则，比如~$*
+        private final List<Rule> nameGlobs = new ArrayList<>();
+        //以**开头的带路径规则，需要和整个相对路径匹配
+        private final List<Rule> pathGlobs = new ArrayList<>();
+        //其他带路径的规则，按开头的字面目录放进前缀树
+        private final Node root = new Node();
+        private int size;
+
+        static RuleSet compile(List<String> lines) {
+            RuleSet set = new RuleSet();
+            for (String line : lines) {
+                set.add(line);
+            }
+            return set;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        private void add(String line) {
+            String pattern = line.strip();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return;
+            }
+            boolean negate = false;
+            if (pattern.startsWith("!")) {
+                negate = true;
+                pattern = pattern.substring(1);
+            } else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = false;
+            while (pattern.endsWith("/")) {
+                directoryOnly = true;
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            if (pattern.isEmpty()) {
+                return;
+            }
+            int order = size++;
+            //和.gitignore一样，开头或中间有/的规则相对于规则所在的目录，否则匹配任意层级的文件名
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (!anchored) {
+                addNameRule(pattern, negate, directoryOnly, order);
+            } else if (pattern.startsWith("**/") && !pattern.substring(3).contains("/")) {
+                addNameRule(pattern.substring(3), negate, directoryOnly, order);
+            } else if (pattern.startsWith("**/")) {
+                pathGlobs.add(new Rule(order, negate, directoryOnly, Pattern.compile(globToRegex(pattern))));
+            } else {
+                addPathRule(pattern, negate, directoryOnly, order);
+            }
+        }
+
+        private void addNameRule(String pattern, boolean negate, boolean directoryOnly, int order) {
+            if (isLiteral(pattern)) {
+                names.computeIfAbsent(pattern, k -> new ArrayList<>()).add(new Rule(order, negate, directoryOnly, null));
+                return;
+            }
+            Rule rule = new Rule(order, negate, directoryOnly, Pattern.compile(globToRegex(pattern)));
+            //通配符之后的字面部分带扩展名时按扩展名分桶，只有扩展名相同的文件才需要匹配正则
+            int lastWildcard = Math.max(Math.max(pattern.lastIndexOf('*'), pattern.lastIndexOf('?')),
+                    Math.max(pattern.lastIndexOf(']'), pattern.lastIndexOf('\\')));
+            String tail = pattern.substring(lastWildcard + 1);
+            int dot = tail.lastIndexOf('.');
+            if (dot >= 0) {
+                extensions.computeIfAbsent(tail.substring(dot + 1), k -> new ArrayList<>()).add(rule);
+            } else {
+                nameGlobs.add(rule);
+            }
+        }
+
+        private void addPathRule(String pattern, boolean negate, boolean directoryOnly, int order) {
+            String[] segments = pattern.split("/");
+            Node node = root;
+            int i = 0;
+            while (i < segments.length && isLiteral(segments[i]) && !segments[i].isEmpty()) {
+                node = node.children.computeIfAbsent(segments[i], k -> new Node());
+                i++;
+            }
+            if (i == segments.length) {
+                node.literal.add(new Rule(order, negate, directoryOnly, null));
+                return;
+            }
+            String rest = String.join("/", Arrays.copyOfRange(segments, i, segments.length));
+            node.globs.add(new Rule(order, negate, directoryOnly, Pattern.compile(globToRegex(rest))));
+        }
+
+        /**
+         * 找到命中的规则中最后写的一条
+         * @param relative 相对于规则所在目录的路径，用/分隔
+         * @param name 文件名
+         * @param directory 是否是目录
+         * @return 命中的规则，没有命中时返回null
+         */
+        Rule match(String relative, String name, boolean directory) {
+            Rule best = pick(null, names.get(name), name, 0, directory);
+            int dot = name.lastIndexOf('.');
+            if (dot >= 0) {
+                best = pick(best, extensions.get(name.substring(dot + 1)), name, 0, directory);
+            }
+            best = pick(best, nameGlobs, name, 0, directory);
+            best = pick(best, pathGlobs, relative, 0, directory);
+            Node node = root;
+            int start = 0;
+            while (node != null) {
+                if (start >= relative.length()) {
+                    best = pick(best, node.literal, relative, start, directory);
+                    break;
+                }
+                best = pick(best, node.globs, relative, start, directory);
+                int slash = relative.indexOf('/', start);
+                int end = slash < 0 ? relative.length() : slash;
+                node = node.children.get(relative.substring(start, end));
+                start = slash < 0 ? relative.length() : slash + 1;
+            }
+            return best;
+        }
+
+        private static Rule pick(Rule best, List<Rule> rules, String input, int from, boolean directory) {
+            if (rules == null) {
+                return best;
+            }
+            for (Rule rule : rules) {
+                if ((best != null && rule.order < best.order) || (rule.directoryOnly && !directory)) {
+                    continue;
+                }
+                if (rule.regex == null || rule.regex.matcher(input).region(from, input.length()).matches()) {
+                    best = rule;
+                }
+            }
+            return best;
+        }
+
+        private static boolean isLiteral(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*' || c == '?' || c == '[' || c == '\\') {
+                    return false;
+                }
+            }
+            return !pattern.equals("**");
+        }
+
+        /**
+         * 把通配符转成正则：*和?不跨目录，**跨任意层目录，[]是字符集合，\转义下一个字符
+         */
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            int i = 0;
+            while (i < glob.length()) {
+                char c = glob.charAt(i);
+                if (c == '*' && glob.startsWith("**", i)) {
+                    boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+                    if (segmentStart && glob.startsWith("**/", i)) {
+                        regex.append("(?:.*/)?");
+                        i += 3;
+                        continue;
+                    }
+                    if (segmentStart && i + 2 == glob.length()) {
+                        regex.append(".*");
+                        i += 2;
+                        continue;
+                    }
+                    regex.append("[^/]*");
+                    i += 2;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                    i++;
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                    i++;
+                } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                    int close = glob.indexOf(']', i + 2);
+                    String set = glob.substring(i + 1, close);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = close + 1;
+                } else if (c == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i + 1))));
+                    i += 2;
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    i++;
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
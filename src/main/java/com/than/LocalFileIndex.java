@@ -0,0 +1,341 @@
+package com.than;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.function.BiConsumer;
+
+/**
+ * 本地文件元数据索引，记录每个文件的路径、大小、修改时间、文件标识（inode等）和二进制摘要，
+ * 启动时按位置分块读取到内存中的文件目录表（不使用内存映射，windows下映射还在时不能截断或替换文件），之后的修改只追加到文件末尾，失效记录过多时整体压缩重写，
+ * 这样程序启动和扫描都不需要等待服务器
+ * <p>
+ * 文件格式：头部为魔数和版本号，之后每条记录为
+ * 类型(1字节) 路径长度(2字节) 路径(utf-8)，类型为PUT时后面跟着 大小(8) 修改时间(8) 文件标识(8) 摘要长度(1) 摘要
+ */
+public class LocalFileIndex {
+
+    private static final Logger logger = Logger.getLogger(LocalFileIndex.class);
+
+    private static final int MAGIC = 0x54444958; // "TDIX"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    //失效记录数超过这个值并且超过有效记录数时才压缩，避免小索引频繁重写
+    private static final int COMPACT_MIN_DEAD_RECORDS = 10000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    //读取时的缓冲区，比最长的记录（路径65535字节）大得多
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * 单个文件的元数据，大小为-1表示只知道摘要（比如来自服务器），需要重新读取文件属性
+     */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final long fileKey;
+        private final byte[] digest;
+
+        public Entry(long size, long lastModified, long fileKey, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.digest = digest;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getFileKey() {
+            return fileKey;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+    }
+
+    private final Path indexFile;
+    private final FileCatalog entries;
+    private FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private long deadRecords;
+
+    /**
+     * 打开索引文件，不存在时创建
+     * @param indexFile 索引文件路径
+     * @param catalog 记录读取到这个目录表中，之后的修改也会同步到目录表
+     * @throws IOException 读取索引时的io异常
+     */
+    public LocalFileIndex(Path indexFile, FileCatalog catalog) throws IOException {
+        this.indexFile = indexFile;
+        this.entries = catalog;
+        load();
+    }
+
+    /**
+     * 读取整个索引，末尾不完整的记录（写入时程序被杀掉）会被截掉
+     * @throws IOException io异常
+     */
+    private void load() throws IOException {
+        channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        long validEnd = HEADER_SIZE;
+        if (fileSize >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                //按位置读满头部
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getShort() != VERSION) {
+                logger.warn("unknown index format, rebuild: " + indexFile);
+                validEnd = 0;
+            } else {
+                validEnd = readRecords(fileSize);
+            }
+        } else {
+            validEnd = 0;
+        }
+        if (validEnd == 0) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, channel.size());
+            }
+            validEnd = HEADER_SIZE;
+        } else if (validEnd < fileSize) {
+            logger.warn("index tail broken, truncate to " + validEnd);
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        logger.info("local index loaded, entries: " + entries.size());
+    }
+
+    /**
+     * 从头部之后按位置分块读取，逐条解析记录，记录跨过缓冲区末尾时把剩下的部分移到开头再读下一块
+     * @param fileSize 索引文件大小
+     * @return 最后一条完整记录的结束位置
+     * @throws IOException io异常
+     */
+    private long readRecords(long fileSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        buffer.flip();
+        long readPosition = HEADER_SIZE;
+        long validEnd = HEADER_SIZE;
+        while (true) {
+            int start = buffer.position();
+            try {
+                if (!readRecord(buffer)) {
+                    break;
+                }
+                validEnd += buffer.position() - start;
+            } catch (BufferUnderflowException e) {
+                buffer.position(start);
+                if (readPosition >= fileSize) {
+                    //最后一条记录不完整
+                    break;
+                }
+                buffer.compact();
+                int read = channel.read(buffer, readPosition);
+                buffer.flip();
+                if (read <= 0) {
+                    break;
+                }
+                readPosition += read;
+            }
+        }
+        return validEnd;
+    }
+
+    /**
+     * 读取一条记录，记录完整读出后才修改目录表
+     * @param buffer 读到的数据
+     * @return false表示遇到未知的记录类型
+     * @throws BufferUnderflowException 缓冲区中的数据不够一条记录
+     */
+    private boolean readRecord(ByteBuffer buffer) {
+        byte type = buffer.get();
+        byte[] pathBytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(pathBytes);
+        String path = new String(pathBytes, StandardCharsets.UTF_8);
+        if (type == TYPE_PUT) {
+            long size = buffer.getLong();
+            long lastModified = buffer.getLong();
+            long fileKey = buffer.getLong();
+            byte[] digest = new byte[buffer.get() & 0xFF];
+            buffer.get(digest);
+            if (entries.put(path, new Entry(size, lastModified, fileKey, digest))) {
+                deadRecords++;
+            }
+            return true;
+        }
+        if (type == TYPE_REMOVE) {
+            if (entries.remove(path)) {
+                deadRecords++;
+            }
+            deadRecords++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 获取文件的元数据
+     * @param path 文件绝对路径
+     * @return 元数据，没有记录时返回null
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * 记录文件的元数据
+     * @param path 文件绝对路径
+     * @param entry 元数据
+     * @throws IOException 写索引时的io异常
+     */
+    public synchronized void put(String path, Entry entry) throws IOException {
+        if (entries.put(path, entry)) {
+            deadRecords++;
+        }
+        appendRecord(TYPE_PUT, path, entry);
+    }
+
+    /**
+     * 删除文件的记录，追加一条删除记录
+     * @param path 文件绝对路径
+     * @throws IOException 写索引时的io异常
+     */
+    public synchronized void remove(String path) throws IOException {
+        if (entries.remove(path)) {
+            deadRecords += 2;
+            appendRecord(TYPE_REMOVE, path, null);
+        }
+    }
+
+    /**
+     * 遍历所有记录
+     * @param action 处理函数
+     */
+    public void forEach(BiConsumer<String, Entry> action) {
+        entries.forEach(action);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private void appendRecord(byte type, String path, Entry entry) throws IOException {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        int length = 3 + pathBytes.length + (entry == null ? 0 : 25 + entry.getDigest().length);
+        if (writeBuffer.remaining() < length) {
+            flushBuffer();
+        }
+        if (length > writeBuffer.capacity()) {
+            writeRecord(ByteBuffer.allocate(length), type, pathBytes, entry);
+            return;
+        }
+        writeRecord(writeBuffer, type, pathBytes, entry);
+    }
+
+    private void writeRecord(ByteBuffer buffer, byte type, byte[] pathBytes, Entry entry) throws IOException {
+        buffer.put(type).putShort((short) pathBytes.length).put(pathBytes);
+        if (entry != null) {
+            buffer.putLong(entry.getSize()).putLong(entry.getLastModified()).putLong(entry.getFileKey())
+                    .put((byte) entry.getDigest().length).put(entry.getDigest());
+        }
+        if (buffer != writeBuffer) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * 把缓冲区中的记录写入磁盘
+     * @throws IOException io异常
+     */
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+        channel.force(false);
+    }
+
+    /**
+     * 失效记录过多时，把有效记录写入临时文件后替换原索引
+     * @throws IOException io异常
+     */
+    public synchronized void compactIfNeeded() throws IOException {
+        if (deadRecords < COMPACT_MIN_DEAD_RECORDS || deadRecords < entries.size()) {
+            flush();
+            return;
+        }
+        logger.info("compact local index, entries: " + entries.size() + " dead records: " + deadRecords);
+        flushBuffer();
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        FileChannel oldChannel = channel;
+        try (FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel = tempChannel;
+            writeBuffer.putInt(MAGIC).putShort(VERSION);
+            entries.forEach((path, entry) -> {
+                try {
+                    appendRecord(TYPE_PUT, path, entry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            flushBuffer();
+            tempChannel.force(false);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            //写临时文件失败时缓冲区中剩下的记录不能写进旧索引
+            writeBuffer.clear();
+            channel = oldChannel;
+        }
+        oldChannel.close();
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deadRecords = 0;
+        } catch (IOException e) {
+            //windows下索引被其他程序（比如杀毒软件）打开时无法替换，继续使用旧索引，下次再压缩
+            logger.error("compact local index error", e);
+        } finally {
+            channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    /**
+     * 关闭索引
+     * @throws IOException io异常
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
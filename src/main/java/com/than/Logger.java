@@ -37,6 +37,10 @@ public class Logger {
         logFilePath = path;
     }
 
+    public static String getLogFilePath() {
+        return logFilePath;
+    }
+
     public void debug(String message) {
         log(Level.DEBUG, message, null);
     }
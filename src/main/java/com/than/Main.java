@@ -20,26 +20,32 @@ public class Main {
 
             FileManager fileManager = new FileManager();
             NetworkUtil networkUtil = new NetworkUtil();
-            String mapText;
-
+            fileManager.negotiateHashAlgorithm(networkUtil);
             logger.info("get file map");
-            try {
-                mapText = networkUtil.getFileMap();
-            } catch (IOException e) {
-                logger.error("get file map error", e);
-                Util.showWindowsNotification("服务器可能遇到问题", "查看日志文件");
-                logger.warn("start waiting server......");
-                while (true) {
-                    try {
-                        mapText = networkUtil.getFileMap();
-                        break;
-                    } catch (Exception i) {
-                        Thread.sleep(2000);
+            if (fileManager.hasLocalIndex()) {
+                //本地有索引时不需要等待服务器，服务器上线后同步时会自动对账
+                try {
+                    fileManager.loadFileMap(networkUtil);
+                } catch (IOException e) {
+                    logger.warn("server offline, start with local index");
+                }
+            } else {
+                try {
+                    fileManager.loadFileMap(networkUtil);
+                } catch (IOException e) {
+                    logger.error("get file map error", e);
+                    Util.showWindowsNotification("服务器可能遇到问题", "查看日志文件");
+                    logger.warn("start waiting server......");
+                    while (true) {
+                        try {
+                            fileManager.loadFileMap(networkUtil);
+                            break;
+                        } catch (Exception i) {
+                            Thread.sleep(2000);
+                        }
                     }
                 }
             }
-
-            fileManager.setFileMd5Map(mapText);
             SocketManager socketManager = new SocketManager(fileManager, networkUtil);
             logger.info("open socket");
             socketManager.start();
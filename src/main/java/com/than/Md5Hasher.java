@@ -0,0 +1,32 @@
+package com.than;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * md5摘要，默认算法，和旧版本的服务器兼容
+ */
+public class Md5Hasher implements FileHasher {
+
+    private final MessageDigest md;
+
+    public Md5Hasher() {
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            //每个jdk都必须提供md5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        md.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        return md.digest();
+    }
+}
@@ -1,14 +1,31 @@
 package com.than;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import okhttp3.*;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 import java.io.*;
 import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 
 /**
  * 这是网络io的工具类，包括socket通信和http请求函数
@@ -19,11 +36,8 @@ public class NetworkUtil {
     //这个是baseUrl
     private final String FILE_URL;
 
-    //okhttp主类
-    private final OkHttpClient CLIENT = new OkHttpClient.Builder()
-            .connectTimeout(10, TimeUnit.SECONDS)
-            .readTimeout(30, TimeUnit.SECONDS)
-            .build();
+    //okhttp主类，在构造函数中创建，连接池按上传线程数保留空闲连接，并发上传时可以复用连接
+    private final OkHttpClient CLIENT;
 
     //socket，为了和ui通讯
     private ServerSocket serverSocket;
@@ -31,7 +45,50 @@ public class NetworkUtil {
 
     private final Gson gson = new Gson();
 
+    //和服务器协商好的摘要算法，md5时不附带算法字段，保持和旧服务器兼容
+    private volatile String hashAlgorithm = HashEngine.MD5;
+    //和服务器协商好的树形摘要阈值，0表示不使用树形摘要
+    private volatile long treeHashThreshold;
+    private volatile long treeHashSegmentSize;
+
+    //服务器支持的功能，成功获取一次后缓存
+    private volatile ServerFeatures serverFeatures;
+
+    //生成新版本的请求带上发件箱中操作的幂等键，服务器对同一个键只处理一次
+    public static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+    //下载响应中文件的总大小，按范围下载时用它规划分段
+    public static final String FILE_SIZE_HEADER = "File-Size";
+    //下载响应中版本的摘要，下载完成后用它校验
+    public static final String FILE_DIGEST_HEADER = "File-Digest";
+    //摘要的算法和树形摘要的分段大小，都是上传这个版本时使用的，分段大小为0或没有表示整个文件的摘要
+    public static final String FILE_DIGEST_ALGORITHM_HEADER = "File-Digest-Algorithm";
+    public static final String FILE_DIGEST_TREE_HEADER = "File-Digest-Tree-Segment";
+    //下载时每次读写的大小
+    private static final int DOWNLOAD_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> downloadBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_SIZE));
+
+    //上传和下载的限速器，所有请求共用，速率由BandwidthShaper调整
+    private final RateLimiter uploadLimiter = new RateLimiter();
+    private final RateLimiter downloadLimiter = new RateLimiter();
+    //下载过的版本，再次下载时不经过网络
+    private final VersionCache versionCache;
+
     public NetworkUtil() throws IOException {
+        CLIENT = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(Math.max(5, FileManager.getConfig().getUploadWorkers()), 5, TimeUnit.MINUTES))
+                .addInterceptor(chain -> {
+                    //所有请求体都经过上传限速
+                    Request request = chain.request();
+                    if (request.body() == null) {
+                        return chain.proceed(request);
+                    }
+                    return chain.proceed(request.newBuilder().method(request.method(), uploadLimiter.wrap(request.body())).build());
+                })
+                .build();
+        new BandwidthShaper(uploadLimiter, downloadLimiter).start();
+        versionCache = new VersionCache(FileManager.getDataPath("version_cache"));
         String serverIp = FileManager.getConfig().getServerIp();
         //格式化url
         if (serverIp == null || serverIp.isEmpty()) {
@@ -44,86 +101,545 @@ public class NetworkUtil {
         }
     }
 
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
     /**
-     * 上传文件
+     * 设置协商好的树形摘要参数
+     * @param threshold 使用树形摘要的文件大小阈值，0表示不使用
+     * @param segmentSize 分段大小，上传时告诉服务器，下载时用来校验
+     */
+    public void setTreeDigest(long threshold, long segmentSize) {
+        this.treeHashThreshold = threshold;
+        this.treeHashSegmentSize = segmentSize;
+    }
+
+    /**
+     * 上传时附带的树形摘要分段大小
+     * @param size 文件大小
+     * @return 分段大小，使用整个文件的摘要时为0
+     */
+    private long treeSegmentFor(long size) {
+        return usesTreeDigest(size) ? treeHashSegmentSize : 0;
+    }
+
+    /**
+     * 这个大小的文件是否使用树形摘要，只有服务器支持时才会使用
+     * @param size 文件大小
+     * @return true表示使用树形摘要
+     */
+    public boolean usesTreeDigest(long size) {
+        long threshold = treeHashThreshold;
+        return threshold > 0 && size >= threshold;
+    }
+
+    /**
+     * 上传文件，内容从快照读取，原文件在发送期间变化时中止请求
      * @param path 文件绝对路径
+     * @param snapshot 文件的快照
      * @param md5 文件md5
-     * @throws IOException 文件io异常
+     * @param key 幂等键，为null时不附带
+     * @throws IOException 文件io异常，服务器返回错误时也会抛出
      */
-    public void upload(String path, String md5) throws IOException {
+    public void upload(String path, FileSnapshot snapshot, String md5, String key) throws IOException {
         logger.info("upload");
         File fileToUpload = new File(path);
         MediaType mediaType = MediaType.parse("application/octet-stream");
-        RequestBody fileBody = RequestBody.create(fileToUpload, mediaType);
-        MultipartBody requestBody = new MultipartBody.Builder()
+        RequestBody fileBody = snapshot.guard(RequestBody.create(snapshot.getPath().toFile(), mediaType));
+        MultipartBody.Builder builder = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM) // 设置请求体类型
                 .addFormDataPart("path", path)
-                .addFormDataPart("md5", md5)
+                .addFormDataPart("md5", md5);
+        if (!HashEngine.MD5.equals(hashAlgorithm)) {
+            //md5字段中存放的是协商后的算法计算的摘要
+            builder.addFormDataPart("hash_algorithm", hashAlgorithm);
+        }
+        long treeSegment = treeSegmentFor(snapshot.getStat().getSize());
+        if (treeSegment > 0) {
+            builder.addFormDataPart("tree_segment", String.valueOf(treeSegment));
+        }
+        MultipartBody requestBody = builder
                 .addFormDataPart("file", fileToUpload.getName(), fileBody)
                 .build();
+        executeUpload(requestBody, key);
+    }
 
-        Request request = new Request.Builder()
+    /**
+     * 上传文件，摘要放在文件之后发送：文件部分边发送边计算摘要，md5字段在文件部分之后写入，
+     * 文件只读一次。需要服务器支持在文件之后接收摘要
+     * @param path 文件绝对路径
+     * @param snapshot 文件的快照，按打开时的文件大小发送
+     * @param key 幂等键，为null时不附带
+     * @return 发送的内容的摘要
+     * @throws IOException 文件io异常，服务器返回错误时也会抛出
+     */
+    public String uploadWithDigestTrailer(String path, FileSnapshot snapshot, String key) throws IOException {
+        logger.info("upload with digest trailer");
+        File fileToUpload = new File(path);
+        HashingFileBody fileBody = new HashingFileBody(snapshot.getPath(), snapshot.getStat().getSize(), hashAlgorithm);
+        RequestBody digestBody = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return null;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                String digest = fileBody.getDigest();
+                if (digest == null) {
+                    throw new IOException("file part not sent");
+                }
+                sink.writeUtf8(digest);
+            }
+        };
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("path", path);
+        if (!HashEngine.MD5.equals(hashAlgorithm)) {
+            builder.addFormDataPart("hash_algorithm", hashAlgorithm);
+        }
+        MultipartBody requestBody = builder
+                .addFormDataPart("file", fileToUpload.getName(), snapshot.guard(fileBody))
+                .addPart(MultipartBody.Part.createFormData("md5", null, digestBody))
+                .build();
+        executeUpload(requestBody, key);
+        return fileBody.getDigest();
+    }
+
+    private void executeUpload(RequestBody requestBody, String key) throws IOException {
+        Request.Builder builder = new Request.Builder()
                 .url(FILE_URL + "upload")
                 .post(requestBody)
+                .header("verify", FileManager.getConfig().getVerify());
+        if (key != null) {
+            builder.header(IDEMPOTENCY_HEADER, key);
+        }
+        try (Response response = CLIENT.newCall(builder.build()).execute()) {
+            if (!response.isSuccessful()) {
+                String message = response.message() + " code: " + response.code() + " body: " + response.body().string();
+                logger.error("Unexpected code", new RuntimeException(message));
+                Util.showWindowsNotification("遇到一些问题", "查看日志文件");
+                throw new IOException("upload failed: " + message);
+            }
+        }
+    }
+
+
+    /**
+     * 把多个小文件打包成一个请求上传，服务器拆开后按单个文件保存，省掉每个文件一次的请求往返。
+     * 每个文件的幂等键放在清单里
+     * @param files 发件箱中的上传操作
+     * @param snapshots 每个文件的快照，和files一一对应
+     * @return 服务器没有保存成功的文件
+     * @throws IOException 文件io异常，服务器返回错误时也会抛出，这时整个包都没有保存
+     */
+    public List<String> uploadPack(List<UploadOutbox.Item> files, List<FileSnapshot> snapshots) throws IOException {
+        logger.info("upload pack, files: " + files.size());
+        MediaType mediaType = MediaType.parse("application/octet-stream");
+        List<Map<String, String>> manifest = new ArrayList<>();
+        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        for (int i = 0; i < files.size(); i++) {
+            UploadOutbox.Item item = files.get(i);
+            Map<String, String> entry = new HashMap<>(Map.of("path", item.getPath(), "md5", item.getMd5(), "part", "file" + i, "key", item.getKey()));
+            long treeSegment = treeSegmentFor(snapshots.get(i).getStat().getSize());
+            if (treeSegment > 0) {
+                entry.put("tree_segment", String.valueOf(treeSegment));
+            }
+            manifest.add(entry);
+        }
+        //清单放在最前面，服务器读到文件之前就知道每个文件的路径
+        builder.addFormDataPart("manifest", gson.toJson(manifest));
+        if (!HashEngine.MD5.equals(hashAlgorithm)) {
+            builder.addFormDataPart("hash_algorithm", hashAlgorithm);
+        }
+        for (int i = 0; i < files.size(); i++) {
+            FileSnapshot snapshot = snapshots.get(i);
+            String name = new File(files.get(i).getPath()).getName();
+            builder.addFormDataPart("file" + i, name, snapshot.guard(RequestBody.create(snapshot.getPath().toFile(), mediaType)));
+        }
+        Request request = new Request.Builder()
+                .url(FILE_URL + "upload_pack")
+                .post(builder.build())
+                .header("verify", FileManager.getConfig().getVerify())
+                .build();
+        PackResult result = gson.fromJson(getString(request), PackResult.class);
+        if (result == null || result.failed == null) {
+            throw new IOException("bad pack upload response");
+        }
+        return result.failed;
+    }
+
+    /**
+     * upload_pack的响应体
+     */
+    private static class PackResult {
+        private List<String> failed;
+    }
+
+
+    /**
+     * 创建分段上传会话
+     * @param path 文件绝对路径
+     * @param md5 文件摘要
+     * @param name 文件名
+     * @param size 文件大小
+     * @param chunkSize 每段的大小
+     * @return 会话id
+     * @throws IOException 网络异常或服务器返回错误时
+     */
+    public String openUploadSession(String path, String md5, String name, long size, int chunkSize) throws IOException {
+        Map<String, Object> body = Map.of(
+                "path", path,
+                "md5", md5,
+                "name", name,
+                "size", size,
+                "chunk_size", chunkSize,
+                "hash_algorithm", hashAlgorithm,
+                "tree_segment", treeSegmentFor(size));
+        SessionStatus status = gson.fromJson(getString(jsonRequest("upload_session_open", body)), SessionStatus.class);
+        if (status == null || status.session == null) {
+            throw new IOException("bad upload session response");
+        }
+        return status.session;
+    }
+
+    /**
+     * 询问服务器已经收到了会话的哪些段
+     * @param session 会话id
+     * @return 服务器状态，会话不存在（过期或被清理）时返回null
+     * @throws IOException 网络异常或服务器返回其他错误时
+     */
+    public SessionStatus uploadSessionStatus(String session) throws IOException {
+        try (Response response = CLIENT.newCall(jsonRequest("upload_session_status", Map.of("session", session))).execute()) {
+            if (response.code() == 404) {
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                logger.error("Unexpected code", new RuntimeException(response.message() + " code: " + response.code() + " body: " + response.body().string()));
+                throw new IOException("upload session status failed: " + response.code());
+            }
+            SessionStatus status = gson.fromJson(response.body().string(), SessionStatus.class);
+            if (status == null || status.received == null) {
+                throw new IOException("bad upload session response");
+            }
+            return status;
+        }
+    }
+
+    /**
+     * 上传会话的一段，服务器校验sha-256后写到文件中对应的位置
+     * @param session 会话id
+     * @param index 段的序号
+     * @param hash 段的sha-256
+     * @param data 段的内容
+     * @throws IOException 网络异常或服务器返回错误时
+     */
+    public void uploadSessionChunk(String session, int index, String hash, byte[] data) throws IOException {
+        RequestBody requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("session", session)
+                .addFormDataPart("index", String.valueOf(index))
+                .addFormDataPart("hash", hash)
+                .addFormDataPart("chunk", hash, RequestBody.create(data, MediaType.parse("application/octet-stream")))
+                .build();
+        Request request = new Request.Builder()
+                .url(FILE_URL + "upload_session_chunk")
+                .post(requestBody)
                 .header("verify", FileManager.getConfig().getVerify())
                 .build();
+        getString(request);
+    }
+
+    /**
+     * 结束会话，服务器收齐所有段后把文件原子地保存成一个新版本
+     * @param session 会话id
+     * @param key 幂等键，为null时不附带
+     * @return 服务器还没有收到的段，为空表示保存成功
+     * @throws IOException 网络异常或服务器返回其他错误时
+     */
+    public List<Integer> finishUploadSession(String session, String key) throws IOException {
+        Request request = jsonRequest("upload_session_finish", Map.of("session", session));
+        if (key != null) {
+            request = request.newBuilder().header(IDEMPOTENCY_HEADER, key).build();
+        }
         try (Response response = CLIENT.newCall(request).execute()) {
+            if (response.code() == 409) {
+                SessionStatus status = gson.fromJson(response.body().string(), SessionStatus.class);
+                return status == null || status.missing == null ? new ArrayList<>() : status.missing;
+            }
             if (!response.isSuccessful()) {
                 logger.error("Unexpected code", new RuntimeException(response.message() + " code: " + response.code() + " body: " + response.body().string()));
-                Util.showWindowsNotification("遇到一些问题", "查看日志文件");
+                throw new IOException("upload session finish failed: " + response.code());
             }
+            return new ArrayList<>();
         }
     }
 
+    /**
+     * 分段上传接口的响应体
+     */
+    public static class SessionStatus {
+        private String session;
+        //从文件开头连续收到的字节数
+        private long offset;
+        //已经收到的段
+        private List<Integer> received;
+        //结束会话时还缺少的段
+        private List<Integer> missing;
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public List<Integer> getReceived() {
+            return received;
+        }
+    }
+
+    private Request jsonRequest(String api, Object body) throws IOException {
+        return new Request.Builder()
+                .url(FILE_URL + api)
+                .post(RequestBody.create(gson.toJson(body), MediaType.parse("application/json; charset=utf-8")))
+                .header("verify", FileManager.getConfig().getVerify())
+                .build();
+    }
 
     /**
-     * 下载文件
+     * 下载文件到配置的下载目录
      * @param downloadDir 下载文件全路径名
      * @param fileName 文件名称（指服务器中的文件名称，服务器中的文件名添加了上传时的时间戳）
      * @throws IOException io异常
      */
     public void downloadFile(String downloadDir, String fileName) throws IOException {
-        logger.info("download file");
         String downLoadPath = FileManager.getConfig().getDownLoadPath();
         if (!downLoadPath.endsWith("/") && !downLoadPath.endsWith("\\")) {
             downLoadPath = downLoadPath + "/";
         }
+        downloadFile(downloadDir, fileName, new File(downLoadPath + fileName).toPath(), () -> false);
+    }
+
+    /**
+     * 下载文件，本地缓存中有这个版本时直接从缓存取（见VersionCache）。
+     * 服务器支持按范围下载时分段并行下载（见SegmentedDownloader），否则用一个请求从临时文件末尾续传。
+     * 两种方式都先写到同目录的临时文件，下载完整后才原子地改成真正的文件名，下载失败时真正的文件名下不会出现不完整的文件
+     * @param downloadDir 下载文件全路径名
+     * @param fileName 文件名称（指服务器中的文件名称，服务器中的文件名添加了上传时的时间戳）
+     * @param target 目标文件
+     * @param stopped 返回true时尽快停止下载，已经下载的部分保留，下次继续
+     * @throws InterruptedIOException 下载被停止
+     * @throws IOException io异常
+     */
+    public void downloadFile(String downloadDir, String fileName, Path target, BooleanSupplier stopped) throws IOException {
+        logger.info("download file " + target);
+        if (versionCache.fetch(downloadDir, fileName, target)) {
+            logger.info("download " + target + " from version cache");
+            //之前没有下载完的进度已经用不上了
+            SegmentedDownloader.discard(target);
+            return;
+        }
+        if (features().supports(SegmentedDownloader.FEATURE_RANGE)) {
+            new SegmentedDownloader(this, FileManager.getConfig(), stopped).download(downloadDir, fileName, target);
+        } else {
+            Path temp = SegmentedDownloader.getTempFile(target);
+            long downloadedSize = Files.exists(temp) ? Files.size(temp) : 0;
+            DownloadInfo info;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // 从临时文件的末尾继续，为了断点续传
+                info = downloadRange(downloadDir, fileName, downloadedSize, -1, channel, position -> {
+                    if (stopped.getAsBoolean()) {
+                        throw new InterruptedIOException("download stopped");
+                    }
+                });
+                channel.force(false);
+            }
+            if (!SegmentedDownloader.verify(downloadDir, temp, info)) {
+                Files.deleteIfExists(temp);
+                throw new IOException("downloaded file digest mismatch: " + target);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        versionCache.put(downloadDir, fileName, target);
+    }
+
+    /**
+     * 下载进度的回调，抛出异常时中止这次请求
+     */
+    @FunctionalInterface
+    public interface DownloadProgress {
+        void update(long position) throws IOException;
+    }
+
+    /**
+     * 服务器上一个版本的文件信息
+     */
+    public static class DownloadInfo {
+        private final long size;
+        private final String digest;
+        private final String algorithm;
+        private final long treeSegmentSize;
+
+        DownloadInfo(long size, String digest, String algorithm, long treeSegmentSize) {
+            this.size = size;
+            this.digest = digest;
+            this.algorithm = algorithm;
+            this.treeSegmentSize = treeSegmentSize;
+        }
+
+        /**
+         * 从下载响应的响应头读取
+         */
+        static DownloadInfo of(Response response) {
+            String size = response.header(FILE_SIZE_HEADER);
+            String tree = response.header(FILE_DIGEST_TREE_HEADER);
+            try {
+                return new DownloadInfo(size == null ? -1 : Long.parseLong(size), response.header(FILE_DIGEST_HEADER),
+                        response.header(FILE_DIGEST_ALGORITHM_HEADER), tree == null ? 0 : Long.parseLong(tree));
+            } catch (NumberFormatException e) {
+                return new DownloadInfo(-1, null, null, 0);
+            }
+        }
 
-        File file = new File(downLoadPath + fileName);
+        /**
+         * 文件大小，服务器没有返回时为-1
+         */
+        public long getSize() {
+            return size;
+        }
 
-        long downloadedSize = file.exists() ? file.length() : 0;
+        /**
+         * 版本的摘要，服务器不知道时为null
+         */
+        public String getDigest() {
+            return digest;
+        }
 
-        RequestBody requestBody = new FormBody.Builder()
-                .add("path", downloadDir)
-                .add("file_name", fileName)
-                .add("offset", downloadedSize + "") // 这里可以根据已下载大小更新，为了断点续传
-                .build();
+        /**
+         * 上传这个版本时计算摘要的算法，服务器没有记录时为null
+         */
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        /**
+         * 上传这个版本时树形摘要的分段大小，0表示整个文件的摘要
+         */
+        public long getTreeSegmentSize() {
+            return treeSegmentSize;
+        }
 
+        /**
+         * 是否能按上传时的方式重新计算摘要，不能时下载后不校验
+         */
+        public boolean isVerifiable() {
+            return digest != null && algorithm != null && HashEngine.isSupported(algorithm) && treeSegmentSize >= 0;
+        }
+    }
+
+    /**
+     * 查询一个文件在服务器上的所有版本
+     * @param path 文件在客户端的绝对路径
+     * @return 版本的文件名称，按上传时间排序
+     * @throws IOException 网络异常
+     */
+    public List<String> versions(String path) throws IOException {
+        HttpUrl url = HttpUrl.get(FILE_URL + "versions").newBuilder()
+                .addQueryParameter("path", path)
+                .build();
         Request request = new Request.Builder()
-                .url(FILE_URL + "download")
-                .post(requestBody)
+                .url(url)
                 .header("verify", FileManager.getConfig().getVerify())
+                .get()
                 .build();
+        String[] versions = gson.fromJson(getString(request), String[].class);
+        if (versions == null) {
+            throw new IOException("bad versions response");
+        }
+        return List.of(versions);
+    }
 
-        try (Response response = CLIENT.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                if (response.code() == 300) {
-                    System.out.println("文件不存在");
-                }
-                logger.error("Unexpected code", new RuntimeException(response.message() + " code: " + response.code() + " body: " + response.body().string()));
-                Util.showWindowsNotification("遇到一些问题", "查看日志文件");
+    /**
+     * 查询服务器上一个版本的文件大小和摘要，需要服务器支持按范围下载
+     * @param downloadDir 文件在客户端的绝对路径
+     * @param fileName 服务器中的文件名称
+     * @return 文件信息
+     * @throws IOException 网络异常，文件不存在时也会抛出
+     */
+    public DownloadInfo downloadInfo(String downloadDir, String fileName) throws IOException {
+        try (Response response = CLIENT.newCall(rangeRequest(downloadDir, fileName, 0, 0)).execute()) {
+            checkDownload(response);
+            DownloadInfo info = DownloadInfo.of(response);
+            if (info.getSize() < 0) {
+                throw new IOException("server did not send file size");
             }
+            return info;
+        }
+    }
 
-            try (InputStream inputStream = response.body().byteStream();
-                 RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
-                randomAccessFile.seek(downloadedSize);
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    randomAccessFile.write(buffer, 0, bytesRead);
+    /**
+     * 下载文件的一段，按位置写入文件，不改变通道的位置，多个段可以同时写同一个通道。
+     * 响应体直接读进直接内存再写入文件，不经过堆内数组
+     * @param downloadDir 文件在客户端的绝对路径
+     * @param fileName 服务器中的文件名称
+     * @param offset 开始位置
+     * @param end 结束位置，不包含，小于0表示到文件末尾
+     * @param channel 目标文件的通道
+     * @param progress 每次写入后收到已经写到的位置，抛出的异常会原样抛出
+     * @return 响应头中的版本信息
+     * @throws IOException 网络或文件io异常，没有收到完整的一段时也会抛出
+     */
+    public DownloadInfo downloadRange(String downloadDir, String fileName, long offset, long end, FileChannel channel,
+                              DownloadProgress progress) throws IOException {
+        try (Response response = CLIENT.newCall(rangeRequest(downloadDir, fileName, offset, end)).execute()) {
+            checkDownload(response);
+            BufferedSource source = response.body().source();
+            ByteBuffer buffer = downloadBuffer.get();
+            long position = offset;
+            while (true) {
+                buffer.clear();
+                int read = source.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                downloadLimiter.acquire(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
                 }
+                progress.update(position);
             }
+            if (end >= 0 && position != end) {
+                throw new IOException("range download incomplete: " + position + "/" + end);
+            }
+            return DownloadInfo.of(response);
+        }
+    }
+
+    private Request rangeRequest(String downloadDir, String fileName, long offset, long end) throws IOException {
+        FormBody.Builder form = new FormBody.Builder()
+                .add("path", downloadDir)
+                .add("file_name", fileName)
+                .add("offset", String.valueOf(offset));
+        if (end >= 0) {
+            form.add("end", String.valueOf(end));
+        }
+        return new Request.Builder()
+                .url(FILE_URL + "download")
+                .post(form.build())
+                .header("verify", FileManager.getConfig().getVerify())
+                .build();
+    }
+
+    private static void checkDownload(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            String message = response.message() + " code: " + response.code() + " body: " + response.body().string();
+            logger.error("Unexpected code", new RuntimeException(message));
+            //服务器约定300表示文件不存在
+            throw new IOException(response.code() == 300 ? "file not found on server" : "download failed: " + message);
         }
     }
 
@@ -152,39 +668,273 @@ public class NetworkUtil {
 
 
     /**
-     * 获取md5 map的函数
-     * @return md5 map的json
-     * @throws IOException io异常
+     * 获取服务器支持的功能，旧版本服务器没有这个接口，返回只支持md5的功能列表
+     * @return 服务器功能
+     * @throws IOException 连接服务器失败时
+     */
+    public ServerFeatures getServerFeatures() throws IOException {
+        Request request = new Request.Builder()
+                .url(FILE_URL + "features")
+                .header("verify", FileManager.getConfig().getVerify())
+                .get()
+                .build();
+        try (Response response = CLIENT.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                return ServerFeatures.legacy();
+            }
+            ServerFeatures features = gson.fromJson(response.body().string(), ServerFeatures.class);
+            serverFeatures = features == null ? ServerFeatures.legacy() : features;
+            return serverFeatures;
+        }
+    }
+
+    /**
+     * 获取缓存的服务器功能，还没有获取过时尝试获取一次，服务器不在线时按旧版本服务器处理
+     * @return 服务器功能
+     */
+    public ServerFeatures features() {
+        ServerFeatures features = serverFeatures;
+        if (features != null) {
+            return features;
+        }
+        try {
+            return getServerFeatures();
+        } catch (IOException e) {
+            return ServerFeatures.legacy();
+        }
+    }
+
+    /**
+     * 上传一个块，服务器会校验块内容的sha-256
+     * @param hash 块的sha-256
+     * @param data 块内容
+     * @throws IOException 网络异常或服务器拒绝时
+     */
+    public void uploadChunk(String hash, byte[] data) throws IOException {
+        MultipartBody requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("hash", hash)
+                .addFormDataPart("chunk", hash, RequestBody.create(data, MediaType.parse("application/octet-stream")))
+                .build();
+        Request request = new Request.Builder()
+                .url(FILE_URL + "chunk_upload")
+                .post(requestBody)
+                .header("verify", FileManager.getConfig().getVerify())
+                .build();
+        getString(request);
+    }
+
+    /**
+     * 提交块清单，服务器按清单把块拼成文件的一个新版本
+     * @param manifest 块清单
+     * @param fileName 文件名
+     * @param key 幂等键，为null时不附带
+     * @return 服务器缺少的块，为空表示提交成功
+     * @throws IOException 网络异常或服务器返回其他错误时
      */
-    public String getFileMap() throws IOException {
+    public List<String> commitChunks(ChunkManifest manifest, String fileName, String key) throws IOException {
+        Map<String, Object> body = Map.of(
+                "path", manifest.getPath(),
+                "md5", manifest.getMd5(),
+                "name", fileName,
+                "size", manifest.getSize(),
+                "hash_algorithm", hashAlgorithm,
+                "tree_segment", treeSegmentFor(manifest.getSize()),
+                "chunks", manifest.getChunks(),
+                "lengths", manifest.getLengths());
+        RequestBody requestBody = RequestBody.create(gson.toJson(body), MediaType.parse("application/json; charset=utf-8"));
+        Request.Builder builder = new Request.Builder()
+                .url(FILE_URL + "chunk_commit")
+                .post(requestBody)
+                .header("verify", FileManager.getConfig().getVerify());
+        if (key != null) {
+            builder.header(IDEMPOTENCY_HEADER, key);
+        }
+        try (Response response = CLIENT.newCall(builder.build()).execute()) {
+            if (response.code() == 409) {
+                MissingChunks missing = gson.fromJson(response.body().string(), MissingChunks.class);
+                return missing == null || missing.missing == null ? new ArrayList<>() : missing.missing;
+            }
+            if (!response.isSuccessful()) {
+                logger.error("Unexpected code", new RuntimeException(response.message() + " code: " + response.code() + " body: " + response.body().string()));
+                throw new IOException("chunk commit failed: " + response.code());
+            }
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * chunk_commit返回409时的响应体
+     */
+    private static class MissingChunks {
+        private List<String> missing;
+    }
+
+    /**
+     * 批量询问服务器缺少哪些块
+     * @param hashes 块的sha-256
+     * @return 服务器缺少、需要上传的块
+     * @throws IOException 网络异常或服务器返回错误时
+     */
+    public List<String> queryChunks(List<String> hashes) throws IOException {
+        RequestBody requestBody = RequestBody.create(gson.toJson(Map.of("hashes", hashes)), MediaType.parse("application/json; charset=utf-8"));
+        Request request = new Request.Builder()
+                .url(FILE_URL + "chunk_query")
+                .post(requestBody)
+                .header("verify", FileManager.getConfig().getVerify())
+                .build();
+        NeededChunks needed = gson.fromJson(getString(request), NeededChunks.class);
+        if (needed == null || needed.need == null) {
+            throw new IOException("bad chunk query response");
+        }
+        return needed.need;
+    }
+
+    /**
+     * chunk_query的响应体
+     */
+    private static class NeededChunks {
+        private List<String> need;
+    }
+
+    /**
+     * 流式读取map时逐项处理的函数
+     */
+    @FunctionalInterface
+    public interface MapEntryConsumer {
+        void accept(String path, String md5) throws IOException;
+    }
+
+    /**
+     * 流式写出map时提供所有项的函数
+     */
+    @FunctionalInterface
+    public interface MapEntrySource {
+        void forEach(BiConsumer<String, String> action);
+    }
+
+    /**
+     * 获取md5 map，响应体边读边解析，不会把整个map读进内存
+     * @param consumer 逐项处理map的函数
+     * @throws IOException io异常，响应不完整时也会抛出
+     */
+    public void getFileMap(MapEntryConsumer consumer) throws IOException {
         Request request = new Request
                 .Builder()
                 .url(FILE_URL + "get_map")
                 .header("verify", FileManager.getConfig().getVerify())
                 .get()
                 .build();
-        return getString(request);
+        readMap(request, consumer);
     }
 
 
     /**
-     * 同步删除文件
-     * @param map 本次扫描到的文件
-     * @return 更新后的md5 map的json
+     * 同步删除文件，请求体和响应体都是流式处理的
+     * @param deleted 已经删除的文件
+     * @param consumer 逐项处理更新后的md5 map的函数
      * @throws IOException io异常
      */
-    public String syncFileMap(Map<String, String> map) throws IOException {
-        String json = gson.toJson(map);
-        MediaType mediaType = MediaType.parse("application/json; charset=utf-8");
-        RequestBody requestBody = RequestBody.create(json, mediaType);
+    public void syncFileMap(MapEntrySource deleted, MapEntryConsumer consumer) throws IOException {
+        RequestBody requestBody = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MediaType.parse("application/json; charset=utf-8");
+            }
 
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+                int[] count = {0};
+                writer.beginObject();
+                try {
+                    deleted.forEach((path, md5) -> {
+                        try {
+                            writer.name(path).value(md5);
+                            count[0]++;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                writer.endObject();
+                writer.flush();
+                logger.info("sync deleted files: " + count[0]);
+            }
+        };
 
         Request request = new Request.Builder()
                 .url(FILE_URL + "sync_file")
                 .post(requestBody)
                 .header("verify", FileManager.getConfig().getVerify())
                 .build();
-        return getString(request);
+        readMap(request, consumer);
+    }
+
+    /**
+     * 增量同步：发送服务器还没有确认的本地变更，并获取游标之后的服务器变更
+     * @param changes 本地变更
+     * @param cursor 服务器变更的游标，小于0表示还没有同步过
+     * @return 服务器的响应
+     * @throws IOException 网络异常或服务器返回错误时
+     */
+    public SyncJournal.Response syncDelta(List<SyncJournal.Change> changes, long cursor) throws IOException {
+        Map<String, Object> body = Map.of(
+                "cursor", cursor,
+                "hash_algorithm", hashAlgorithm,
+                "changes", changes);
+        RequestBody requestBody = RequestBody.create(gson.toJson(body), MediaType.parse("application/json; charset=utf-8"));
+        Request request = new Request.Builder()
+                .url(FILE_URL + "sync_delta")
+                .post(requestBody)
+                .header("verify", FileManager.getConfig().getVerify())
+                .build();
+        SyncJournal.Response response = gson.fromJson(getString(request), SyncJournal.Response.class);
+        if (response == null) {
+            throw new IOException("bad sync delta response");
+        }
+        return response;
+    }
+
+    /**
+     * 发送请求，并用JsonReader逐项解析返回的map
+     * @param request 请求
+     * @param consumer 逐项处理map的函数
+     * @throws IOException 网络异常、服务器返回错误或者响应不是完整的map时
+     */
+    private void readMap(Request request, MapEntryConsumer consumer) throws IOException {
+        try (Response response = CLIENT.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                logger.error("Unexpected code", new RuntimeException(response.message() + " code: " + response.code() + " body: " + response.body().string()));
+                throw new IOException();
+            }
+            try (JsonReader reader = new JsonReader(response.body().charStream())) {
+                JsonToken token;
+                try {
+                    token = reader.peek();
+                } catch (EOFException e) {
+                    //空的响应体当作空map
+                    return;
+                }
+                if (token == JsonToken.NULL) {
+                    return;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String path = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        continue;
+                    }
+                    consumer.accept(path, reader.nextString());
+                }
+                reader.endObject();
+            } catch (IllegalStateException e) {
+                throw new IOException("bad file map", e);
+            }
+        }
     }
 
     private String getString(Request request) throws IOException {
@@ -0,0 +1,324 @@
+package com.than;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行目录扫描器，基于ForkJoinPool，每个目录是一个任务，子目录会被拆分给其他工作线程
+ * 每个条目的属性只读取一次，结果直接交给访问器处理，不再逐层复制集合
+ * 条目先经过忽略规则过滤，被忽略的目录不会再被列出
+ * 全量扫描时会把扫描完的子树记到检查点，恢复中断的扫描时跳过这些子树
+ * 符号链接会被跟随，但指向根目录之内的目录链接不进入，这些目录会按自己的路径被直接扫描，
+ * 每个文件只会出现在一个确定的路径下，不随并行任务的先后变化；
+ * 离开根目录的链接按链接的路径扫描，进入后记下经过的目录，指回这些目录的链接不会造成死循环
+ */
+public class ParallelFileScanner {
+
+    private static final Logger logger = Logger.getLogger(ParallelFileScanner.class);
+
+    /**
+     * 文件访问器，会被多个工作线程同时调用，实现需要保证线程安全
+     */
+    @FunctionalInterface
+    public interface FileVisitor {
+        /**
+         * 访问一个普通文件
+         * @param file 文件路径
+         * @param attrs 扫描时读取到的文件属性
+         */
+        void visitFile(Path file, BasicFileAttributes attrs) throws IOException, NoSuchAlgorithmException, InterruptedException;
+    }
+
+    /**
+     * 跟随链接离开根目录之后经过的目录，用来发现指回这些目录的链接
+     */
+    private static class Ancestor {
+        private final Object key;
+        private final Ancestor parent;
+
+        Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        boolean contains(Object target) {
+            for (Ancestor ancestor = this; ancestor != null; ancestor = ancestor.parent) {
+                if (ancestor.key.equals(target)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final int parallelism;
+    private final SystemResourceMonitor monitor;
+    //配置的根目录，绝对路径和真实路径都记下，判断链接的目标是否在根目录之内
+    private final List<Path> rootFolders = new ArrayList<>();
+    private final List<Path> realRoots = new ArrayList<>();
+
+    /**
+     * @param parallelism 并行度，小于等于0时使用cpu核心数
+     * @param monitor 资源监控，每进入一个目录会检查一次，保证只在空闲时工作
+     * @param rootFolders 配置的所有根目录，指向其中的链接不会被跟随
+     */
+    public ParallelFileScanner(int parallelism, SystemResourceMonitor monitor, List<Path> rootFolders) {
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.monitor = monitor;
+        for (Path root : rootFolders) {
+            Path absolute = root.toAbsolutePath().normalize();
+            this.rootFolders.add(absolute);
+            try {
+                realRoots.add(absolute.toRealPath());
+            } catch (IOException e) {
+                realRoots.add(absolute);
+            }
+        }
+    }
+
+    /**
+     * 并行扫描所有根目录，没有被忽略的文件都会交给访问器，扫描完成后才返回
+     * @param roots 根目录
+     * @param ignoreRules 忽略规则
+     * @param checkpoint 扫描检查点，为null表示不记录进度
+     * @param visitor 文件访问器
+     */
+    public void scan(List<Path> roots, IgnoreRules ignoreRules, ScanCheckpoint checkpoint, FileVisitor visitor) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<DirectoryTask> tasks = new ArrayList<>();
+            for (Path root : roots) {
+                IgnoreRules.Scope scope = ignoreRules.scopeFor(root);
+                if (scope == null || (checkpoint != null && checkpoint.isDone(root))) {
+                    continue;
+                }
+                Ancestor ancestors = null;
+                //增量扫描时要扫描的目录可能是一个指向目录的链接，和扫描中遇到的链接一样处理
+                if (!rootFolders.contains(root.toAbsolutePath().normalize()) && Files.isSymbolicLink(root)) {
+                    Object key = linkTargetKey(root, null);
+                    if (key == null) {
+                        continue;
+                    }
+                    ancestors = new Ancestor(key, null);
+                }
+                tasks.add(new DirectoryTask(root, scope, ignoreRules.getIgnoreFileName(), checkpoint, visitor, ancestors));
+            }
+            for (DirectoryTask task : tasks) {
+                pool.execute(task);
+            }
+            for (DirectoryTask task : tasks) {
+                task.join();
+            }
+        } catch (ScanException e) {
+            e.rethrow();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 读取条目的属性，符号链接读取链接目标的属性，全量扫描和增量扫描用同样的方式对待链接
+     * @param entry 文件或目录
+     * @return 属性，链接的目标不存在、没有权限或者链接自己指向自己时返回null
+     * @throws NoSuchFileException 条目本身已经被删除
+     * @throws IOException 读取属性时的其他io异常
+     */
+    static BasicFileAttributes readAttributes(Path entry) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return attrs.isSymbolicLink() ? followLink(entry) : attrs;
+    }
+
+    /**
+     * 读取链接目标的属性
+     * @return 属性，目标不存在、没有权限或者链接自己指向自己时返回null
+     */
+    private static BasicFileAttributes followLink(Path link) throws IOException {
+        try {
+            return Files.readAttributes(link, BasicFileAttributes.class);
+        } catch (FileSystemException e) {
+            logger.warn("skip broken link: " + link);
+            return null;
+        }
+    }
+
+    /**
+     * 判断是否进入一个指向目录的链接
+     * @param link 链接
+     * @param ancestors 跟随链接离开根目录之后经过的目录，还在根目录之内时为null
+     * @return 链接目标的标识，目标在根目录之内或者指回经过的目录时返回null，表示不进入
+     * @throws IOException 读取真实路径时的io异常
+     */
+    private Object linkTargetKey(Path link, Ancestor ancestors) throws IOException {
+        Path target;
+        try {
+            target = link.toRealPath();
+        } catch (FileSystemException e) {
+            logger.warn("skip broken link: " + link);
+            return null;
+        }
+        for (Path root : realRoots) {
+            if (target.startsWith(root)) {
+                //根目录之内的目录会按自己的路径被扫描
+                return null;
+            }
+        }
+        Object key = keyOf(target, Files.readAttributes(target, BasicFileAttributes.class));
+        if (ancestors != null && ancestors.contains(key)) {
+            logger.warn("skip link loop: " + link);
+            return null;
+        }
+        return key;
+    }
+
+    /**
+     * 目录的标识，没有文件标识的文件系统（比如windows）用真实路径代替
+     */
+    private static Object keyOf(Path dir, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();
+        return key != null ? key : dir.toRealPath().toString();
+    }
+
+    /**
+     * 扫描单个目录的任务，目录下的文件在当前线程处理，子目录拆分成新的任务
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        //上级目录的规则作用域，列出目录后再加载这个目录自己的忽略文件
+        private final IgnoreRules.Scope parentScope;
+        private final String ignoreFileName;
+        private final ScanCheckpoint checkpoint;
+        private final FileVisitor visitor;
+        //跟随链接离开根目录之后经过的目录，包括这个目录，还在根目录之内时为null
+        private final Ancestor ancestors;
+
+        DirectoryTask(Path dir, IgnoreRules.Scope parentScope, String ignoreFileName, ScanCheckpoint checkpoint, FileVisitor visitor, Ancestor ancestors) {
+            this.dir = dir;
+            this.parentScope = parentScope;
+            this.ignoreFileName = ignoreFileName;
+            this.checkpoint = checkpoint;
+            this.visitor = visitor;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                monitor.awaitIdle();
+                List<Path> entries = new ArrayList<>();
+                List<BasicFileAttributes> entryAttrs = new ArrayList<>();
+                List<Boolean> entryLinked = new ArrayList<>();
+                boolean hasIgnoreFile = false;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path entry : stream) {
+                        BasicFileAttributes attrs;
+                        boolean linked;
+                        try {
+                            attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            linked = attrs.isSymbolicLink();
+                            if (linked) {
+                                attrs = followLink(entry);
+                            }
+                        } catch (NoSuchFileException e) {
+                            //扫描期间被删除的文件直接跳过
+                            continue;
+                        }
+                        if (attrs == null) {
+                            continue;
+                        }
+                        if (attrs.isRegularFile() && entry.getFileName().toString().equals(ignoreFileName)) {
+                            hasIgnoreFile = true;
+                        }
+                        entries.add(entry);
+                        entryAttrs.add(attrs);
+                        entryLinked.add(linked);
+                    }
+                } catch (AccessDeniedException | NoSuchFileException e) {
+                    logger.warn("skip unreadable folder: " + dir);
+                    return;
+                }
+                //这个目录的规则要在判断目录下的条目之前加载，所以先列完整个目录
+                IgnoreRules.Scope scope = parentScope.enter(dir, hasIgnoreFile);
+                List<DirectoryTask> subTasks = new ArrayList<>();
+                for (int i = 0; i < entries.size(); i++) {
+                    Path entry = entries.get(i);
+                    BasicFileAttributes attrs = entryAttrs.get(i);
+                    if (scope.isIgnored(entry, attrs)) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        if (checkpoint != null && checkpoint.isDone(entry)) {
+                            continue;
+                        }
+                        Ancestor chain = null;
+                        if (entryLinked.get(i)) {
+                            Object key = linkTargetKey(entry, ancestors);
+                            if (key == null) {
+                                continue;
+                            }
+                            chain = new Ancestor(key, ancestors);
+                        } else if (ancestors != null) {
+                            chain = new Ancestor(keyOf(entry, attrs), ancestors);
+                        }
+                        subTasks.add(new DirectoryTask(entry, scope, ignoreFileName, checkpoint, visitor, chain));
+                    } else if (attrs.isRegularFile()) {
+                        try {
+                            visitor.visitFile(entry, attrs);
+                        } catch (NoSuchFileException | AccessDeniedException e) {
+                            //列出目录之后被删除或者被其他程序锁住，和读不了的目录一样跳过，不中止整个扫描
+                            logger.warn("skip unreadable file: " + entry);
+                            continue;
+                        }
+                        if (checkpoint != null) {
+                            checkpoint.maybeSave();
+                        }
+                    }
+                }
+                invokeAll(subTasks);
+                if (checkpoint != null) {
+                    //子任务都完成了，整个子树已经扫描完
+                    checkpoint.folderDone(dir);
+                }
+            } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+                throw new ScanException(e);
+            }
+        }
+    }
+
+    /**
+     * 把工作线程中的受检异常带回调用线程
+     */
+    private static class ScanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ScanException(Exception cause) {
+            super(cause);
+        }
+
+        void rethrow() throws IOException, NoSuchAlgorithmException, InterruptedException {
+            Throwable cause = getCause();
+            //ForkJoinPool跨线程抛出时可能会再包装一层
+            while (cause instanceof ScanException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException e) {
+                throw e;
+            }
+            if (cause instanceof NoSuchAlgorithmException e) {
+                throw e;
+            }
+            if (cause instanceof InterruptedException e) {
+                throw e;
+            }
+            throw new UncheckedIOException(new IOException(cause));
+        }
+    }
+}
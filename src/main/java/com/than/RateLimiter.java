@@ -0,0 +1,164 @@
+package com.than;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶限速器，一个方向（上传或下载）的所有传输共用一个实例。
+ * 令牌按速率持续补充，桶里最多攒下一小段时间的令牌，所以传输是平滑的，不会先停下再全速发送。
+ * 令牌不够时允许欠账，欠账的线程和后来的线程按欠账的多少等待，同时传输的线程合起来不会超过速率
+ */
+public class RateLimiter {
+
+    //每次最多申请的字节数，大的写入会被拆开，限速更平滑
+    static final int MAX_STEP = 64 * 1024;
+    //桶里最多攒下的令牌，按速率计算的秒数
+    private static final double BURST_SECONDS = 0.2;
+    private static final long MIN_BURST = 16 * 1024;
+
+    //每秒字节数，小于等于0表示不限速
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    //经过这个限速器的字节数，用来区分自己的流量和前台程序的流量
+    private final AtomicLong transferred = new AtomicLong();
+
+    /**
+     * 修改速率，正在等待的线程按新速率继续
+     * @param bytesPerSecond 每秒字节数，小于等于0表示不限速
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        if (bytesPerSecond != rate) {
+            rate = bytesPerSecond;
+            tokens = Math.min(tokens, getBurst());
+        }
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * 经过这个限速器的总字节数
+     */
+    public long getTransferred() {
+        return transferred.get();
+    }
+
+    /**
+     * 申请传输一定字节数，令牌不够时等待
+     * @param bytes 字节数
+     * @throws InterruptedIOException 等待时被中断
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        transferred.addAndGet(bytes);
+        long waitNanos;
+        synchronized (this) {
+            if (rate <= 0) {
+                return;
+            }
+            refill();
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return;
+            }
+            waitNanos = (long) (-tokens / rate * 1_000_000_000L);
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("rate limiter interrupted");
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(getBurst(), tokens + (now - lastRefill) / 1_000_000_000.0 * rate);
+        } else {
+            tokens = 0;
+        }
+        lastRefill = now;
+    }
+
+    private double getBurst() {
+        return Math.max(MIN_BURST, rate * BURST_SECONDS);
+    }
+
+    /**
+     * 包装请求体，写入连接的数据经过限速
+     * @param body 原请求体
+     * @return 限速的请求体
+     */
+    public RequestBody wrap(RequestBody body) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public long contentLength() throws IOException {
+                return body.contentLength();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                BufferedSink limited = Okio.buffer(new ForwardingSink(sink) {
+                    @Override
+                    public void write(Buffer source, long byteCount) throws IOException {
+                        while (byteCount > 0) {
+                            long step = Math.min(byteCount, MAX_STEP);
+                            acquire(step);
+                            super.write(source, step);
+                            byteCount -= step;
+                        }
+                    }
+                });
+                body.writeTo(limited);
+                //只把缓冲写入原来的sink，不能关闭它
+                limited.emit();
+            }
+        };
+    }
+
+    /**
+     * 包装输入流，读到的数据经过限速
+     * @param in 原输入流
+     * @return 限速的输入流
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, Math.min(len, MAX_STEP));
+                if (read > 0) {
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+}
@@ -0,0 +1,245 @@
+package com.than;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * 扫描检查点，记录全量扫描的进度。
+ * 程序被结束或者机器休眠后重新启动时，扫描从上次的检查点继续，已经扫描完的目录不再重新扫描。
+ * 已经发现、还没有上传的文件记在UploadOutbox中。
+ * <p>
+ * 扫描是并行的，没有单一的遍历顺序，所以每个根目录的进度用"已经扫描完的子树"表示。
+ * 扫描完的目录先缓存，定期在本地索引写入磁盘之后再写入，保证重启后的状态一致
+ * <p>
+ * 文件格式：魔数(4)，之后每条记录为 类型(1) 路径(writeUTF)
+ */
+public class ScanCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(ScanCheckpoint.class);
+
+    private static final int MAGIC = 0x54445343; // "TDSC"
+
+    //开始一次全量扫描，后面跟着这次扫描的根目录
+    private static final byte TYPE_SCAN = 1;
+    private static final byte TYPE_ROOT = 2;
+    //一个目录及其所有子目录已经扫描完
+    private static final byte TYPE_DONE = 3;
+
+    private final Path file;
+    private final LocalFileIndex localIndex;
+    private final long interval;
+
+    private final List<String> roots = new ArrayList<>();
+    //中断的扫描中已经扫描完的目录，扫描期间不会修改，扫描线程可以直接读取
+    private volatile Set<String> doneFolders = new HashSet<>();
+    private boolean scanComplete = true;
+    //已经扫描完但还没写入的目录，要等本地索引写入磁盘之后才能写
+    private final List<String> unsavedDone = new ArrayList<>();
+    private volatile long lastSave = System.currentTimeMillis();
+
+    private OutputStream out;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordWriter = new DataOutputStream(recordBuffer);
+
+    /**
+     * 读取上次运行留下的检查点
+     * @param file 检查点文件
+     * @param localIndex 本地索引，写入扫描完的目录之前要先把它写入磁盘
+     * @param interval 写入扫描进度的间隔
+     */
+    public ScanCheckpoint(Path file, LocalFileIndex localIndex, long interval) {
+        this.file = file;
+        this.localIndex = localIndex;
+        this.interval = interval;
+        load();
+    }
+
+    /**
+     * 开始一次全量扫描，上次的扫描没有完成并且根目录没有变化时继续上次的扫描，否则重写检查点文件
+     * @param rootFolders 根目录
+     * @return 上次已经扫描完的目录，重新开始时为空
+     * @throws IOException io异常
+     */
+    public synchronized Set<String> beginScan(List<Path> rootFolders) throws IOException {
+        List<String> current = new ArrayList<>();
+        for (Path root : rootFolders) {
+            current.add(root.toAbsolutePath().toString());
+        }
+        if (!scanComplete && current.equals(roots)) {
+            return doneFolders;
+        }
+        closeOutput();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream tempOut = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            out = tempOut;
+            new DataOutputStream(tempOut).writeInt(MAGIC);
+            writeRecord(TYPE_SCAN, "");
+            for (String root : current) {
+                writeRecord(TYPE_ROOT, root);
+            }
+        } finally {
+            out = null;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        roots.clear();
+        roots.addAll(current);
+        scanComplete = false;
+        doneFolders = new HashSet<>();
+        unsavedDone.clear();
+        lastSave = System.currentTimeMillis();
+        return doneFolders;
+    }
+
+    /**
+     * 上次的扫描中这个目录是否已经扫描完
+     * @param dir 目录
+     * @return true表示不需要再扫描
+     */
+    public boolean isDone(Path dir) {
+        Set<String> done = doneFolders;
+        return !done.isEmpty() && done.contains(dir.toAbsolutePath().toString());
+    }
+
+    /**
+     * 一个目录及其所有子目录已经扫描完，到了保存间隔时写入
+     * @param dir 目录
+     * @throws IOException io异常
+     */
+    public void folderDone(Path dir) throws IOException {
+        synchronized (this) {
+            unsavedDone.add(dir.toAbsolutePath().toString());
+        }
+        maybeSave();
+    }
+
+    /**
+     * 距离上次保存超过间隔时保存扫描进度
+     * @throws IOException io异常
+     */
+    public void maybeSave() throws IOException {
+        if (System.currentTimeMillis() - lastSave >= interval) {
+            synchronized (this) {
+                if (System.currentTimeMillis() - lastSave >= interval) {
+                    save();
+                }
+            }
+        }
+    }
+
+    /**
+     * 全量扫描完成，扫描进度不再需要，删除检查点文件
+     * @throws IOException io异常
+     */
+    public synchronized void finishScan() throws IOException {
+        save();
+        closeOutput();
+        Files.deleteIfExists(file);
+        scanComplete = true;
+        doneFolders = new HashSet<>();
+    }
+
+    /**
+     * 先把本地索引写入磁盘，再写入扫描完的目录，保证扫描完的目录里的文件摘要都已经保存
+     */
+    private void save() throws IOException {
+        localIndex.flush();
+        for (String dir : unsavedDone) {
+            writeRecord(TYPE_DONE, dir);
+        }
+        unsavedDone.clear();
+        if (out != null) {
+            out.flush();
+        }
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * 写入一条记录，每条记录只调用一次write，程序被结束时最多丢掉最后一条
+     */
+    private void writeRecord(byte type, String path) throws IOException {
+        if (out == null) {
+            boolean empty = !Files.exists(file) || Files.size(file) == 0;
+            out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            if (empty) {
+                recordWriter.writeInt(MAGIC);
+            }
+        }
+        recordWriter.writeByte(type);
+        recordWriter.writeUTF(path);
+        recordBuffer.writeTo(out);
+        recordBuffer.reset();
+    }
+
+    private void closeOutput() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        int records = 0;
+        long validEnd = 4;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic");
+            }
+            while (true) {
+                byte type;
+                String path;
+                try {
+                    type = in.readByte();
+                    path = in.readUTF();
+                } catch (EOFException | UTFDataFormatException e) {
+                    //最后一条记录可能没有写完整
+                    break;
+                }
+                records++;
+                validEnd += 1 + 2 + utfLength(path);
+                switch (type) {
+                    case TYPE_SCAN -> {
+                        roots.clear();
+                        doneFolders = new HashSet<>();
+                        scanComplete = false;
+                    }
+                    case TYPE_ROOT -> roots.add(path);
+                    case TYPE_DONE -> doneFolders.add(path);
+                    default -> throw new IOException("bad record type " + type);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("broken scan checkpoint, scan from scratch");
+            roots.clear();
+            doneFolders = new HashSet<>();
+            scanComplete = true;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > validEnd) {
+                logger.warn("scan checkpoint tail broken, truncate to " + validEnd);
+                channel.truncate(validEnd);
+            }
+        } catch (IOException e) {
+            logger.warn("truncate scan checkpoint error: " + e.getMessage());
+        }
+        logger.info("load scan checkpoint, records: " + records
+                + (scanComplete ? "" : " finished folders: " + doneFolders.size()));
+    }
+
+    /**
+     * writeUTF写入的字节数，不包括开头的2字节长度
+     */
+    private static int utfLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,468 @@
+package com.than;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 分段并行下载。先查询文件大小，把目标文件预先设成完整大小，再把文件分成若干段，
+ * 每段用带结束位置的download请求单独下载，按位置写入文件，多个段同时传输，下载速度不再受单条连接的限制。
+ * <p>
+ * 每段记录自己已经写到的位置，定期刷到磁盘后保存在数据目录中；单个段失败时只重试这一段，
+ * 下载中断或程序重启后每段从记录的位置继续，不再只能从文件末尾续传。
+ * <p>
+ * 数据先写到同目录的临时文件。服务器返回了版本摘要时，下载过程中按文件顺序计算已经连续写好的部分的摘要
+ * （刚写入的数据从页缓存读回），全部写完后和服务器的摘要比对，一致才原子地改成真正的文件名；
+ * 不一致时丢掉临时文件，真正的文件名下不会出现损坏或不完整的文件
+ */
+public class SegmentedDownloader {
+
+    private static final Logger logger = Logger.getLogger(SegmentedDownloader.class);
+    private static final Gson gson = new Gson();
+
+    //服务器功能名：download请求支持结束位置，并在响应头中返回文件大小
+    public static final String FEATURE_RANGE = "download_range";
+
+    //每段失败后的重试次数，第一次重试前的等待时间，之后每次翻倍
+    private static final int SEGMENT_RETRIES = 3;
+    private static final long RETRY_WAIT = 1000;
+    //写入这么多字节后把文件刷到磁盘并保存一次进度
+    private static final long SAVE_INTERVAL = 8L * 1024 * 1024;
+
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> hashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    private final NetworkUtil networkUtil;
+    private final int segmentCount;
+    private final long minSegmentSize;
+    //返回true时各段在下一次写入后停下，进度保存后抛出InterruptedIOException
+    private final BooleanSupplier stopped;
+
+    /**
+     * 一段的下载进度
+     */
+    private static class Segment {
+        private long start;
+        private long end;
+        //已经写到的位置，访问时需要持有Plan的锁
+        private long position;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.position = start;
+        }
+    }
+
+    /**
+     * 一次下载的分段计划，保存在本地，重启后继续
+     */
+    private static class Plan {
+        //文件在客户端的绝对路径和服务器中的文件名，确定服务器上的一个版本
+        private String path;
+        private String fileName;
+        private String target;
+        private long size;
+        private List<Segment> segments;
+        //上次保存之后写入的字节数
+        private transient long unsaved;
+        //边下载边计算的摘要，服务器没有返回摘要时为null
+        private transient PrefixDigest digest;
+
+        boolean matches(String path, String fileName, Path target, long size) {
+            return path.equals(this.path) && fileName.equals(this.fileName)
+                    && target.toString().equals(this.target) && size == this.size && segments != null;
+        }
+
+        /**
+         * 从文件开头连续写好的位置，第一个没有完成的段写到的位置
+         */
+        synchronized long contiguous() {
+            for (Segment segment : segments) {
+                if (segment.position < segment.end) {
+                    return segment.position;
+                }
+            }
+            return size;
+        }
+
+        synchronized long remaining() {
+            long remaining = 0;
+            for (Segment segment : segments) {
+                remaining += segment.end - segment.position;
+            }
+            return remaining;
+        }
+    }
+
+    /**
+     * 按文件顺序计算已经写好的前缀的摘要，算法和树形摘要的分段大小用上传这个版本时的（服务器随摘要返回），
+     * 和客户端现在的配置无关。多个段的线程谁拿到锁谁往前算，拿不到的直接返回，不阻塞下载
+     */
+    private static class PrefixDigest {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final String algorithm;
+        //整个文件的摘要，树形摘要时是根摘要
+        private final FileHasher hasher;
+        //树形摘要的分段大小，0表示不使用树形摘要
+        private final long treeSegmentSize;
+        private FileHasher segmentHasher;
+        private long hashed;
+
+        PrefixDigest(String name, NetworkUtil.DownloadInfo info) {
+            this.algorithm = info.getAlgorithm();
+            this.hasher = HashEngine.create(algorithm);
+            hasher.update(name.getBytes(StandardCharsets.UTF_8));
+            if (info.getTreeSegmentSize() > 0) {
+                treeSegmentSize = info.getTreeSegmentSize();
+                hasher.update(ByteBuffer.allocate(8).putLong(treeSegmentSize).flip());
+                segmentHasher = HashEngine.create(algorithm);
+            } else {
+                treeSegmentSize = 0;
+            }
+        }
+
+        /**
+         * 计算到end为止
+         * @param channel 临时文件
+         * @param end 已经连续写好的位置
+         * @param wait 其他线程正在计算时是否等待
+         */
+        void advance(FileChannel channel, long end, boolean wait) throws IOException {
+            if (wait) {
+                lock.lock();
+            } else if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                ByteBuffer buffer = hashBuffer.get();
+                while (hashed < end) {
+                    long limit = treeSegmentSize > 0 ? Math.min(end, (hashed / treeSegmentSize + 1) * treeSegmentSize) : end;
+                    buffer.clear();
+                    if (limit - hashed < buffer.capacity()) {
+                        buffer.limit((int) (limit - hashed));
+                    }
+                    int read = channel.read(buffer, hashed);
+                    if (read <= 0) {
+                        throw new IOException("downloaded file shorter than expected");
+                    }
+                    buffer.flip();
+                    (treeSegmentSize > 0 ? segmentHasher : hasher).update(buffer);
+                    hashed += read;
+                    if (treeSegmentSize > 0 && hashed % treeSegmentSize == 0) {
+                        hasher.update(segmentHasher.digest());
+                        segmentHasher = HashEngine.create(algorithm);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 整个文件都计算完后的摘要
+         */
+        String digest() {
+            if (treeSegmentSize > 0 && hashed % treeSegmentSize != 0) {
+                hasher.update(segmentHasher.digest());
+            }
+            return FileData.bytesToHex(hasher.digest());
+        }
+    }
+
+    public SegmentedDownloader(NetworkUtil networkUtil, Config config) {
+        this(networkUtil, config, () -> false);
+    }
+
+    public SegmentedDownloader(NetworkUtil networkUtil, Config config, BooleanSupplier stopped) {
+        this.networkUtil = networkUtil;
+        this.segmentCount = config.getDownloadSegments();
+        this.minSegmentSize = config.getDownloadSegmentMinSize();
+        this.stopped = stopped;
+    }
+
+    /**
+     * 下载一个版本到目标文件，有上次没有完成的计划时继续
+     * @param path 文件在客户端的绝对路径
+     * @param fileName 服务器中的文件名称
+     * @param target 目标文件
+     * @throws InterruptedIOException 下载被停止，已经下载的进度会保留
+     * @throws IOException 网络或文件io异常，某一段重试后仍然失败时抛出，已经下载的进度会保留；
+     * 摘要和服务器不一致时也会抛出，这时临时文件会被删除
+     */
+    public void download(String path, String fileName, Path target) throws IOException {
+        NetworkUtil.DownloadInfo info = networkUtil.downloadInfo(path, fileName);
+        long size = info.getSize();
+        Path temp = getTempFile(target);
+        Plan plan = load(target);
+        if (plan == null || !plan.matches(path, fileName, target, size) || !Files.exists(temp)) {
+            //没有计划时，和以前一样认为已有的临时文件是前面下载好的部分；
+            //已经是完整大小又不能校验时，可能是预分配之后没有留下计划，内容不可信，重新下载
+            long existing = plan == null && Files.exists(temp) ? Files.size(temp) : 0;
+            if (existing > size || (existing == size && !info.isVerifiable())) {
+                existing = 0;
+            }
+            plan = newPlan(path, fileName, target, size, existing);
+        }
+        if (info.isVerifiable()) {
+            plan.digest = new PrefixDigest(Paths.get(path).getFileName().toString(), info);
+        } else {
+            //摘要的算法不认识，或者服务器没有记录，不能校验，但不能因此丢掉数据
+            logger.info("download without verification, digest unknown: " + target);
+        }
+        long remaining = plan.remaining();
+        logger.info("download " + target + " size: " + size + " segments: " + plan.segments.size() + " remaining: " + remaining);
+        long startTime = System.currentTimeMillis();
+
+        //先保存计划再预分配，程序在两步之间被结束时，下次不会把预分配的空白当作已经下载的内容
+        save(plan);
+        //预先设成完整大小，各段按位置写入，文件不会在下载中途被反复扩展
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+            file.setLength(size);
+        }
+        boolean verified = true;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            try {
+                runSegments(plan, channel);
+            } finally {
+                channel.force(false);
+                save(plan);
+            }
+            if (plan.digest != null) {
+                plan.digest.advance(channel, size, true);
+                verified = plan.digest.digest().equalsIgnoreCase(info.getDigest());
+            }
+        }
+        forget(target);
+        if (!verified) {
+            //不知道是哪一段坏了，下次整个重新下载
+            Files.deleteIfExists(temp);
+            throw new IOException("downloaded file digest mismatch: " + target);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        logger.info("download finished " + target + " bytes: " + remaining + " ms: " + elapsed
+                + " speed: " + remaining * 1000 / elapsed / 1024 + " KB/s");
+    }
+
+    /**
+     * 把[from, size)分成若干段，每段不小于最小段大小
+     */
+    private Plan newPlan(String path, String fileName, Path target, long size, long from) {
+        Plan plan = new Plan();
+        plan.path = path;
+        plan.fileName = fileName;
+        plan.target = target.toString();
+        plan.size = size;
+        plan.segments = new ArrayList<>();
+        long length = size - from;
+        int count = (int) Math.max(1, Math.min(segmentCount, length / minSegmentSize));
+        long segmentSize = (length + count - 1) / count;
+        for (long start = from; start < size; start += segmentSize) {
+            plan.segments.add(new Segment(start, Math.min(size, start + segmentSize)));
+        }
+        return plan;
+    }
+
+    /**
+     * 同时下载所有没有完成的段，等所有段都结束后再报告失败，其他段的进度不会因为一段失败而丢掉
+     */
+    private void runSegments(Plan plan, FileChannel channel) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, plan.segments.size()), runnable -> {
+            Thread thread = new Thread(runnable, "download-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Segment segment : plan.segments) {
+                futures.add(executor.submit(() -> {
+                    downloadSegment(plan, segment, channel);
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = cause instanceof IOException io ? io : new IOException(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("download interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 下载一段，失败后从已经写到的位置重试
+     */
+    private void downloadSegment(Plan plan, Segment segment, FileChannel channel) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            long from;
+            synchronized (plan) {
+                from = segment.position;
+            }
+            if (from >= segment.end) {
+                return;
+            }
+            if (stopped.getAsBoolean()) {
+                throw new InterruptedIOException("download stopped");
+            }
+            try {
+                networkUtil.downloadRange(plan.path, plan.fileName, from, segment.end, channel,
+                        position -> progress(plan, segment, position, channel));
+                return;
+            } catch (IOException e) {
+                //超时也是InterruptedIOException，和停止、中断不同，需要重试
+                boolean interrupted = e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+                if (interrupted || attempt >= SEGMENT_RETRIES || stopped.getAsBoolean()) {
+                    throw e;
+                }
+                logger.warn("download segment " + segment.start + "-" + segment.end + " failed, retry from " + segment.position + ": " + e.getMessage());
+                Thread.sleep(RETRY_WAIT << attempt);
+            }
+        }
+    }
+
+    /**
+     * 记录一段写到的位置，写入的数据足够多时刷到磁盘并保存进度，保存的位置之前的数据一定已经在磁盘上
+     */
+    private void progress(Plan plan, Segment segment, long position, FileChannel channel) throws InterruptedIOException {
+        synchronized (plan) {
+            plan.unsaved += position - segment.position;
+            segment.position = position;
+            if (plan.unsaved >= SAVE_INTERVAL) {
+                plan.unsaved = 0;
+                try {
+                    channel.force(false);
+                    save(plan);
+                } catch (IOException e) {
+                    logger.warn("save download progress error: " + e.getMessage());
+                }
+            }
+        }
+        if (plan.digest != null) {
+            try {
+                plan.digest.advance(channel, plan.contiguous(), false);
+            } catch (IOException e) {
+                //下载完成后还会再算一次，这里失败不影响结果
+                logger.warn("digest downloaded data error: " + e.getMessage());
+            }
+        }
+        if (stopped.getAsBoolean()) {
+            throw new InterruptedIOException("download stopped");
+        }
+    }
+
+    /**
+     * 校验下载好的文件，不分段下载时使用，不能校验时直接通过
+     * @param path 文件在客户端的绝对路径，摘要包含其中的文件名
+     * @param file 下载好的文件
+     * @param info 下载响应中的版本信息
+     * @return false表示摘要不一致
+     * @throws IOException 读取文件时的io异常
+     */
+    public static boolean verify(String path, Path file, NetworkUtil.DownloadInfo info) throws IOException {
+        if (!info.isVerifiable()) {
+            logger.info("download without verification, digest unknown: " + file);
+            return true;
+        }
+        PrefixDigest digest = new PrefixDigest(Paths.get(path).getFileName().toString(), info);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            digest.advance(channel, channel.size(), true);
+        }
+        return digest.digest().equalsIgnoreCase(info.getDigest());
+    }
+
+    /**
+     * 下载时使用的临时文件，和目标文件在同一个目录，完成后可以原子地改名
+     * @param target 目标文件
+     * @return 临时文件
+     */
+    public static Path getTempFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static Plan load(Path target) {
+        try {
+            Path file = getPlanFile(target);
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                return gson.fromJson(reader, Plan.class);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("broken download plan: " + target);
+            return null;
+        }
+    }
+
+    /**
+     * 保存计划，先写临时文件再替换
+     */
+    private static void save(Plan plan) throws IOException {
+        Path file = getPlanFile(Paths.get(plan.target));
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        synchronized (plan) {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(plan, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * 丢掉没有下载完的临时文件和进度，取消下载时使用
+     * @param target 目标文件
+     */
+    public static void discard(Path target) {
+        forget(target);
+        try {
+            Files.deleteIfExists(getTempFile(target));
+        } catch (IOException e) {
+            logger.error("delete download temp file error", e);
+        }
+    }
+
+    private static void forget(Path target) {
+        try {
+            Files.deleteIfExists(getPlanFile(target));
+        } catch (IOException e) {
+            logger.error("delete download plan error", e);
+        }
+    }
+
+    private static Path getPlanFile(Path target) throws IOException {
+        Path folder = FileManager.getDataPath("download_plans");
+        Files.createDirectories(folder);
+        return folder.resolve(FileData.getPathKey(target.toAbsolutePath().toString()) + ".json");
+    }
+}
@@ -0,0 +1,54 @@
+package com.than;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 服务器支持的功能，通过features接口获取，旧版本服务器没有这个接口，视为只支持md5
+ */
+public class ServerFeatures {
+
+    //服务器支持的摘要算法
+    private List<String> hash;
+    //服务器支持的扩展功能
+    private List<String> features;
+
+    public ServerFeatures() {
+        hash = new ArrayList<>();
+        features = new ArrayList<>();
+    }
+
+    /**
+     * 旧版本服务器的功能
+     * @return 只支持md5的功能列表
+     */
+    public static ServerFeatures legacy() {
+        ServerFeatures serverFeatures = new ServerFeatures();
+        serverFeatures.hash.add(HashEngine.MD5);
+        return serverFeatures;
+    }
+
+    public boolean supportsHash(String algorithm) {
+        return HashEngine.MD5.equals(algorithm) || (hash != null && hash.contains(algorithm));
+    }
+
+    public boolean supports(String feature) {
+        return features != null && features.contains(feature);
+    }
+
+    public List<String> getHash() {
+        return hash;
+    }
+
+    public List<String> getFeatures() {
+        return features;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerFeatures{" +
+                "hash=" + hash +
+                ", features=" + features +
+                '}';
+    }
+}
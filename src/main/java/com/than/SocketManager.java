@@ -15,6 +15,7 @@ public class SocketManager extends Thread {
     private Gson gson = new Gson();
     private NetworkUtil networkUtil;
     private FileManager manager;
+    private DownloadManager downloads;
 
     @Override
     public void run() {
@@ -26,9 +27,10 @@ public class SocketManager extends Thread {
         }
     }
 
-    public SocketManager(FileManager manager,NetworkUtil networkUtil) {
+    public SocketManager(FileManager manager,NetworkUtil networkUtil) throws IOException {
         this.manager = manager;
         this.networkUtil = networkUtil;
+        this.downloads = new DownloadManager(networkUtil, FileManager.getConfig());
     }
 
     /**
@@ -40,7 +42,13 @@ public class SocketManager extends Thread {
             while (true) {
                 try {
                     SocketMassage massage = acceptMessage();
-                    handleMessage(massage);
+                    try {
+                        handleMessage(massage);
+                    } catch (RuntimeException e) {
+                        //一条消息处理出错不能结束监听线程
+                        logger.error("handle " + massage.getDataName() + " error", e);
+                        sendRequestError(massage.getDataName(), String.valueOf(e.getMessage()));
+                    }
                 } catch (SocketException e) {
                     networkUtil.closeSocket();
                     break;
@@ -89,12 +97,84 @@ public class SocketManager extends Thread {
             }
 
             case SocketMassage.FILE_DOWNLOAD_TEXT: {
+                //下载在后台进行，立即返回任务编号
                 logger.info("socket get file download");
                 String data = massage.getData();
-                String[] parts = data.trim().split("\u0000", 2);
-                networkUtil.downloadFile(parts[0],parts[1]);
-                Util.showWindowsNotification(parts[1]+"下载完成","下载至 "+ FileManager.getConfig().getDownLoadPath());
+                String[] parts = data == null ? new String[0] : data.trim().split("\u0000", 2);
+                if (parts.length < 2) {
+                    sendRequestError(massage.getDataName(), "need path and file name");
+                    break;
+                }
+                SocketMassage.DOWNLOAD_JOB.setData(downloads.download(parts[0],parts[1]));
+                networkUtil.sendMassage(SocketMassage.DOWNLOAD_JOB);
+                break;
+            }
+            case SocketMassage.RESTORE_TEXT: {
+                logger.info("socket get restore");
+                String data = massage.getData();
+                String[] parts = data == null ? new String[0] : data.trim().split("\u0000", 2);
+                long time = parts.length < 2 ? -1 : parseTime(parts[1]);
+                if (time < 0) {
+                    sendRequestError(massage.getDataName(), "need folder and time in milliseconds: " + data);
+                    break;
+                }
+                SocketMassage.DOWNLOAD_JOB.setData(downloads.restore(parts[0], time));
+                networkUtil.sendMassage(SocketMassage.DOWNLOAD_JOB);
+                break;
+            }
+            case SocketMassage.DOWNLOAD_PAUSE_TEXT: {
+                downloads.pause(massage.getData());
+                sendDownloadStatus(massage.getData());
+                break;
+            }
+            case SocketMassage.DOWNLOAD_RESUME_TEXT: {
+                downloads.resume(massage.getData());
+                sendDownloadStatus(massage.getData());
+                break;
+            }
+            case SocketMassage.DOWNLOAD_CANCEL_TEXT: {
+                downloads.cancel(massage.getData());
+                sendDownloadStatus(massage.getData());
+                break;
+            }
+            case SocketMassage.DOWNLOAD_STATUS_TEXT: {
+                sendDownloadStatus(massage.getData());
+                break;
             }
         }
     }
+
+    /**
+     * 解析还原时间
+     * @param text 毫秒时间戳
+     * @return 时间，格式不对时返回-1
+     */
+    private static long parseTime(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 告诉界面请求没有被处理
+     * @param name 请求名称
+     * @param reason 原因
+     * @throws IOException io异常
+     */
+    private void sendRequestError(String name, String reason) throws IOException {
+        SocketMassage.REQUEST_ERROR.setData(name + ": " + reason);
+        networkUtil.sendMassage(SocketMassage.REQUEST_ERROR);
+    }
+
+    /**
+     * 发送下载任务的状态
+     * @param id 任务或还原编号，为空时发送所有任务
+     * @throws IOException io异常
+     */
+    private void sendDownloadStatus(String id) throws IOException {
+        SocketMassage.DOWNLOAD_STATUS.setData(gson.toJson(downloads.status(id)));
+        networkUtil.sendMassage(SocketMassage.DOWNLOAD_STATUS);
+    }
 }
@@ -14,6 +14,17 @@ public class SocketMassage {
     public static final String UPLOAD_START_TEXT = "Upload Start";
     public static final String UPLOAD_END_TEXT = "Upload End";
     public static final String FILE_DOWNLOAD_TEXT = "Download";
+    //还原文件夹，数据是文件夹和时间（毫秒），用\u0000分隔
+    public static final String RESTORE_TEXT = "Restore";
+    //下载任务已加入队列，数据是任务编号
+    public static final String DOWNLOAD_JOB_TEXT = "Download Job";
+    //下面的消息数据是任务或还原的编号，回复Download Status
+    public static final String DOWNLOAD_STATUS_TEXT = "Download Status";
+    public static final String DOWNLOAD_PAUSE_TEXT = "Download Pause";
+    public static final String DOWNLOAD_RESUME_TEXT = "Download Resume";
+    public static final String DOWNLOAD_CANCEL_TEXT = "Download Cancel";
+    //请求格式不对或处理时出错，数据是出错的请求名称和原因
+    public static final String REQUEST_ERROR_TEXT = "Request Error";
 
 
     public static final SocketMassage HELLO=new SocketMassage(HELLO_TEXT);
@@ -22,6 +33,9 @@ public class SocketMassage {
     public static final SocketMassage UPLOAD_START=new SocketMassage(UPLOAD_START_TEXT);
     public static final SocketMassage UPLOAD_END=new SocketMassage(UPLOAD_END_TEXT);
     public static final SocketMassage FILE_DOWNLOAD=new SocketMassage(FILE_DOWNLOAD_TEXT);
+    public static final SocketMassage DOWNLOAD_JOB=new SocketMassage(DOWNLOAD_JOB_TEXT);
+    public static final SocketMassage DOWNLOAD_STATUS=new SocketMassage(DOWNLOAD_STATUS_TEXT);
+    public static final SocketMassage REQUEST_ERROR=new SocketMassage(REQUEST_ERROR_TEXT);
 
 
     public SocketMassage(String dataName) {
@@ -0,0 +1,936 @@
+package com.than;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.MediaType;
+import okhttp3.MultipartReader;
+import okio.BufferedSource;
+import okio.Okio;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本地替身服务器，实现了守护程序用到的后端接口，只用于在本机联调和测试，正式部署请使用后端仓库。
+ * 文件的每个版本保存在 存储目录/files/路径md5/时间戳_文件名，块保存在 存储目录/chunks/sha-256
+ * <p>
+ * 启动方式：java -cp than_drive.jar com.than.StandInServer [端口] [存储目录] [通信密码]
+ */
+public class StandInServer {
+
+    private static final Logger logger = Logger.getLogger(StandInServer.class);
+
+    //服务器变更日志只保存在内存中，序号从启动时间开始，重启后客户端的游标全部失效，需要全量对账
+    private static final int JOURNAL_LIMIT = 100000;
+    private static final int DELTA_PAGE_SIZE = 10000;
+    //记住的幂等键数量，只保存在内存中，足够覆盖客户端一次重试的时间
+    private static final int APPLIED_KEY_LIMIT = 100000;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path storage;
+    private final String verify;
+    private final Gson gson = new Gson();
+
+    //已上传的文件，key是文件绝对路径，value是最新版本的摘要，访问时需要持有this的锁
+    private final Map<String, String> fileMap;
+    //打开的分段上传会话，按需从sessions目录读取
+    private final Map<String, UploadSessionState> sessions = new ConcurrentHashMap<>();
+
+    //服务器变更日志，第i条的序号是journalBase + i + 1，访问时需要持有this的锁
+    private final List<SyncJournal.Change> journal = new ArrayList<>();
+    private long journalBase = System.currentTimeMillis();
+
+    //已经生成过版本的请求的幂等键，访问时需要持有this的锁
+    private final Set<String> appliedKeys = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > APPLIED_KEY_LIMIT;
+        }
+    });
+
+    /**
+     * 一个multipart请求中的字段，文件字段会先写到临时文件
+     */
+    private static class MultipartForm implements Closeable {
+        private final Map<String, String> fields = new HashMap<>();
+        private final Map<String, Path> files = new HashMap<>();
+        private final Map<String, String> fileNames = new HashMap<>();
+
+        @Override
+        public void close() throws IOException {
+            for (Path file : files.values()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * 分段上传会话，保存在sessions目录下：id.json是会话信息，id.part是正在拼接的文件
+     */
+    private static class UploadSessionState {
+        private String id;
+        private String path;
+        private String md5;
+        private String hashAlgorithm;
+        private long treeSegment;
+        private String name;
+        private long size;
+        private int chunkSize;
+        //已经写入的段
+        private TreeSet<Integer> received = new TreeSet<>();
+
+        int getChunkCount() {
+            return (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        int getChunkLength(int index) {
+            return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Path storage = Paths.get(args.length > 1 ? args[1] : "./stand_in_storage");
+        String verify = args.length > 2 ? args[2] : Config.getDefaultConfig().getVerify();
+        Logger.setLogFilePath(storage.resolve("server_log.txt").toString());
+        Files.createDirectories(storage);
+        new StandInServer(port, storage, verify).start();
+    }
+
+    public StandInServer(int port, Path storage, String verify) throws IOException {
+        this.storage = storage;
+        this.verify = verify;
+        Files.createDirectories(storage.resolve("files"));
+        Files.createDirectories(storage.resolve("chunks"));
+        Files.createDirectories(storage.resolve("tmp"));
+        Files.createDirectories(storage.resolve("sessions"));
+        fileMap = loadFileMap();
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        route("heart", exchange -> sendText(exchange, 200, "ok"));
+        route("features", this::handleFeatures);
+        route("get_map", this::handleGetMap);
+        route("sync_file", this::handleSyncFile);
+        route("upload", this::handleUpload);
+        route("download", this::handleDownload);
+        route("versions", this::handleVersions);
+        route("chunk_upload", this::handleChunkUpload);
+        route("chunk_query", this::handleChunkQuery);
+        route("chunk_commit", this::handleChunkCommit);
+        route("sync_delta", this::handleSyncDelta);
+        route("upload_pack", this::handleUploadPack);
+        route("upload_session_open", this::handleSessionOpen);
+        route("upload_session_status", this::handleSessionStatus);
+        route("upload_session_chunk", this::handleSessionChunk);
+        route("upload_session_finish", this::handleSessionFinish);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("stand-in server started on port " + server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * 注册接口，统一校验通信密码和处理异常
+     */
+    private void route(String name, Handler handler) {
+        server.createContext("/" + name, exchange -> {
+            try (exchange) {
+                if (!verify.equals(exchange.getRequestHeaders().getFirst("verify"))) {
+                    sendText(exchange, 401, "verify failed");
+                    return;
+                }
+                handler.handle(exchange);
+            } catch (Exception e) {
+                logger.error("handle " + name + " error", e);
+                try {
+                    sendText(exchange, 500, String.valueOf(e.getMessage()));
+                } catch (IOException ignored) {
+                    //响应头已经发送
+                }
+            }
+        });
+    }
+
+    private void handleFeatures(HttpExchange exchange) throws IOException {
+        Map<String, Object> features = new LinkedHashMap<>();
+        features.put("hash", new ArrayList<>(HashEngine.getSupported()));
+        features.put("features", List.of(FileUploader.FEATURE_CHUNK, FileUploader.FEATURE_DEDUP,
+                FileManager.FEATURE_SYNC_DELTA, FileUploader.FEATURE_PACK, FileUploader.FEATURE_SESSION,
+                FileUploader.FEATURE_DIGEST_TRAILER, SegmentedDownloader.FEATURE_RANGE, TreeHasher.FEATURE_TREE_DIGEST));
+        sendJson(exchange, 200, features);
+    }
+
+    private void handleGetMap(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            sendJson(exchange, 200, fileMap);
+        }
+    }
+
+    /**
+     * 请求体是已删除的文件，删除后返回完整的map
+     */
+    private void handleSyncFile(HttpExchange exchange) throws IOException {
+        Map<String, String> deleted = gson.fromJson(readBodyText(exchange), new TypeToken<Map<String, String>>() {
+        }.getType());
+        synchronized (this) {
+            if (deleted != null) {
+                for (String path : deleted.keySet()) {
+                    String md5 = fileMap.remove(path);
+                    if (md5 != null) {
+                        recordChange(SyncJournal.OP_DELETE, path, md5);
+                    }
+                }
+                saveFileMap();
+            }
+            sendJson(exchange, 200, fileMap);
+        }
+    }
+
+    /**
+     * 普通上传，先读完整个表单再取字段，md5字段可以在文件之后（客户端边发送边计算摘要时）
+     */
+    private void handleUpload(HttpExchange exchange) throws IOException {
+        String key = getIdempotencyKey(exchange);
+        try (MultipartForm form = readMultipart(exchange)) {
+            String path = form.fields.get("path");
+            String md5 = form.fields.get("md5");
+            Path file = form.files.get("file");
+            if (path == null || md5 == null || file == null) {
+                sendText(exchange, 400, "missing field");
+                return;
+            }
+            if (!isApplied(key)) {
+                VersionDigest digest = new VersionDigest(md5, form.fields.get("hash_algorithm"), parseTreeSegment(form.fields.get("tree_segment")));
+                publishVersion(path, digest, form.fileNames.get("file"), file, key);
+            }
+            sendText(exchange, 200, "ok");
+        }
+    }
+
+    /**
+     * 打包上传：manifest字段是文件清单（path、md5、part、key），每个文件是名为part的文件字段，
+     * 拆开后按普通上传一样保存成各自的新版本，map只保存一次，幂等键已经处理过的文件跳过。返回没有保存成功的文件
+     */
+    private void handleUploadPack(HttpExchange exchange) throws IOException {
+        try (MultipartForm form = readMultipart(exchange)) {
+            List<Map<String, String>> manifest = gson.fromJson(form.fields.get("manifest"), new TypeToken<List<Map<String, String>>>() {
+            }.getType());
+            if (manifest == null) {
+                sendText(exchange, 400, "missing manifest");
+                return;
+            }
+            List<String> failed = new ArrayList<>();
+            Map<String, String> published = new LinkedHashMap<>();
+            List<String> keys = new ArrayList<>();
+            for (Map<String, String> entry : manifest) {
+                String path = entry.get("path");
+                String md5 = entry.get("md5");
+                String part = entry.get("part");
+                Path file = part == null ? null : form.files.get(part);
+                if (path == null || md5 == null || file == null) {
+                    failed.add(path);
+                    continue;
+                }
+                String key = entry.get("key");
+                if (isApplied(key)) {
+                    continue;
+                }
+                VersionDigest digest = new VersionDigest(md5, form.fields.get("hash_algorithm"), parseTreeSegment(entry.get("tree_segment")));
+                moveToVersion(path, digest, form.fileNames.get(part), file);
+                published.put(path, md5);
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+            synchronized (this) {
+                for (Map.Entry<String, String> entry : published.entrySet()) {
+                    fileMap.put(entry.getKey(), entry.getValue());
+                    recordChange(SyncJournal.OP_PUT, entry.getKey(), entry.getValue());
+                }
+                appliedKeys.addAll(keys);
+                saveFileMap();
+            }
+            logger.info("pack upload, files: " + published.size() + " failed: " + failed.size());
+            sendJson(exchange, 200, Map.of("failed", failed));
+        }
+    }
+
+    /**
+     * 表单字段：path 文件绝对路径，file_name 服务器中的文件名，offset 从哪里开始读取，end 读到哪里为止（不包含，可选）。
+     * 响应头带上文件大小，知道版本摘要时也带上摘要
+     */
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        Map<String, String> form = parseForm(readBodyText(exchange));
+        Path file = getVersionFile(form.get("path"), form.get("file_name"));
+        if (file == null || !Files.isRegularFile(file)) {
+            //客户端约定300表示文件不存在
+            sendText(exchange, 300, "file not found");
+            return;
+        }
+        long offset = Long.parseLong(form.getOrDefault("offset", "0"));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            //end是不包含的结束位置，没有时发送到文件末尾
+            long end = form.containsKey("end") ? Math.min(size, Long.parseLong(form.get("end"))) : size;
+            long length = Math.max(0, end - offset);
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set(NetworkUtil.FILE_SIZE_HEADER, String.valueOf(size));
+            Path digestFile = getVersionDigestFile(form.get("path"), file.getFileName().toString());
+            VersionDigest digest = Files.exists(digestFile)
+                    ? gson.fromJson(Files.readString(digestFile, StandardCharsets.UTF_8), VersionDigest.class) : null;
+            if (digest != null && digest.digest != null) {
+                exchange.getResponseHeaders().set(NetworkUtil.FILE_DIGEST_HEADER, digest.digest);
+                exchange.getResponseHeaders().set(NetworkUtil.FILE_DIGEST_ALGORITHM_HEADER, digest.algorithm);
+                if (digest.treeSegment != 0) {
+                    exchange.getResponseHeaders().set(NetworkUtil.FILE_DIGEST_TREE_HEADER, String.valueOf(digest.treeSegment));
+                }
+            }
+            exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+            if (length > 0) {
+                channel.transferTo(offset, length, Channels.newChannel(exchange.getResponseBody()));
+            }
+        }
+    }
+
+    /**
+     * 列出一个文件的所有版本，参数path为文件绝对路径，方便测试时找到要下载的文件名
+     */
+    private void handleVersions(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        Path folder = getVersionFolder(query.get("path"));
+        List<String> versions = new ArrayList<>();
+        if (Files.isDirectory(folder)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                stream.forEach(p -> versions.add(p.getFileName().toString()));
+            }
+        }
+        Collections.sort(versions);
+        sendJson(exchange, 200, versions);
+    }
+
+    /**
+     * 保存一个块，块的sha-256必须和hash字段一致
+     */
+    private void handleChunkUpload(HttpExchange exchange) throws IOException {
+        try (MultipartForm form = readMultipart(exchange)) {
+            String hash = form.fields.get("hash");
+            Path chunk = form.files.get("chunk");
+            if (hash == null || chunk == null || !hash.matches("[0-9a-f]{64}")) {
+                sendText(exchange, 400, "missing field");
+                return;
+            }
+            if (!hash.equals(sha256(chunk))) {
+                sendText(exchange, 400, "chunk hash mismatch");
+                return;
+            }
+            Path target = storage.resolve("chunks").resolve(hash);
+            if (!Files.exists(target)) {
+                Files.move(chunk, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            sendText(exchange, 200, "ok");
+        }
+    }
+
+    /**
+     * 请求体为{"hashes":[...]}，返回其中服务器还没有的块{"need":[...]}
+     */
+    private void handleChunkQuery(HttpExchange exchange) throws IOException {
+        ChunkQuery query = gson.fromJson(readBodyText(exchange), ChunkQuery.class);
+        if (query == null || query.hashes == null) {
+            sendText(exchange, 400, "bad query");
+            return;
+        }
+        List<String> need = new ArrayList<>();
+        for (String hash : query.hashes) {
+            if (!hash.matches("[0-9a-f]{64}") || !Files.exists(storage.resolve("chunks").resolve(hash))) {
+                need.add(hash);
+            }
+        }
+        sendJson(exchange, 200, Map.of("need", need));
+    }
+
+    /**
+     * chunk_query的请求体
+     */
+    private static class ChunkQuery {
+        private List<String> hashes;
+    }
+
+    /**
+     * 按块清单拼出文件的新版本，缺少块时返回409和缺少的块
+     */
+    private void handleChunkCommit(HttpExchange exchange) throws IOException {
+        String key = getIdempotencyKey(exchange);
+        CommitRequest commit = gson.fromJson(readBodyText(exchange), CommitRequest.class);
+        if (commit == null || commit.path == null || commit.md5 == null || commit.chunks == null) {
+            sendText(exchange, 400, "bad manifest");
+            return;
+        }
+        if (isApplied(key)) {
+            sendText(exchange, 200, "ok");
+            return;
+        }
+        List<String> missing = new ArrayList<>();
+        for (String hash : new LinkedHashSet<>(commit.chunks)) {
+            if (!hash.matches("[0-9a-f]{64}") || !Files.exists(storage.resolve("chunks").resolve(hash))) {
+                missing.add(hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            sendJson(exchange, 409, Map.of("missing", missing));
+            return;
+        }
+        Path temp = Files.createTempFile(storage.resolve("tmp"), "commit", ".part");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                for (String hash : commit.chunks) {
+                    Files.copy(storage.resolve("chunks").resolve(hash), out);
+                }
+            }
+            publishVersion(commit.path, new VersionDigest(commit.md5, commit.hashAlgorithm, commit.treeSegment), commit.name, temp, key);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        sendText(exchange, 200, "ok");
+    }
+
+    /**
+     * chunk_commit的请求体
+     */
+    private static class CommitRequest {
+        private String path;
+        private String md5;
+        @SerializedName("hash_algorithm")
+        private String hashAlgorithm;
+        @SerializedName("tree_segment")
+        private long treeSegment;
+        private String name;
+        private List<String> chunks;
+    }
+
+    /**
+     * 创建分段上传会话，返回{"session":id}
+     */
+    private void handleSessionOpen(HttpExchange exchange) throws IOException {
+        SessionRequest open = gson.fromJson(readBodyText(exchange), SessionRequest.class);
+        if (open == null || open.path == null || open.md5 == null || open.size < 0 || open.chunkSize <= 0) {
+            sendText(exchange, 400, "bad session");
+            return;
+        }
+        UploadSessionState state = new UploadSessionState();
+        state.id = UUID.randomUUID().toString();
+        state.path = open.path;
+        state.md5 = open.md5;
+        state.hashAlgorithm = open.hashAlgorithm;
+        state.treeSegment = open.treeSegment;
+        state.name = open.name;
+        state.size = open.size;
+        state.chunkSize = open.chunkSize;
+        synchronized (state) {
+            saveSession(state);
+        }
+        sessions.put(state.id, state);
+        logger.info("open upload session " + state.id + " for " + state.path + " chunks: " + state.getChunkCount());
+        sendJson(exchange, 200, Map.of("session", state.id));
+    }
+
+    /**
+     * 返回会话已经收到的段{"offset":从开头连续收到的字节数,"received":[...]}，会话不存在时返回404
+     */
+    private void handleSessionStatus(HttpExchange exchange) throws IOException {
+        SessionRequest query = gson.fromJson(readBodyText(exchange), SessionRequest.class);
+        UploadSessionState state = query == null ? null : getSession(query.session);
+        if (state == null) {
+            sendText(exchange, 404, "no such session");
+            return;
+        }
+        synchronized (state) {
+            int contiguous = 0;
+            while (state.received.contains(contiguous)) {
+                contiguous++;
+            }
+            long offset = Math.min(state.size, (long) contiguous * state.chunkSize);
+            sendJson(exchange, 200, Map.of("offset", offset, "received", new ArrayList<>(state.received)));
+        }
+    }
+
+    /**
+     * 写入会话的一段，段的长度和sha-256都要正确，先把数据写入磁盘再记录已经收到
+     */
+    private void handleSessionChunk(HttpExchange exchange) throws IOException {
+        try (MultipartForm form = readMultipart(exchange)) {
+            UploadSessionState state = getSession(form.fields.get("session"));
+            String index = form.fields.get("index");
+            String hash = form.fields.get("hash");
+            Path chunk = form.files.get("chunk");
+            if (state == null) {
+                sendText(exchange, 404, "no such session");
+                return;
+            }
+            if (index == null || !index.matches("\\d{1,9}") || hash == null || chunk == null) {
+                sendText(exchange, 400, "missing field");
+                return;
+            }
+            int i = Integer.parseInt(index);
+            if (i >= state.getChunkCount() || Files.size(chunk) != state.getChunkLength(i)) {
+                sendText(exchange, 400, "bad chunk range");
+                return;
+            }
+            if (!hash.equals(sha256(chunk))) {
+                sendText(exchange, 400, "chunk hash mismatch");
+                return;
+            }
+            try (FileChannel in = FileChannel.open(chunk, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(getSessionPath(state.id, ".part"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                //段可能不按顺序到达，transferFrom不能写到文件末尾之后，所以先定位再写
+                out.position((long) i * state.chunkSize);
+                long written = 0;
+                while (written < state.getChunkLength(i)) {
+                    written += in.transferTo(written, state.getChunkLength(i) - written, out);
+                }
+                out.force(false);
+            }
+            synchronized (state) {
+                if (sessions.get(state.id) != state) {
+                    //会话已经结束，刚写入的是新建的文件
+                    Files.deleteIfExists(getSessionPath(state.id, ".part"));
+                    sendText(exchange, 404, "no such session");
+                    return;
+                }
+                state.received.add(i);
+                saveSession(state);
+            }
+            sendText(exchange, 200, "ok");
+        }
+    }
+
+    /**
+     * 结束会话，缺少段时返回409和缺少的段，收齐后把拼好的文件原子地保存成新版本。
+     * 会话结束后就被删除了，响应丢失后的重试按幂等键返回成功
+     */
+    private void handleSessionFinish(HttpExchange exchange) throws IOException {
+        String key = getIdempotencyKey(exchange);
+        SessionRequest finish = gson.fromJson(readBodyText(exchange), SessionRequest.class);
+        if (isApplied(key)) {
+            sendText(exchange, 200, "ok");
+            return;
+        }
+        UploadSessionState state = finish == null ? null : getSession(finish.session);
+        if (state == null) {
+            sendText(exchange, 404, "no such session");
+            return;
+        }
+        synchronized (state) {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < state.getChunkCount(); i++) {
+                if (!state.received.contains(i)) {
+                    missing.add(i);
+                }
+            }
+            if (!missing.isEmpty()) {
+                sendJson(exchange, 409, Map.of("missing", missing));
+                return;
+            }
+            Path data = getSessionPath(state.id, ".part");
+            if (!Files.exists(data)) {
+                Files.createFile(data);
+            }
+            publishVersion(state.path, new VersionDigest(state.md5, state.hashAlgorithm, state.treeSegment), state.name, data, key);
+            sessions.remove(state.id);
+            Files.deleteIfExists(getSessionPath(state.id, ".json"));
+        }
+        logger.info("finish upload session " + state.id);
+        sendText(exchange, 200, "ok");
+    }
+
+    /**
+     * 分段上传接口的请求体
+     */
+    private static class SessionRequest {
+        private String session;
+        private String path;
+        private String md5;
+        @SerializedName("hash_algorithm")
+        private String hashAlgorithm;
+        @SerializedName("tree_segment")
+        private long treeSegment;
+        private String name;
+        private long size;
+        @SerializedName("chunk_size")
+        private int chunkSize;
+    }
+
+    /**
+     * 找到会话，内存中没有时从sessions目录读取，服务器重启后会话仍然有效
+     * @param id 会话id
+     * @return 会话，不存在时返回null
+     */
+    private UploadSessionState getSession(String id) throws IOException {
+        if (id == null || !id.matches("[0-9a-f-]{36}")) {
+            return null;
+        }
+        UploadSessionState state = sessions.get(id);
+        if (state != null) {
+            return state;
+        }
+        Path file = getSessionPath(id, ".json");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            state = gson.fromJson(reader, UploadSessionState.class);
+        }
+        if (state == null || !id.equals(state.id)) {
+            return null;
+        }
+        UploadSessionState existing = sessions.putIfAbsent(id, state);
+        return existing != null ? existing : state;
+    }
+
+    /**
+     * 保存会话信息，调用时需要持有会话的锁
+     */
+    private void saveSession(UploadSessionState state) throws IOException {
+        Path file = getSessionPath(state.id, ".json");
+        Path temp = getSessionPath(state.id, ".json.tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(state, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path getSessionPath(String id, String suffix) {
+        return storage.resolve("sessions").resolve(id + suffix);
+    }
+
+    /**
+     * 把临时文件原子地移动成文件的一个新版本，并更新map
+     * @param path 文件绝对路径
+     * @param digest 文件摘要和计算方式
+     * @param name 文件名
+     * @param file 临时文件
+     * @param key 请求的幂等键，为null表示客户端没有附带
+     */
+    private void publishVersion(String path, VersionDigest digest, String name, Path file, String key) throws IOException {
+        moveToVersion(path, digest, name, file);
+        String md5 = digest.digest;
+        synchronized (this) {
+            fileMap.put(path, md5);
+            recordChange(SyncJournal.OP_PUT, path, md5);
+            if (key != null) {
+                appliedKeys.add(key);
+            }
+            saveFileMap();
+        }
+    }
+
+    private static String getIdempotencyKey(HttpExchange exchange) {
+        return exchange.getRequestHeaders().getFirst(NetworkUtil.IDEMPOTENCY_HEADER);
+    }
+
+    /**
+     * 同一个幂等键的请求是否已经生成过版本，客户端没有收到响应时会用同一个键重试
+     */
+    private synchronized boolean isApplied(String key) {
+        if (key != null && appliedKeys.contains(key)) {
+            logger.info("duplicate request ignored, key: " + key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 把临时文件原子地移动成文件的一个新版本，不更新map。版本的摘要另外保存，下载时返回给客户端校验
+     * @param path 文件绝对路径
+     * @param digest 文件摘要和计算方式
+     * @param name 文件名
+     * @param file 临时文件
+     */
+    private void moveToVersion(String path, VersionDigest digest, String name, Path file) throws IOException {
+        Path folder = getVersionFolder(path);
+        Files.createDirectories(folder);
+        String safeName = Paths.get(name == null ? "file" : name).getFileName().toString();
+        Path target = folder.resolve(System.currentTimeMillis() + "_" + safeName);
+        Path digestFile = getVersionDigestFile(path, target.getFileName().toString());
+        Files.createDirectories(digestFile.getParent());
+        Files.writeString(digestFile, gson.toJson(digest), StandardCharsets.UTF_8);
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("new version " + path + " -> " + target.getFileName());
+    }
+
+    /**
+     * 版本的摘要和计算方式：算法和树形摘要的分段大小都是上传时客户端使用的，
+     * 客户端之后换了算法或分段大小，下载旧版本时仍然能按原来的方式校验
+     */
+    private static class VersionDigest {
+        private String digest;
+        private String algorithm;
+        //树形摘要的分段大小，0表示整个文件的摘要
+        private long treeSegment;
+
+        VersionDigest(String digest, String algorithm, long treeSegment) {
+            this.digest = digest;
+            //旧客户端使用md5时不附带算法
+            this.algorithm = algorithm == null ? HashEngine.MD5 : algorithm;
+            this.treeSegment = treeSegment;
+        }
+    }
+
+    private static long parseTreeSegment(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 版本摘要的保存位置，不放在版本目录中，列出版本时不会出现
+     */
+    private Path getVersionDigestFile(String path, String fileName) {
+        return storage.resolve("digests").resolve(FileData.getPathKey(path)).resolve(fileName);
+    }
+
+    /**
+     * 增量同步：处理客户端的变更，返回游标之后的服务器变更
+     */
+    private void handleSyncDelta(HttpExchange exchange) throws IOException {
+        DeltaRequest request = gson.fromJson(readBodyText(exchange), DeltaRequest.class);
+        if (request == null) {
+            sendText(exchange, 400, "bad request");
+            return;
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        synchronized (this) {
+            long ack = 0;
+            boolean changed = false;
+            List<SyncJournal.Change> rejected = new ArrayList<>();
+            if (request.changes != null) {
+                for (SyncJournal.Change change : request.changes) {
+                    ack = Math.max(ack, change.getSeq());
+                    String serverMd5 = fileMap.get(change.getPath());
+                    if (SyncJournal.OP_DELETE.equals(change.getOp())) {
+                        if (serverMd5 != null) {
+                            fileMap.remove(change.getPath());
+                            recordChange(SyncJournal.OP_DELETE, change.getPath(), serverMd5);
+                            changed = true;
+                        }
+                    } else if (!Objects.equals(serverMd5, change.getMd5())) {
+                        //上传没有成功或者已经被别的客户端覆盖，告诉客户端服务器的记录
+                        rejected.add(new SyncJournal.Change(change.getSeq(), SyncJournal.OP_PUT, change.getPath(), serverMd5));
+                    }
+                }
+            }
+            if (changed) {
+                saveFileMap();
+            }
+            long lastSeq = journalBase + journal.size();
+            response.put("ack", ack);
+            response.put("rejected", rejected);
+            if (request.cursor < journalBase || request.cursor > lastSeq) {
+                response.put("reset", true);
+                response.put("cursor", lastSeq);
+            } else {
+                int from = (int) (request.cursor - journalBase);
+                int to = Math.min(journal.size(), from + DELTA_PAGE_SIZE);
+                response.put("cursor", journalBase + to);
+                response.put("more", to < journal.size());
+                response.put("changes", new ArrayList<>(journal.subList(from, to)));
+            }
+            sendJson(exchange, 200, response);
+        }
+    }
+
+    /**
+     * sync_delta的请求体
+     */
+    private static class DeltaRequest {
+        private long cursor = -1;
+        private List<SyncJournal.Change> changes;
+    }
+
+    /**
+     * 记录一个服务器变更，日志过长时丢掉前一半，游标落在丢掉部分的客户端会被要求全量对账。
+     * 调用时需要持有this的锁
+     */
+    private void recordChange(String op, String path, String md5) {
+        journal.add(new SyncJournal.Change(journalBase + journal.size() + 1, op, path, md5));
+        if (journal.size() > JOURNAL_LIMIT) {
+            int drop = journal.size() / 2;
+            journal.subList(0, drop).clear();
+            journalBase += drop;
+        }
+    }
+
+    private Path getVersionFolder(String path) {
+        return storage.resolve("files").resolve(FileData.getPathKey(path == null ? "" : path));
+    }
+
+    private Path getVersionFile(String path, String fileName) {
+        if (path == null || fileName == null) {
+            return null;
+        }
+        Path folder = getVersionFolder(path);
+        Path file = folder.resolve(fileName).normalize();
+        return file.getParent().equals(folder) ? file : null;
+    }
+
+    private Map<String, String> loadFileMap() throws IOException {
+        Path file = storage.resolve("map.json");
+        if (!Files.exists(file)) {
+            return new LinkedHashMap<>();
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Map<String, String> map = gson.fromJson(reader, new TypeToken<LinkedHashMap<String, String>>() {
+            }.getType());
+            return map == null ? new LinkedHashMap<>() : map;
+        }
+    }
+
+    /**
+     * 保存map，调用时需要持有this的锁
+     */
+    private void saveFileMap() throws IOException {
+        Path file = storage.resolve("map.json");
+        Path temp = storage.resolve("map.json.tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(fileMap, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 解析multipart请求，文件字段写入临时文件
+     */
+    private MultipartForm readMultipart(HttpExchange exchange) throws IOException {
+        MediaType type = MediaType.parse(String.valueOf(exchange.getRequestHeaders().getFirst("Content-Type")));
+        String boundary = type == null ? null : type.parameter("boundary");
+        if (boundary == null) {
+            throw new IOException("not a multipart request");
+        }
+        MultipartForm form = new MultipartForm();
+        try (BufferedSource source = Okio.buffer(Okio.source(exchange.getRequestBody()));
+             MultipartReader reader = new MultipartReader(source, boundary)) {
+            MultipartReader.Part next;
+            while ((next = reader.nextPart()) != null) {
+                try (MultipartReader.Part part = next) {
+                    String disposition = part.headers().get("Content-Disposition");
+                    String name = getDispositionParam(disposition, "name");
+                    String fileName = getDispositionParam(disposition, "filename");
+                    if (name == null) {
+                        continue;
+                    }
+                    if (fileName == null) {
+                        form.fields.put(name, part.body().readUtf8());
+                    } else {
+                        Path temp = Files.createTempFile(storage.resolve("tmp"), "upload", ".part");
+                        form.files.put(name, temp);
+                        form.fileNames.put(name, fileName);
+                        try (OutputStream out = Files.newOutputStream(temp)) {
+                            part.body().readAll(Okio.sink(out));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            form.close();
+            throw e;
+        }
+        return form;
+    }
+
+    private static String getDispositionParam(String disposition, String param) {
+        if (disposition == null) {
+            return null;
+        }
+        for (String item : disposition.split(";")) {
+            String trimmed = item.trim();
+            if (trimmed.startsWith(param + "=")) {
+                String value = trimmed.substring(param.length() + 1);
+                if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> form = new HashMap<>();
+        if (body == null || body.isEmpty()) {
+            return form;
+        }
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return form;
+    }
+
+    private static String readBodyText(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest sha = ChunkEngine.newSha256();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                sha.update(buffer, 0, read);
+            }
+        }
+        return FileData.bytesToHex(sha.digest());
+    }
+
+    private void sendJson(HttpExchange exchange, int code, Object body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        sendBytes(exchange, code, gson.toJson(body).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendText(HttpExchange exchange, int code, String body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        sendBytes(exchange, code, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendBytes(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
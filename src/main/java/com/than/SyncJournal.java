@@ -0,0 +1,340 @@
+package com.than;
+
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量同步的本地变更日志，每个变更（上传或删除）都有一个单调递增的序号，
+ * 同步时只发送服务器还没有确认的变更，服务器确认后丢弃；
+ * 同时记录服务器变更的游标，同步时只接收游标之后的服务器变更
+ * <p>
+ * 记下第一条还没有被确认的变更在日志中的位置，读取时从这里开始，不用每次都从头读已经确认的变更
+ * <p>
+ * 日志文件格式：每条记录为 序号(8) 类型(1) 路径(writeUTF) 摘要长度(1) 摘要(utf-8)
+ */
+public class SyncJournal {
+
+    private static final Logger logger = Logger.getLogger(SyncJournal.class);
+    private static final Gson gson = new Gson();
+
+    public static final String OP_PUT = "put";
+    public static final String OP_DELETE = "delete";
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    /**
+     * 一个变更，客户端和服务器的变更使用同样的格式
+     */
+    public static class Change {
+        private long seq;
+        private String op;
+        private String path;
+        private String md5;
+
+        public Change() {
+        }
+
+        public Change(long seq, String op, String path, String md5) {
+            this.seq = seq;
+            this.op = op;
+            this.path = path;
+            this.md5 = md5;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getOp() {
+            return op;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getMd5() {
+            return md5;
+        }
+    }
+
+    /**
+     * sync_delta的响应
+     */
+    public static class Response {
+        //服务器已经处理到的客户端变更序号
+        private long ack;
+        //服务器变更的新游标
+        private long cursor;
+        //游标已经失效（比如服务器的变更日志被清理过），需要全量对账
+        private boolean reset;
+        //还有更多的服务器变更没有返回
+        private boolean more;
+        //游标之后的服务器变更
+        private List<Change> changes;
+        //和服务器记录不一致的上传，md5是服务器记录的摘要，为null表示服务器没有这个文件
+        private List<Change> rejected;
+
+        public long getAck() {
+            return ack;
+        }
+
+        public long getCursor() {
+            return cursor;
+        }
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        public boolean isMore() {
+            return more;
+        }
+
+        public List<Change> getChanges() {
+            return changes == null ? List.of() : changes;
+        }
+
+        public List<Change> getRejected() {
+            return rejected == null ? List.of() : rejected;
+        }
+    }
+
+    /**
+     * 保存在状态文件中的序号和游标
+     */
+    private static class State {
+        //下一个变更的序号
+        private long nextSeq = 1;
+        //服务器已经确认的最大序号
+        private long ackedSeq;
+        //服务器变更的游标，小于0表示还没有同步过
+        private long cursor = -1;
+    }
+
+    private final Path journalFile;
+    private final Path stateFile;
+    private State state;
+    private DataOutputStream out;
+    //第一条还没有被确认的变更在日志中的位置
+    private long pendingOffset;
+
+    /**
+     * 打开变更日志，末尾不完整的记录会被截掉
+     * @param journalFile 日志文件
+     * @param stateFile 状态文件
+     * @throws IOException io异常
+     */
+    public SyncJournal(Path journalFile, Path stateFile) throws IOException {
+        this.journalFile = journalFile;
+        this.stateFile = stateFile;
+        state = loadState();
+        long validEnd = 0;
+        long lastSeq = 0;
+        if (Files.exists(journalFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+                Change change;
+                while ((change = readChange(in)) != null) {
+                    lastSeq = change.seq;
+                    validEnd += recordSize(change);
+                    if (change.seq <= state.ackedSeq) {
+                        pendingOffset = validEnd;
+                    }
+                }
+            }
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                if (channel.size() > validEnd) {
+                    logger.warn("sync journal tail broken, truncate to " + validEnd);
+                    channel.truncate(validEnd);
+                }
+            }
+        }
+        //状态文件可能比日志旧
+        state.nextSeq = Math.max(state.nextSeq, lastSeq + 1);
+        if (validEnd == 0) {
+            //日志为空说明所有变更都已经被确认（清空日志后程序在保存状态之前退出）
+            state.ackedSeq = state.nextSeq - 1;
+        }
+        out = openAppend();
+    }
+
+    /**
+     * 追加一个本地变更
+     * @param op 变更类型，OP_PUT或OP_DELETE
+     * @param path 文件绝对路径
+     * @param md5 文件摘要，删除时是删除前的摘要
+     * @throws IOException io异常
+     */
+    public synchronized void append(String op, String path, String md5) throws IOException {
+        byte[] digest = md5 == null ? new byte[0] : md5.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(state.nextSeq++);
+        out.writeByte(OP_DELETE.equals(op) ? TYPE_DELETE : TYPE_PUT);
+        out.writeUTF(path);
+        out.writeByte(digest.length);
+        out.write(digest);
+    }
+
+    /**
+     * 读取服务器还没有确认的变更
+     * @param max 最多读取的数量
+     * @return 按序号排列的变更
+     * @throws IOException io异常
+     */
+    public synchronized List<Change> pending(int max) throws IOException {
+        out.flush();
+        List<Change> result = new ArrayList<>();
+        try (DataInputStream in = openRead(pendingOffset)) {
+            Change change;
+            while (result.size() < max && (change = readChange(in)) != null) {
+                if (change.seq > state.ackedSeq) {
+                    result.add(change);
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized boolean hasPending() {
+        return state.ackedSeq < state.nextSeq - 1;
+    }
+
+    /**
+     * 服务器确认了到seq为止的变更，全部确认后清空日志
+     * @param seq 确认的序号
+     * @throws IOException io异常
+     */
+    public synchronized void ack(long seq) throws IOException {
+        if (seq <= state.ackedSeq) {
+            return;
+        }
+        state.ackedSeq = Math.min(seq, state.nextSeq - 1);
+        if (!hasPending()) {
+            out.close();
+            Files.deleteIfExists(journalFile);
+            out = openAppend();
+            pendingOffset = 0;
+        } else {
+            //跳过刚被确认的变更，每条记录只会被跳过一次
+            out.flush();
+            try (DataInputStream in = openRead(pendingOffset)) {
+                Change change;
+                while ((change = readChange(in)) != null && change.seq <= state.ackedSeq) {
+                    pendingOffset += recordSize(change);
+                }
+            }
+        }
+        saveState();
+    }
+
+    public synchronized long getCursor() {
+        return state.cursor;
+    }
+
+    /**
+     * 更新服务器变更的游标
+     * @param cursor 新的游标
+     * @throws IOException 写状态文件时的io异常
+     */
+    public synchronized void setCursor(long cursor) throws IOException {
+        if (state.cursor != cursor) {
+            state.cursor = cursor;
+            saveState();
+        }
+    }
+
+    /**
+     * 把缓冲区中的变更写入磁盘，并保存状态
+     * @throws IOException io异常
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+        saveState();
+    }
+
+    /**
+     * 只把缓冲区中的变更写入日志文件，不保存状态，重启时序号会从日志中恢复。
+     * 其他记录依赖这条变更已经写入时（比如从发件箱删除操作之前）调用
+     * @throws IOException io异常
+     */
+    public synchronized void flushChanges() throws IOException {
+        out.flush();
+    }
+
+    private DataOutputStream openAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)));
+    }
+
+    /**
+     * 从指定位置开始读取日志
+     * @param offset 记录开始的位置
+     */
+    private DataInputStream openRead(long offset) throws IOException {
+        FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ);
+        channel.position(offset);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    }
+
+    /**
+     * 读取一条变更
+     * @return 变更，读到末尾或者记录不完整时返回null
+     */
+    private static Change readChange(DataInputStream in) throws IOException {
+        try {
+            long seq = in.readLong();
+            byte type = in.readByte();
+            String path = in.readUTF();
+            int digestLength = in.readUnsignedByte();
+            byte[] digest = in.readNBytes(digestLength);
+            if (digest.length != digestLength || (type != TYPE_PUT && type != TYPE_DELETE)) {
+                return null;
+            }
+            String md5 = digest.length == 0 ? null : new String(digest, StandardCharsets.UTF_8);
+            return new Change(seq, type == TYPE_DELETE ? OP_DELETE : OP_PUT, path, md5);
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    private static long recordSize(Change change) {
+        int pathBytes = 0;
+        for (int i = 0; i < change.path.length(); i++) {
+            char c = change.path.charAt(i);
+            pathBytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        int digestBytes = change.md5 == null ? 0 : change.md5.getBytes(StandardCharsets.UTF_8).length;
+        return 8 + 1 + 2 + pathBytes + 1 + digestBytes;
+    }
+
+    private State loadState() {
+        try {
+            if (Files.exists(stateFile)) {
+                try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+                    State loaded = gson.fromJson(reader, State.class);
+                    if (loaded != null) {
+                        return loaded;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("broken sync state, sync from scratch");
+        }
+        return new State();
+    }
+
+    private void saveState() throws IOException {
+        Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(state, writer);
+        }
+        Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -35,6 +35,15 @@ public class SystemResourceMonitor {
     private long[] prevNetSent;
     private long[] prevDiskTransferTime;
 
+    /**
+     * 上一次确认为低占用的时间，并行扫描时多个线程共享这次确认结果，避免每个目录都重新采样三秒
+     */
+    private static final long IDLE_CONFIRM_VALID_TIME = 1000;
+    private long lastIdleConfirmTime;
+
+    //网络由限速器平滑调整时，网络占用不再让工作整体停下
+    private volatile boolean networkShaped;
+
     private static final Logger logger = Logger.getLogger(SystemResourceMonitor.class);
 
     public SystemResourceMonitor() {
@@ -124,16 +133,24 @@ public class SystemResourceMonitor {
     private boolean isAnyHighUsage() {
         return getCpuUsage() > CPU_THRESHOLD ||
                 getMemoryUsage() > MEM_THRESHOLD ||
-                getNetworkUsage() > NET_THRESHOLD ||
+                (!networkShaped && getNetworkUsage() > NET_THRESHOLD) ||
                 getDiskUsage() > DISK_THRESHOLD;
     }
 
+    /**
+     * 设置网络是否由限速器根据前台流量调整，调整时网络占用高只会让传输变慢，不再算作高占用
+     * @param networkShaped true表示不检查网络占用
+     */
+    public void setNetworkShaped(boolean networkShaped) {
+        this.networkShaped = networkShaped;
+    }
+
 
     /**
      * 阻塞检测系统资源，如果任意资源高占用，则一直等待，
      * 直到连续三次检测都为低占用才返回
      */
-    public void waitForLowUsage() throws InterruptedException {
+    public synchronized void waitForLowUsage() throws InterruptedException {
         int consecutiveLowCount = 0;
         if (isAnyHighUsage()) {
             logger.warn("系统资源高占用，等待中...");
@@ -146,10 +163,27 @@ public class SystemResourceMonitor {
                 consecutiveLowCount++;
                 if (consecutiveLowCount >= 3) {
                     logger.warn("系统资源连续三次低占用，继续执行。");
+                    lastIdleConfirmTime = System.currentTimeMillis();
                     return;
                 }
             }
             Thread.sleep(1000); // 每秒检测一次
         }
     }
+
+    /**
+     * 多线程使用的空闲等待，刚确认过低占用时直接返回，过期后先采样一次，仍是低占用则续期，
+     * 出现高占用才和waitForLowUsage一样阻塞，同一时间只有一个线程在采样，其他线程等待它的结果
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleConfirmTime <= IDLE_CONFIRM_VALID_TIME) {
+            return;
+        }
+        if (!isAnyHighUsage()) {
+            lastIdleConfirmTime = now;
+            return;
+        }
+        waitForLowUsage();
+    }
 }
@@ -0,0 +1,251 @@
+package com.than;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+
+/**
+ * 大文件的并行树形摘要，文件按固定大小分段，各段在线程池中用按位置读取的方式并行计算摘要，
+ * 最后把文件名、分段大小和所有分段摘要再做一次摘要得到文件的摘要。
+ * 分段摘要会保存在数据目录中，程序中途退出后可以从已完成的分段继续，
+ * 只追加写入的文件（比如日志）变大时只需要计算新增的分段
+ */
+public class TreeHasher {
+
+    private static final Logger logger = Logger.getLogger(TreeHasher.class);
+
+    //服务器接受树形摘要，旧服务器只认整个文件的摘要
+    public static final String FEATURE_TREE_DIGEST = "tree_digest";
+
+    private static final int MAGIC = 0x54445347; // "TDSG"
+    //每完成这么多分段保存一次分段摘要，用于中途退出后继续
+    private static final int SAVE_INTERVAL = 16;
+
+    private final long segmentSize;
+    private final List<String> appendOnlyExtensions;
+    private final ExecutorService pool;
+
+    /**
+     * @param segmentSize 分段大小
+     * @param parallelism 并行线程数，小于等于0时使用cpu核心数
+     * @param appendOnlyExtensions 只追加写入的文件扩展名，这些文件变大时前面的分段直接复用
+     */
+    public TreeHasher(long segmentSize, int parallelism, List<String> appendOnlyExtensions) {
+        this.segmentSize = segmentSize;
+        this.appendOnlyExtensions = appendOnlyExtensions;
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "tree-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 计算文件的树形摘要
+     * @param path 文件路径
+     * @param attrs 文件属性
+     * @param algorithm 摘要算法
+     * @return 摘要，十六进制字符串形式返回
+     * @throws IOException 读取文件时的io异常
+     * @throws InterruptedException 等待分段计算时被中断
+     */
+    public String digest(Path path, BasicFileAttributes attrs, String algorithm) throws IOException, InterruptedException {
+        return digest(path, path, FileSnapshot.Stat.of(attrs), algorithm);
+    }
+
+    /**
+     * 计算文件的树形摘要，从另一个路径读取内容，比如上传时的快照
+     * @param path 原文件路径，分段摘要按它保存
+     * @param source 读取内容的路径，内容和原文件在stat时一致
+     * @param stat 原文件的属性
+     * @param algorithm 摘要算法
+     * @return 摘要，十六进制字符串形式返回
+     * @throws IOException 读取文件时的io异常
+     * @throws InterruptedException 等待分段计算时被中断
+     */
+    public String digest(Path path, Path source, FileSnapshot.Stat stat, String algorithm) throws IOException, InterruptedException {
+        long size = stat.getSize();
+        int count = (int) ((size + segmentSize - 1) / segmentSize);
+        SegmentMap segments = new SegmentMap(size, stat.getModified(), stat.getFileKey(), algorithm, count);
+        Path mapFile = getSegmentMapFile(path);
+        int reused = segments.reuse(loadSegmentMap(mapFile), isAppendOnly(path));
+
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+            int submitted = 0;
+            for (int i = 0; i < count; i++) {
+                if (segments.digests[i] != null) {
+                    continue;
+                }
+                final int index = i;
+                completion.submit(() -> {
+                    FileHasher hasher = HashEngine.create(algorithm);
+                    long start = index * segmentSize;
+                    FileData.hashRange(channel, start, Math.min(segmentSize, size - start), hasher);
+                    segments.digests[index] = hasher.digest();
+                    return index;
+                });
+                submitted++;
+            }
+            for (int done = 1; done <= submitted; done++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    segments.save(mapFile);
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+                if (done % SAVE_INTERVAL == 0) {
+                    segments.save(mapFile);
+                }
+            }
+        }
+        segments.save(mapFile);
+        logger.info("tree hash " + path + " segments: " + count + " reused: " + reused);
+
+        FileHasher root = HashEngine.create(algorithm);
+        root.update(path.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        root.update(ByteBuffer.allocate(8).putLong(segmentSize).flip());
+        for (byte[] digest : segments.digests) {
+            root.update(digest);
+        }
+        return FileData.bytesToHex(root.digest());
+    }
+
+    /**
+     * 文件被删除后，删除它的分段摘要
+     * @param path 文件绝对路径
+     */
+    public void forget(String path) {
+        try {
+            Files.deleteIfExists(getSegmentMapFile(Paths.get(path)));
+        } catch (IOException e) {
+            logger.error("delete segment map error", e);
+        }
+    }
+
+    /**
+     * 读取保存的分段摘要，分段大小不同或文件损坏时返回null
+     * @param file 分段摘要文件
+     * @return 分段摘要
+     */
+    private SegmentMap loadSegmentMap(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            long fileKey = in.readLong();
+            if (in.readLong() != segmentSize) {
+                return null;
+            }
+            String algorithm = in.readUTF();
+            SegmentMap map = new SegmentMap(size, lastModified, fileKey, algorithm, in.readInt());
+            for (int i = 0; i < map.digests.length; i++) {
+                int length = in.readUnsignedByte();
+                if (length > 0) {
+                    map.digests[i] = in.readNBytes(length);
+                }
+            }
+            return map;
+        } catch (IOException e) {
+            logger.warn("broken segment map: " + file);
+            return null;
+        }
+    }
+
+    private boolean isAppendOnly(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && appendOnlyExtensions != null && appendOnlyExtensions.contains(name.substring(dot + 1));
+    }
+
+    /**
+     * 分段摘要的保存位置，文件名是路径的md5
+     */
+    private static Path getSegmentMapFile(Path path) throws IOException {
+        Path folder = FileManager.getDataPath("segments");
+        Files.createDirectories(folder);
+        return folder.resolve(FileData.getPathKey(path.toAbsolutePath().toString()) + ".seg");
+    }
+
+    /**
+     * 一个文件的分段摘要，未完成的分段为null
+     */
+    private class SegmentMap {
+        private final long size;
+        private final long lastModified;
+        private final long fileKey;
+        private final String algorithm;
+        private final byte[][] digests;
+
+        SegmentMap(long size, long lastModified, long fileKey, String algorithm, int count) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.algorithm = algorithm;
+            this.digests = new byte[count][];
+        }
+
+        /**
+         * 复用上一次保存的分段：文件没有变化时复用所有已完成的分段（中途退出后继续），
+         * 只追加写入的文件变大时复用旧文件范围内的完整分段
+         * @param old 上一次保存的分段摘要
+         * @param appendOnly 是否是只追加写入的文件
+         * @return 复用的分段数量
+         */
+        int reuse(SegmentMap old, boolean appendOnly) {
+            if (old == null || !old.algorithm.equals(algorithm) || old.fileKey != fileKey) {
+                return 0;
+            }
+            int limit;
+            if (old.size == size && old.lastModified == lastModified) {
+                limit = Math.min(old.digests.length, digests.length);
+            } else if (appendOnly && size > old.size) {
+                limit = (int) (old.size / segmentSize);
+            } else {
+                return 0;
+            }
+            int reused = 0;
+            for (int i = 0; i < limit; i++) {
+                if (old.digests[i] != null) {
+                    digests[i] = old.digests[i];
+                    reused++;
+                }
+            }
+            return reused;
+        }
+
+        synchronized void save(Path file) throws IOException {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+                out.writeLong(fileKey);
+                out.writeLong(segmentSize);
+                out.writeUTF(algorithm);
+                out.writeInt(digests.length);
+                for (byte[] digest : digests) {
+                    if (digest == null) {
+                        out.writeByte(0);
+                    } else {
+                        out.writeByte(digest.length);
+                        out.write(digest);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package com.than;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 持久化的上传发件箱，记录所有还没有被服务器接受的上传和删除操作。
+ * 扫描发现的变动先写进发件箱再写本地索引，服务器不在线时扫描照样进行，操作都留在发件箱里，
+ * 服务器恢复后全速发送；程序被结束后重新启动时从日志恢复，不会因为本地索引里已经有了新摘要而漏掉。
+ * <p>
+ * 每个路径最多有一个操作，新的操作替换旧的。每个操作有一个幂等键，重试时使用同一个键，
+ * 服务器已经处理过但响应丢失的请求不会生成重复的版本；文件内容变了时换一个新的键。
+ * 单个操作失败后按指数退避加随机抖动等待，不影响其他操作
+ * <p>
+ * 文件格式：魔数(4)，之后每条记录为 类型(1) 幂等键(writeUTF)，
+ * 上传和删除记录后面跟着 路径(writeUTF) 摘要(writeUTF)，重试记录后面跟着 失败次数(4) 下次重试时间(8)
+ */
+public class UploadOutbox {
+
+    private static final Logger logger = Logger.getLogger(UploadOutbox.class);
+
+    private static final int MAGIC = 0x54444f42; // "TDOB"
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    //操作已经完成或者被放弃
+    private static final byte TYPE_DONE = 3;
+    //操作失败，记录失败次数和下次重试时间
+    private static final byte TYPE_RETRY = 4;
+
+    //日志中的记录超过有效操作数的这个倍数（加上下限）时重写日志
+    private static final int COMPACT_FACTOR = 4;
+    private static final int COMPACT_MIN_RECORDS = 4096;
+
+    /**
+     * 发件箱中的一个操作
+     */
+    public static class Item {
+        private final String key;
+        private final boolean delete;
+        private final String path;
+        private final String md5;
+        //下面的字段访问时需要持有发件箱的锁
+        private int attempts;
+        private long notBefore;
+        private boolean inFlight;
+
+        Item(String key, boolean delete, String path, String md5) {
+            this.key = key;
+            this.delete = delete;
+            this.path = path;
+            this.md5 = md5;
+        }
+
+        /**
+         * 幂等键，同一个操作的所有重试都使用它
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isDelete() {
+            return delete;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * 文件摘要，上传时才计算摘要的文件为空字符串
+         */
+        public String getMd5() {
+            return md5;
+        }
+    }
+
+    private final Path file;
+    private final long retryBaseTime;
+    private final long retryMaxTime;
+
+    //路径到操作，按加入的顺序
+    private final LinkedHashMap<String, Item> items = new LinkedHashMap<>();
+    private final Map<String, Item> byKey = new HashMap<>();
+    private int records;
+
+    private OutputStream out;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordWriter = new DataOutputStream(recordBuffer);
+
+    /**
+     * 读取上次运行留下的发件箱
+     * @param file 日志文件
+     * @param retryBaseTime 第一次失败后的等待时间
+     * @param retryMaxTime 最长的等待时间
+     */
+    public UploadOutbox(Path file, long retryBaseTime, long retryMaxTime) {
+        this.file = file;
+        this.retryBaseTime = retryBaseTime;
+        this.retryMaxTime = retryMaxTime;
+        load();
+    }
+
+    /**
+     * 加入一个上传操作，同一路径同样摘要的上传已经在发件箱里时沿用原来的操作
+     * @param path 文件绝对路径
+     * @param md5 文件摘要，上传时才计算摘要时为null或空
+     * @return 发件箱中的操作
+     * @throws IOException io异常
+     */
+    public synchronized Item put(String path, String md5) throws IOException {
+        return add(false, path, md5);
+    }
+
+    /**
+     * 加入一个删除操作，替换这个路径还没有完成的上传
+     * @param path 文件绝对路径
+     * @param md5 服务器上的摘要
+     * @return 发件箱中的操作
+     * @throws IOException io异常
+     */
+    public synchronized Item delete(String path, String md5) throws IOException {
+        return add(true, path, md5);
+    }
+
+    private Item add(boolean delete, String path, String md5) throws IOException {
+        String digest = md5 == null ? "" : md5;
+        Item existing = items.get(path);
+        if (existing != null && existing.delete == delete && existing.md5.equals(digest)) {
+            return existing;
+        }
+        Item item = new Item(UUID.randomUUID().toString(), delete, path, digest);
+        writeRecord(delete ? TYPE_DELETE : TYPE_PUT, item);
+        apply(item);
+        return item;
+    }
+
+    /**
+     * 取出一个路径上等待发送的上传，取出后直到完成或失败都不会再被取出
+     * @param path 文件绝对路径
+     * @return 上传操作，没有、正在发送或者还没到重试时间时返回null
+     */
+    public synchronized Item claim(String path) {
+        Item item = items.get(path);
+        if (item == null || item.delete || item.inFlight || item.notBefore > System.currentTimeMillis()) {
+            return null;
+        }
+        item.inFlight = true;
+        return item;
+    }
+
+    /**
+     * 取出所有到了重试时间的上传，按加入的顺序
+     * @return 上传操作
+     */
+    public synchronized List<Item> takeReady() {
+        long now = System.currentTimeMillis();
+        List<Item> result = new ArrayList<>();
+        for (Item item : items.values()) {
+            if (!item.delete && !item.inFlight && item.notBefore <= now) {
+                item.inFlight = true;
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 所有删除操作，删除是合在一次同步请求里发送的，不按单个操作退避
+     * @return 删除操作
+     */
+    public synchronized List<Item> getDeletes() {
+        List<Item> result = new ArrayList<>();
+        for (Item item : items.values()) {
+            if (item.delete) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 操作已经完成，发件箱中这个路径已经换成了新的操作时不影响新的操作
+     * @param item 操作
+     * @throws IOException io异常
+     */
+    public synchronized void done(Item item) throws IOException {
+        item.inFlight = false;
+        if (byKey.get(item.key) != item) {
+            return;
+        }
+        writeRecord(TYPE_DONE, item);
+        remove(item);
+        compactIfNeeded();
+    }
+
+    /**
+     * 操作失败，按失败次数指数退避，等待时间在一半到全部之间随机，避免大量操作同时重试
+     * @param item 操作
+     * @throws IOException io异常
+     */
+    public synchronized void failed(Item item) throws IOException {
+        item.inFlight = false;
+        if (byKey.get(item.key) != item) {
+            return;
+        }
+        item.attempts++;
+        long delay = Math.min(retryMaxTime, retryBaseTime << Math.min(item.attempts - 1, 30));
+        item.notBefore = System.currentTimeMillis() + delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        writeRecord(TYPE_RETRY, item);
+        logger.warn("upload failed " + item.attempts + " times, retry after " + (item.notBefore - System.currentTimeMillis()) + " ms: " + item.path);
+    }
+
+    /**
+     * 扫描时发现文件还在变化，加入一个上传时再计算摘要的操作，文件稳定之前不会被取出
+     * @param path 文件绝对路径
+     * @param delay 等待的毫秒数
+     * @throws IOException io异常
+     */
+    public synchronized void defer(String path, long delay) throws IOException {
+        Item item = add(false, path, null);
+        postpone(item, delay);
+    }
+
+    /**
+     * 上传时发现文件在计算摘要之后或者读取期间变化了，换成一个上传时再计算摘要的新操作，等文件稳定后再上传，不算失败。
+     * 新内容使用新的幂等键；这个路径已经换成了其他操作时不影响新的操作
+     * @param item 操作
+     * @param delay 等待的毫秒数
+     * @throws IOException io异常
+     */
+    public synchronized void changed(Item item, long delay) throws IOException {
+        item.inFlight = false;
+        if (byKey.get(item.key) != item) {
+            return;
+        }
+        Item next = new Item(UUID.randomUUID().toString(), false, item.path, "");
+        writeRecord(TYPE_PUT, next);
+        apply(next);
+        postpone(next, delay);
+    }
+
+    private void postpone(Item item, long delay) throws IOException {
+        item.notBefore = Math.max(item.notBefore, System.currentTimeMillis() + delay);
+        writeRecord(TYPE_RETRY, item);
+    }
+
+    /**
+     * 没有发送的操作放回发件箱，不算失败
+     * @param item 操作
+     */
+    public synchronized void release(Item item) {
+        item.inFlight = false;
+    }
+
+    /**
+     * 服务器恢复在线后，所有操作立即可以重试。
+     * 服务器不在线期间的失败只是在等待服务器，不应该让操作在服务器恢复后还要等待
+     */
+    public synchronized void resetBackoff() {
+        for (Item item : items.values()) {
+            item.notBefore = 0;
+        }
+    }
+
+    /**
+     * 是否有到了重试时间的上传或者等待同步的删除
+     */
+    public synchronized boolean hasReady() {
+        long now = System.currentTimeMillis();
+        for (Item item : items.values()) {
+            if (item.delete || (!item.inFlight && item.notBefore <= now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    private void apply(Item item) {
+        Item old = items.remove(item.path);
+        if (old != null) {
+            byKey.remove(old.key);
+        }
+        items.put(item.path, item);
+        byKey.put(item.key, item);
+    }
+
+    private void remove(Item item) {
+        items.remove(item.path);
+        byKey.remove(item.key);
+    }
+
+    /**
+     * 写入一条记录，每条记录只调用一次write，程序被结束时最多丢掉最后一条
+     */
+    private void writeRecord(byte type, Item item) throws IOException {
+        if (out == null) {
+            boolean empty = !Files.exists(file) || Files.size(file) == 0;
+            out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            if (empty) {
+                recordWriter.writeInt(MAGIC);
+            }
+        }
+        try {
+            encode(recordWriter, type, item);
+            recordBuffer.writeTo(out);
+        } finally {
+            recordBuffer.reset();
+        }
+        records++;
+    }
+
+    private static void encode(DataOutputStream writer, byte type, Item item) throws IOException {
+        writer.writeByte(type);
+        writer.writeUTF(item.key);
+        switch (type) {
+            case TYPE_PUT, TYPE_DELETE -> {
+                writer.writeUTF(item.path);
+                writer.writeUTF(item.md5);
+            }
+            case TYPE_RETRY -> {
+                writer.writeInt(item.attempts);
+                writer.writeLong(item.notBefore);
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * 日志中已经完成的操作太多时，把还有效的操作写到新文件再替换
+     */
+    private void compactIfNeeded() throws IOException {
+        if (records <= (long) items.size() * COMPACT_FACTOR + COMPACT_MIN_RECORDS) {
+            return;
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            tempOut.writeInt(MAGIC);
+            for (Item item : items.values()) {
+                encode(tempOut, item.delete ? TYPE_DELETE : TYPE_PUT, item);
+                if (item.attempts > 0 || item.notBefore > 0) {
+                    encode(tempOut, TYPE_RETRY, item);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = items.size();
+        logger.info("compact upload outbox, items: " + items.size());
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        long validEnd = 4;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             DataInputStream in = new DataInputStream(counter)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic");
+            }
+            while (true) {
+                try {
+                    byte type = in.readByte();
+                    String key = in.readUTF();
+                    switch (type) {
+                        case TYPE_PUT, TYPE_DELETE -> apply(new Item(key, type == TYPE_DELETE, in.readUTF(), in.readUTF()));
+                        case TYPE_DONE -> {
+                            Item item = byKey.get(key);
+                            if (item != null) {
+                                remove(item);
+                            }
+                        }
+                        case TYPE_RETRY -> {
+                            int attempts = in.readInt();
+                            long notBefore = in.readLong();
+                            Item item = byKey.get(key);
+                            if (item != null) {
+                                item.attempts = attempts;
+                                item.notBefore = notBefore;
+                            }
+                        }
+                        default -> throw new IOException("bad record type " + type);
+                    }
+                } catch (EOFException | UTFDataFormatException e) {
+                    //最后一条记录可能没有写完整
+                    break;
+                }
+                records++;
+                validEnd = counter.count;
+            }
+        } catch (IOException e) {
+            logger.warn("broken upload outbox, next scan will find the changes again: " + e.getMessage());
+            items.clear();
+            byKey.clear();
+            records = 0;
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                logger.error("delete upload outbox error", ex);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > validEnd) {
+                logger.warn("upload outbox tail broken, truncate to " + validEnd);
+                channel.truncate(validEnd);
+            }
+        } catch (IOException e) {
+            logger.warn("truncate upload outbox error: " + e.getMessage());
+        }
+        logger.info("load upload outbox, records: " + records + " items: " + items.size());
+    }
+
+    /**
+     * 统计已经读取的字节数，用来找到最后一条完整记录的结尾
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.than;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 并发上传的工作线程池。扫描线程把需要上传的文件放进有界的优先级队列（见UploadScheduler），队列满时扫描线程会被阻塞，
+ * 多个工作线程同时上传，让高延迟的链路上一直有请求在传输，扫描和上传也可以同时进行。
+ * <p>
+ * 同时在传输的文件总大小有上限，超过上限的大文件要等其他文件传完后单独上传；按提交顺序放行，大文件不会被饿死。
+ * 提交的是发件箱中的上传操作，单个文件上传失败只记录下来，不影响其他文件，由调用方在结束后决定如何重试
+ * <p>
+ * 服务器支持时，小文件先攒成一个包，装满后作为一个任务打包上传，避免每个小文件都付出一次请求往返
+ */
+public class UploadPool {
+
+    private static final Logger logger = Logger.getLogger(UploadPool.class);
+
+    /**
+     * 上传成功的回调，会被多个工作线程同时调用，实现需要保证线程安全
+     */
+    @FunctionalInterface
+    public interface UploadListener {
+        /**
+         * 文件上传成功
+         * @param item 上传操作
+         * @param result 上传结果，包括上传时使用的摘要
+         */
+        void uploaded(UploadOutbox.Item item, FileUploader.Uploaded result) throws IOException;
+    }
+
+    /**
+     * 上传结果
+     */
+    public static class Result {
+        private final int uploaded;
+        private final List<UploadOutbox.Item> failed;
+        private final List<UploadOutbox.Item> changed;
+        private final List<UploadOutbox.Item> unsent;
+
+        Result(int uploaded, List<UploadOutbox.Item> failed, List<UploadOutbox.Item> changed, List<UploadOutbox.Item> unsent) {
+            this.uploaded = uploaded;
+            this.failed = failed;
+            this.changed = changed;
+            this.unsent = unsent;
+        }
+
+        public int getUploaded() {
+            return uploaded;
+        }
+
+        /**
+         * 上传失败的操作
+         */
+        public List<UploadOutbox.Item> getFailed() {
+            return failed;
+        }
+
+        /**
+         * 文件还在变化，等稳定后重新计算摘要再上传的操作，不算失败
+         */
+        public List<UploadOutbox.Item> getChanged() {
+            return changed;
+        }
+
+        /**
+         * 因为中断没有上传的操作
+         */
+        public List<UploadOutbox.Item> getUnsent() {
+            return unsent;
+        }
+    }
+
+    private static class Task {
+        //上传操作，单个文件上传时只有一个
+        private final List<UploadOutbox.Item> items;
+        private final long size;
+        //文件修改时间，包里取最新的
+        private final long modified;
+        private final boolean pack;
+
+        Task(List<UploadOutbox.Item> items, long size, long modified, boolean pack) {
+            this.items = items;
+            this.size = size;
+            this.modified = modified;
+            this.pack = pack;
+        }
+    }
+
+    //通知工作线程退出
+    private static final Task END = new Task(List.of(), 0, 0, false);
+
+    private final FileUploader uploader;
+    private final SystemResourceMonitor monitor;
+    private final UploadListener listener;
+    private final long maxInFlightBytes;
+    private final UploadScheduler<Task> queue;
+    private final List<Thread> workers = new ArrayList<>();
+
+    //正在攒的包，访问时需要持有packLock的锁
+    private final Object packLock = new Object();
+    private List<UploadOutbox.Item> packFiles = new ArrayList<>();
+    private long packBytes;
+    private long packModified;
+
+    //下面的字段访问时需要持有this的锁
+    private long inFlightBytes;
+    //按提交顺序放行：nextTicket是下一个要发出的号，serving是当前可以放行的号
+    private long nextTicket;
+    private long serving;
+    private final Set<Long> abandoned = new HashSet<>();
+    private int uploaded;
+    private final List<UploadOutbox.Item> failed = new ArrayList<>();
+    private final List<UploadOutbox.Item> changed = new ArrayList<>();
+    private final List<UploadOutbox.Item> unsent = new ArrayList<>();
+
+    /**
+     * 创建并启动工作线程
+     * @param uploader 上传工具，会被多个工作线程共享
+     * @param monitor 资源监控，每个文件上传前检查一次
+     * @param workerCount 工作线程数
+     * @param maxInFlightBytes 同时在传输的文件总大小上限
+     * @param priority 上传顺序
+     * @param queueCapacity 等待上传的队列长度
+     * @param listener 上传成功的回调
+     */
+    public UploadPool(FileUploader uploader, SystemResourceMonitor monitor, int workerCount, long maxInFlightBytes,
+                      UploadScheduler.Priority priority, int queueCapacity, UploadListener listener) {
+        this.uploader = uploader;
+        this.monitor = monitor;
+        this.listener = listener;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.queue = new UploadScheduler<>(priority, queueCapacity);
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread worker = new Thread(this::work, "upload-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 提交一个上传操作，可以打包的小文件先放进包里，包装满时才放进队列，队列满时阻塞
+     * @param item 发件箱中的上传操作，摘要为空时在上传时计算
+     * @throws InterruptedException 等待队列时被中断，这个操作没有放进队列，由调用方处理
+     */
+    public void submit(UploadOutbox.Item item) throws InterruptedException {
+        File file = new File(item.getPath());
+        long size = file.length();
+        long modified = file.lastModified();
+        //包的清单中需要摘要，没有摘要的文件单独上传
+        if (item.getMd5().isEmpty() || !uploader.canPack(size)) {
+            put(new Task(List.of(item), size, modified, false));
+            return;
+        }
+        Task full = null;
+        synchronized (packLock) {
+            packFiles.add(item);
+            packBytes += size;
+            packModified = Math.max(packModified, modified);
+            if (uploader.isPackFull(packFiles.size(), packBytes)) {
+                full = takePack();
+            }
+        }
+        //在锁外等待队列，其他扫描线程还可以继续往包里放文件
+        if (full != null) {
+            try {
+                put(full);
+            } catch (InterruptedException e) {
+                //包里其他扫描线程放进来的文件也没有上传，当前的操作由调用方处理
+                full.items.remove(item);
+                recordUnsent(full.items);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 取出正在攒的包，需要持有packLock的锁
+     * @return 包，为空时返回null
+     */
+    private Task takePack() {
+        if (packFiles.isEmpty()) {
+            return null;
+        }
+        Task task = new Task(packFiles, packBytes, packModified, true);
+        packFiles = new ArrayList<>();
+        packBytes = 0;
+        packModified = 0;
+        return task;
+    }
+
+    /**
+     * 放进优先级队列，包按第一个文件的路径和整个包的大小排序
+     */
+    private void put(Task task) throws InterruptedException {
+        queue.put(task, task.items.get(0).getPath(), task.size, task.modified);
+    }
+
+    /**
+     * 不再提交新的文件，等待所有文件上传完成
+     * @return 上传结果
+     * @throws InterruptedException 等待时被中断，没有上传的操作会记为没有发送
+     */
+    public Result finish() throws InterruptedException {
+        Task rest;
+        synchronized (packLock) {
+            rest = takePack();
+        }
+        try {
+            if (rest != null) {
+                put(rest);
+                rest = null;
+            }
+            for (int i = 0; i < workers.size(); i++) {
+                queue.putLast(END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            if (rest != null) {
+                recordUnsent(rest.items);
+            }
+            drainUnsent();
+            throw e;
+        }
+        return getResult();
+    }
+
+    /**
+     * 到目前为止的上传结果，被中断时调用方用它处理已经完成和没有完成的操作
+     * @return 上传结果
+     */
+    public synchronized Result getResult() {
+        logger.info("upload finished, uploaded: " + uploaded + " failed: " + failed.size() + " changed: " + changed.size()
+                + " unsent: " + unsent.size() + " queue " + queue.getStats());
+        return new Result(uploaded, new ArrayList<>(failed), new ArrayList<>(changed), new ArrayList<>(unsent));
+    }
+
+    /**
+     * 上传队列的深度和等待时间
+     * @return 统计数据
+     */
+    public UploadScheduler.Stats getQueueStats() {
+        return queue.getStats();
+    }
+
+    /**
+     * 工作线程的主循环
+     */
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == END) {
+                return;
+            }
+            try {
+                monitor.awaitIdle();
+                acquire(task.size);
+            } catch (InterruptedException e) {
+                recordUnsent(task.items);
+                return;
+            }
+            try {
+                if (task.pack) {
+                    uploadPack(task);
+                } else {
+                    uploadOne(task.items.get(0));
+                }
+            } finally {
+                release(task.size);
+            }
+        }
+    }
+
+    private void uploadOne(UploadOutbox.Item item) {
+        try {
+            listener.uploaded(item, uploader.upload(item.getPath(), item.getMd5(), item.getKey()));
+            synchronized (this) {
+                uploaded++;
+            }
+        } catch (FileSnapshot.ChangedException e) {
+            logger.info("postpone changing file: " + e.getMessage());
+            recordChanged(List.of(item));
+        } catch (Exception e) {
+            logger.error("upload failed: " + item.getPath(), e);
+            recordFailure(List.of(item));
+        }
+    }
+
+    /**
+     * 打包上传，服务器报告没有保存的文件记为失败，整个请求失败时包里的文件都记为失败，
+     * 正在变化没有放进包里的文件等稳定后再上传
+     */
+    private void uploadPack(Task task) {
+        FileUploader.PackUploaded result;
+        try {
+            result = uploader.uploadPack(task.items);
+        } catch (Exception e) {
+            logger.error("pack upload failed, files: " + task.items.size(), e);
+            recordFailure(task.items);
+            return;
+        }
+        Set<String> rejected = new HashSet<>(result.getRejected());
+        Set<UploadOutbox.Item> skipped = new HashSet<>(result.getChanged());
+        recordChanged(skipped);
+        for (UploadOutbox.Item item : task.items) {
+            if (skipped.contains(item)) {
+                continue;
+            }
+            if (rejected.contains(item.getPath())) {
+                recordFailure(List.of(item));
+                continue;
+            }
+            try {
+                listener.uploaded(item, new FileUploader.Uploaded(item.getMd5(), false, null));
+                synchronized (this) {
+                    uploaded++;
+                }
+            } catch (Exception e) {
+                logger.error("upload failed: " + item.getPath(), e);
+                recordFailure(List.of(item));
+            }
+        }
+    }
+
+    /**
+     * 按提交顺序等待传输额度，没有其他文件在传输时，超过上限的文件也会被放行
+     */
+    private synchronized void acquire(long size) throws InterruptedException {
+        long ticket = nextTicket++;
+        try {
+            while (ticket != serving || (inFlightBytes > 0 && inFlightBytes + size > maxInFlightBytes)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            //放弃排队时要让后面的号继续
+            abandoned.add(ticket);
+            advance();
+            throw e;
+        }
+        serving++;
+        inFlightBytes += size;
+        advance();
+    }
+
+    /**
+     * 跳过已经放弃排队的号，并唤醒等待的线程
+     */
+    private void advance() {
+        while (abandoned.remove(serving)) {
+            serving++;
+        }
+        notifyAll();
+    }
+
+    private synchronized void release(long size) {
+        inFlightBytes -= size;
+        notifyAll();
+    }
+
+    private synchronized void recordFailure(Collection<UploadOutbox.Item> items) {
+        failed.addAll(items);
+    }
+
+    private synchronized void recordChanged(Collection<UploadOutbox.Item> items) {
+        changed.addAll(items);
+    }
+
+    private synchronized void recordUnsent(Collection<UploadOutbox.Item> items) {
+        unsent.addAll(items);
+    }
+
+    /**
+     * 被中断时，队列里和包里剩下的操作都记为没有发送
+     */
+    private void drainUnsent() {
+        List<Task> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        synchronized (packLock) {
+            Task pack = takePack();
+            if (pack != null) {
+                rest.add(pack);
+            }
+        }
+        synchronized (this) {
+            for (Task task : rest) {
+                if (task != END) {
+                    unsent.addAll(task.items);
+                }
+            }
+        }
+    }
+}
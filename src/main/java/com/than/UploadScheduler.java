@@ -0,0 +1,271 @@
+package com.than;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 按优先级放行的有界上传队列，代替先进先出的队列。
+ * 每个任务有一个虚拟截止时间：进入队列的时间加上按策略算出的延后时间，截止时间最早的任务先上传。
+ * 延后时间不超过老化时间，所以任何任务最多被后来的任务超过老化时间那么久，不会被饿死。
+ * <p>
+ * 策略：
+ * <ul>
+ *     <li>fifo：不延后，按进入队列的顺序</li>
+ *     <li>smallest：按文件大小的对数延后，小文件先上传，一个大文件不会挡住大量小文件，平均等待时间最短</li>
+ *     <li>recent：按距离上次修改的时间的对数延后，刚修改过的文件先上传</li>
+ * </ul>
+ * 根目录的权重越大延后越少；置顶的路径提前一个老化时间，除了等待太久的任务，总是最先上传
+ * @param <T> 任务类型
+ */
+public class UploadScheduler<T> {
+
+    public static final String ORDER_FIFO = "fifo";
+    public static final String ORDER_SMALLEST = "smallest";
+    public static final String ORDER_RECENT = "recent";
+
+    //smallest策略中不延后的大小和延后整个老化时间的大小
+    private static final double MIN_SIZE = 4 * 1024;
+    private static final double MAX_SIZE = 4L * 1024 * 1024 * 1024;
+    //recent策略中不延后的修改时间距离和延后整个老化时间的距离，毫秒
+    private static final double MIN_AGE = 1000;
+    private static final double MAX_AGE = 365L * 24 * 3600 * 1000;
+
+    /**
+     * 按配置计算任务的延后时间，扫描线程和上传线程共用，创建后不再修改
+     */
+    public static class Priority {
+        private final String order;
+        private final long agingTime;
+        //根目录（以分隔符结尾）和权重
+        private final Map<String, Double> rootWeights = new LinkedHashMap<>();
+        private final List<String> pinnedPaths = new ArrayList<>();
+
+        public Priority(Config config) {
+            this.order = config.getUploadOrder();
+            this.agingTime = config.getUploadAgingTime();
+            for (Map.Entry<String, Double> entry : config.getUploadRootWeights().entrySet()) {
+                if (entry.getValue() != null && entry.getValue() > 0) {
+                    rootWeights.put(asPrefix(entry.getKey()), entry.getValue());
+                }
+            }
+            for (String pinned : config.getPinnedPaths()) {
+                pinnedPaths.add(Paths.get(pinned).toAbsolutePath().normalize().toString());
+            }
+        }
+
+        private static String asPrefix(String folder) {
+            String path = Paths.get(folder).toAbsolutePath().normalize().toString();
+            return path.endsWith(File.separator) ? path : path + File.separator;
+        }
+
+        /**
+         * 任务相对于进入队列时间的延后时间
+         * @param path 文件绝对路径
+         * @param size 文件大小
+         * @param modified 文件修改时间
+         * @param now 当前时间
+         * @return 延后的毫秒数，不超过老化时间，置顶的路径为负数
+         */
+        public long delayOf(String path, long size, long modified, long now) {
+            for (String pinned : pinnedPaths) {
+                if (path.equals(pinned) || path.startsWith(pinned + File.separator)) {
+                    return -agingTime;
+                }
+            }
+            double fraction = switch (order) {
+                case ORDER_SMALLEST -> logFraction(size, MIN_SIZE, MAX_SIZE);
+                case ORDER_RECENT -> logFraction(now - modified, MIN_AGE, MAX_AGE);
+                default -> 0;
+            };
+            double weight = 1;
+            for (Map.Entry<String, Double> entry : rootWeights.entrySet()) {
+                if (path.startsWith(entry.getKey())) {
+                    weight = entry.getValue();
+                    break;
+                }
+            }
+            //权重小于1时延后会超过老化时间，截到老化时间，保证不会被饿死
+            return (long) Math.min(agingTime, agingTime * fraction / weight);
+        }
+
+        /**
+         * 值在[min, max]之间的对数位置，小于min为0，大于max为1
+         */
+        private static double logFraction(double value, double min, double max) {
+            if (value <= min) {
+                return 0;
+            }
+            return Math.min(1, Math.log(value / min) / Math.log(max / min));
+        }
+    }
+
+    /**
+     * 队列的统计数据
+     */
+    public static class Stats {
+        private final int depth;
+        private final long taken;
+        private final long averageWait;
+        private final long maxWait;
+        private final long oldestWaiting;
+
+        Stats(int depth, long taken, long averageWait, long maxWait, long oldestWaiting) {
+            this.depth = depth;
+            this.taken = taken;
+            this.averageWait = averageWait;
+            this.maxWait = maxWait;
+            this.oldestWaiting = oldestWaiting;
+        }
+
+        /**
+         * 队列中的任务数
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * 已经取出的任务数
+         */
+        public long getTaken() {
+            return taken;
+        }
+
+        /**
+         * 已经取出的任务在队列中的平均等待时间，毫秒
+         */
+        public long getAverageWait() {
+            return averageWait;
+        }
+
+        /**
+         * 已经取出的任务在队列中的最长等待时间，毫秒
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        /**
+         * 队列中等待最久的任务已经等待的时间，毫秒
+         */
+        public long getOldestWaiting() {
+            return oldestWaiting;
+        }
+
+        @Override
+        public String toString() {
+            return "depth: " + depth + " taken: " + taken + " average wait: " + averageWait + " ms max wait: " + maxWait
+                    + " ms oldest waiting: " + oldestWaiting + " ms";
+        }
+    }
+
+    private static class Entry<T> {
+        private final T task;
+        private final long enqueued;
+        private final long deadline;
+        //截止时间相同时按进入队列的顺序
+        private final long seq;
+
+        Entry(T task, long enqueued, long deadline, long seq) {
+            this.task = task;
+            this.enqueued = enqueued;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+    }
+
+    private final Priority priority;
+    private final int capacity;
+
+    //下面的字段访问时需要持有this的锁
+    private final PriorityQueue<Entry<T>> queue = new PriorityQueue<>(
+            Comparator.<Entry<T>>comparingLong(entry -> entry.deadline).thenComparingLong(entry -> entry.seq));
+    private long nextSeq;
+    private long taken;
+    private long totalWait;
+    private long maxWait;
+
+    /**
+     * @param priority 延后时间的计算
+     * @param capacity 队列长度，队列满时放入任务会等待
+     */
+    public UploadScheduler(Priority priority, int capacity) {
+        this.priority = priority;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * 放入一个任务，队列满时等待
+     * @param task 任务
+     * @param path 决定优先级的文件绝对路径
+     * @param size 任务的大小
+     * @param modified 文件修改时间
+     * @throws InterruptedException 等待时被中断
+     */
+    public void put(T task, String path, long size, long modified) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long delay = priority.delayOf(path, size, modified, now);
+        enqueue(task, now, now + delay);
+    }
+
+    /**
+     * 放入一个排在所有任务之后的任务，比如通知工作线程退出
+     * @param task 任务
+     * @throws InterruptedException 等待时被中断
+     */
+    public void putLast(T task) throws InterruptedException {
+        enqueue(task, System.currentTimeMillis(), Long.MAX_VALUE);
+    }
+
+    private synchronized void enqueue(T task, long now, long deadline) throws InterruptedException {
+        while (queue.size() >= capacity) {
+            wait();
+        }
+        queue.add(new Entry<>(task, now, deadline, nextSeq++));
+        notifyAll();
+    }
+
+    /**
+     * 取出截止时间最早的任务，队列为空时等待
+     * @return 任务
+     * @throws InterruptedException 等待时被中断
+     */
+    public synchronized T take() throws InterruptedException {
+        while (queue.isEmpty()) {
+            wait();
+        }
+        Entry<T> entry = queue.poll();
+        notifyAll();
+        if (entry.deadline != Long.MAX_VALUE) {
+            long waited = System.currentTimeMillis() - entry.enqueued;
+            taken++;
+            totalWait += waited;
+            maxWait = Math.max(maxWait, waited);
+        }
+        return entry.task;
+    }
+
+    /**
+     * 取出所有任务
+     * @param target 放入的集合
+     */
+    public synchronized void drainTo(Collection<T> target) {
+        Entry<T> entry;
+        while ((entry = queue.poll()) != null) {
+            target.add(entry.task);
+        }
+        notifyAll();
+    }
+
+    public synchronized Stats getStats() {
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        for (Entry<T> entry : queue) {
+            if (entry.deadline != Long.MAX_VALUE) {
+                oldest = Math.max(oldest, now - entry.enqueued);
+            }
+        }
+        return new Stats(queue.size(), taken, taken == 0 ? 0 : totalWait / taken, maxWait, oldest);
+    }
+}
@@ -0,0 +1,137 @@
+package com.than;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * 大文件分段上传的会话记录，保存在本地。上传中断或程序重启后，
+ * 文件没有变化时用同一个会话继续上传服务器还没有收到的段
+ */
+public class UploadSession {
+
+    private static final Logger logger = Logger.getLogger(UploadSession.class);
+    private static final Gson gson = new Gson();
+
+    //服务器分配的会话id
+    private String id;
+    //文件绝对路径
+    private String path;
+    //文件摘要
+    private String md5;
+    //文件大小
+    private long size;
+    //文件修改时间
+    private long modified;
+    //每段的大小，最后一段可能更小
+    private int chunkSize;
+
+    public UploadSession() {
+    }
+
+    public UploadSession(String id, String path, String md5, long size, long modified, int chunkSize) {
+        this.id = id;
+        this.path = path;
+        this.md5 = md5;
+        this.size = size;
+        this.modified = modified;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 读取本地保存的会话
+     * @param path 文件绝对路径
+     * @return 会话，没有或损坏时返回null
+     */
+    public static UploadSession load(String path) {
+        try {
+            Path file = getSessionFile(path);
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                UploadSession session = gson.fromJson(reader, UploadSession.class);
+                return session != null && path.equals(session.path) && session.id != null && session.chunkSize > 0 ? session : null;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("broken upload session: " + path);
+            return null;
+        }
+    }
+
+    /**
+     * 保存会话，先写临时文件再替换
+     * @throws IOException io异常
+     */
+    public void save() throws IOException {
+        Path file = getSessionFile(path);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(this, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 上传完成或者会话失效后，删除本地记录
+     * @param path 文件绝对路径
+     */
+    public static void forget(String path) {
+        try {
+            Files.deleteIfExists(getSessionFile(path));
+        } catch (IOException e) {
+            logger.error("delete upload session error", e);
+        }
+    }
+
+    /**
+     * 文件从创建会话以后是否没有变化
+     */
+    public boolean matches(String md5, long size, long modified) {
+        return md5.equals(this.md5) && size == this.size && modified == this.modified;
+    }
+
+    /**
+     * 段的数量
+     */
+    public int getChunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * 第index段的长度
+     */
+    public int getChunkLength(int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    private static Path getSessionFile(String path) throws IOException {
+        Path folder = FileManager.getDataPath("upload_sessions");
+        Files.createDirectories(folder);
+        return folder.resolve(FileData.getPathKey(path) + ".json");
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+}
@@ -0,0 +1,303 @@
+package com.than;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * 下载过的版本的本地缓存。
+ * 服务器上的版本保存后不会再修改，同一个版本（文件路径加服务器中的文件名称）再次下载时直接从缓存取，不经过网络。
+ * 下载完成后把文件硬链接进缓存目录，命中时再硬链接到目标位置，不在同一个文件系统时复制。
+ * 和下载的文件共用硬链接时，修改下载的文件也会改到缓存，所以命中时先比对大小和修改时间，对不上的直接丢掉。
+ * <p>
+ * 淘汰用分段LRU：新放入的版本在试用段，再次命中后移到保护段；保护段最多占容量的一部分，超过时最久没用的退回试用段。
+ * 总大小超过容量时先淘汰试用段中最久没用的版本，浏览历史时一次性下载的大量版本不会把反复使用的版本挤出去。
+ * 索引和文件一起保存在缓存目录中，重启后保持。
+ * 是否启用和容量每次都从FileManager当前的配置读取，界面保存的设置立即生效
+ */
+public class VersionCache {
+
+    private static final Logger logger = Logger.getLogger(VersionCache.class);
+    private static final Gson gson = new Gson();
+
+    private static final String INDEX_FILE = "index.json";
+    //保护段最多占容量的比例
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    /**
+     * 缓存中的一个版本，文件名是key
+     */
+    private static class Entry {
+        private String key;
+        private long size;
+        //放入缓存时的修改时间，和大小一起判断文件是否被改过
+        private long modified;
+
+        Entry(String key, long size, long modified) {
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * 保存的索引，两个段都按最久没用到最近使用的顺序
+     */
+    private static class Index {
+        private List<Entry> probation;
+        private List<Entry> protect;
+    }
+
+    private final Path folder;
+
+    //下面的字段访问时需要持有this的锁，按访问顺序排列，最久没用的在前
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationSize;
+    private long protectSize;
+
+    /**
+     * 读取索引，删除索引中没有的文件和文件已经不在的索引项
+     * @param folder 缓存目录
+     * @throws IOException 读取索引时的io异常
+     */
+    public VersionCache(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+        load();
+    }
+
+    /**
+     * 从缓存取出一个版本放到目标位置，先放到临时文件再原子地改名
+     * @param path 文件在客户端的绝对路径
+     * @param fileName 服务器中的文件名称
+     * @param target 目标文件
+     * @return true表示命中，目标文件已经是这个版本
+     */
+    public boolean fetch(String path, String fileName, Path target) {
+        Config config = currentConfig();
+        if (config == null || !config.isVersionCache()) {
+            return false;
+        }
+        String key = keyOf(path, fileName);
+        Path blob = folder.resolve(key);
+        synchronized (this) {
+            Entry entry = protect.get(key);
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry == null) {
+                    return false;
+                }
+                //第二次使用，移到保护段
+                probationSize -= entry.size;
+                protect.put(key, entry);
+                protectSize += entry.size;
+                balance(config.getVersionCacheSize());
+            }
+            try {
+                if (Files.size(blob) != entry.size || Files.getLastModifiedTime(blob).toMillis() != entry.modified) {
+                    logger.info("cached version modified, drop: " + fileName);
+                    remove(key);
+                    save();
+                    return false;
+                }
+                save();
+            } catch (IOException e) {
+                logger.warn("check cached version error: " + e.getMessage());
+                remove(key);
+                return false;
+            }
+        }
+        try {
+            //目标文件已经是缓存文件的硬链接，改名不会生效
+            if (Files.exists(target) && Files.isSameFile(blob, target)) {
+                return true;
+            }
+            Path temp = SegmentedDownloader.getTempFile(target);
+            Files.deleteIfExists(temp);
+            link(blob, temp);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            //可能刚好被淘汰，当作没有命中
+            logger.warn("fetch cached version error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 把下载完成的版本放进缓存
+     * @param path 文件在客户端的绝对路径
+     * @param fileName 服务器中的文件名称
+     * @param file 下载好的文件
+     */
+    public void put(String path, String fileName, Path file) {
+        Config config = currentConfig();
+        if (config == null || !config.isVersionCache()) {
+            return;
+        }
+        String key = keyOf(path, fileName);
+        Path blob = folder.resolve(key);
+        Path temp = folder.resolve(key + ".tmp");
+        synchronized (this) {
+            try {
+                long size = Files.size(file);
+                if (size > config.getVersionCacheSize()) {
+                    return;
+                }
+                remove(key);
+                Files.deleteIfExists(temp);
+                link(file, temp);
+                Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                probation.put(key, new Entry(key, size, Files.getLastModifiedTime(blob).toMillis()));
+                probationSize += size;
+                trim(config.getVersionCacheSize());
+                save();
+            } catch (IOException e) {
+                logger.warn("cache version error: " + e.getMessage());
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * 当前的配置，界面保存设置后配置对象会被替换，所以每次都重新取
+     * @return 配置，读取失败时为null，当作不启用缓存
+     */
+    private static Config currentConfig() {
+        try {
+            return FileManager.getConfig();
+        } catch (IOException e) {
+            logger.warn("read config error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 同一个文件系统时硬链接，否则复制
+     */
+    private static void link(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target);
+        }
+    }
+
+    private static String keyOf(String path, String fileName) {
+        return FileData.getPathKey(path + "\u0000" + fileName);
+    }
+
+    /**
+     * 保护段超过比例时，最久没用的退回试用段最近使用的一端
+     * @param capacity 缓存容量
+     */
+    private void balance(long capacity) {
+        long limit = (long) (capacity * PROTECTED_FRACTION);
+        Iterator<Entry> iterator = protect.values().iterator();
+        while (protectSize > limit && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            protectSize -= entry.size;
+            probation.put(entry.key, entry);
+            probationSize += entry.size;
+        }
+    }
+
+    /**
+     * 总大小超过容量时，先从试用段、再从保护段淘汰最久没用的版本
+     * @param capacity 缓存容量
+     */
+    private void trim(long capacity) {
+        balance(capacity);
+        while (probationSize + protectSize > capacity) {
+            LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protect : probation;
+            if (segment.isEmpty()) {
+                return;
+            }
+            String eldest = segment.keySet().iterator().next();
+            remove(eldest);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            probationSize -= entry.size;
+        }
+        entry = protect.remove(key);
+        if (entry != null) {
+            protectSize -= entry.size;
+        }
+        try {
+            Files.deleteIfExists(folder.resolve(key));
+        } catch (IOException e) {
+            logger.warn("delete cached version error: " + e.getMessage());
+        }
+    }
+
+    private void load() throws IOException {
+        Path file = folder.resolve(INDEX_FILE);
+        Index index = null;
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                index = gson.fromJson(reader, Index.class);
+            } catch (RuntimeException e) {
+                logger.warn("version cache index broken, start empty: " + e.getMessage());
+            }
+        }
+        if (index != null) {
+            probationSize = restore(index.probation, probation);
+            protectSize = restore(index.protect, protect);
+        }
+        //放进缓存后还没来得及保存索引的文件
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path path : files.toList()) {
+                String name = path.getFileName().toString();
+                if (!name.equals(INDEX_FILE) && !probation.containsKey(name) && !protect.containsKey(name)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        logger.info("version cache " + (probation.size() + protect.size()) + " versions, " + (probationSize + protectSize) + " bytes");
+    }
+
+    private long restore(List<Entry> entries, LinkedHashMap<String, Entry> segment) {
+        long size = 0;
+        if (entries == null) {
+            return size;
+        }
+        for (Entry entry : entries) {
+            if (entry != null && entry.key != null && Files.exists(folder.resolve(entry.key))) {
+                segment.put(entry.key, entry);
+                size += entry.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 原子地保存索引
+     */
+    private void save() {
+        Index index = new Index();
+        index.probation = new ArrayList<>(probation.values());
+        index.protect = new ArrayList<>(protect.values());
+        Path file = folder.resolve(INDEX_FILE);
+        Path temp = folder.resolve(INDEX_FILE + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(index, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("save version cache index error: " + e.getMessage());
+        }
+    }
+}
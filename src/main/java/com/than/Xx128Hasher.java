@@ -0,0 +1,139 @@
+package com.than;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 快速的非加密摘要，纯java实现，由两路不同种子的XXH64在同一次遍历中拼成128位，
+ * 输出和XXH3-128不兼容，只用于判断文件是否变化
+ */
+public class Xx128Hasher implements FileHasher {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE = 32;
+
+    private final Xxh64State low = new Xxh64State(0);
+    private final Xxh64State high = new Xxh64State(PRIME64_5);
+    //不足一个stripe的数据先缓存
+    private final ByteBuffer pending = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+    private long totalLength;
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        ByteBuffer input = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.limit());
+        totalLength += input.remaining();
+        if (pending.position() > 0) {
+            while (pending.hasRemaining() && input.hasRemaining()) {
+                pending.put(input.get());
+            }
+            if (pending.hasRemaining()) {
+                return;
+            }
+            pending.flip();
+            processStripe(pending, 0);
+            pending.clear();
+        }
+        int offset = input.position();
+        int end = input.limit();
+        while (end - offset >= STRIPE) {
+            processStripe(input, offset);
+            offset += STRIPE;
+        }
+        input.position(offset);
+        pending.put(input);
+    }
+
+    private void processStripe(ByteBuffer input, int offset) {
+        long l1 = input.getLong(offset);
+        long l2 = input.getLong(offset + 8);
+        long l3 = input.getLong(offset + 16);
+        long l4 = input.getLong(offset + 24);
+        low.stripe(l1, l2, l3, l4);
+        high.stripe(l1, l2, l3, l4);
+    }
+
+    @Override
+    public byte[] digest() {
+        pending.flip();
+        long h1 = low.finish(totalLength, pending.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        long h2 = high.finish(totalLength, pending.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        return ByteBuffer.allocate(16).putLong(h2).putLong(h1).array();
+    }
+
+    /**
+     * 单路XXH64的状态
+     */
+    private static class Xxh64State {
+        private final long seed;
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+        private boolean largeInput;
+
+        Xxh64State(long seed) {
+            this.seed = seed;
+            v1 = seed + PRIME64_1 + PRIME64_2;
+            v2 = seed + PRIME64_2;
+            v3 = seed;
+            v4 = seed - PRIME64_1;
+        }
+
+        void stripe(long l1, long l2, long l3, long l4) {
+            largeInput = true;
+            v1 = round(v1, l1);
+            v2 = round(v2, l2);
+            v3 = round(v3, l3);
+            v4 = round(v4, l4);
+        }
+
+        long finish(long totalLength, ByteBuffer tail) {
+            long h;
+            if (largeInput) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = seed + PRIME64_5;
+            }
+            h += totalLength;
+            while (tail.remaining() >= 8) {
+                h ^= round(0, tail.getLong());
+                h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            }
+            if (tail.remaining() >= 4) {
+                h ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME64_1;
+                h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            }
+            while (tail.hasRemaining()) {
+                h ^= (tail.get() & 0xFF) * PRIME64_5;
+                h = Long.rotateLeft(h, 11) * PRIME64_1;
+            }
+            h ^= h >>> 33;
+            h *= PRIME64_2;
+            h ^= h >>> 29;
+            h *= PRIME64_3;
+            h ^= h >>> 32;
+            return h;
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * PRIME64_2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME64_1;
+        }
+
+        private static long mergeRound(long acc, long val) {
+            acc ^= round(0, val);
+            return acc * PRIME64_1 + PRIME64_4;
+        }
+    }
+}